@@ -36,6 +36,8 @@ public class AuthFilter implements Filter {
 
     public static final int EXTRA_TIME_FOR_SIRONA = 1000;
     private static final Set<String> PUBLIC_ENDPOINTS = Set.of("/v2/actuator/health/readiness", "/v2/actuator/health/liveness", "/v2/favicon.ico");
+    // Matched on the decoded and normalized path within the app, the request uri could be spelled in other ways
+    private static final Set<String> ADMIN_ENDPOINTS = Set.of("/actuator/reload");
     private static final String AUTHENTICATION_SCHEME = "Bearer";
     private static final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     private static final LoadingCache<String, Long> cache = Caffeine.newBuilder()
@@ -49,6 +51,8 @@ public class AuthFilter implements Filter {
     String authUrl;
     @Value("${auth.enabled: false}")
     boolean authEnabled;
+    @Value("${auth.admin-role:admin}")
+    String adminRole;
 
     public AuthFilter() {
         this.httpClient = HttpClient.newBuilder()
@@ -58,6 +62,15 @@ public class AuthFilter implements Filter {
     }
 
     private static long getExpirationTimeFromHeader(String header) {
+        KeycloakTokenPayload payload = payload(header);
+        if (payload == null) {
+            return 0;
+        }
+        log.info("Welcome {}", payload.username());
+        return payload.expiration();
+    }
+
+    private static KeycloakTokenPayload payload(String header) {
         String token = header.replace(AUTHENTICATION_SCHEME, "").trim();
         DecodedJWT jwt = JWT.decode(token);
         String json;
@@ -67,18 +80,18 @@ public class AuthFilter implements Filter {
             json = new String(Base64.getDecoder().decode(jwt.getPayload()));
         }
         try {
-            KeycloakTokenPayload payload = mapper.readValue(json, KeycloakTokenPayload.class);
-            log.info("Welcome {}", payload.username());
-            return payload.expiration();
+            return mapper.readValue(json, KeycloakTokenPayload.class);
         } catch (JsonProcessingException e) {
             log.error(e.getMessage());
-            return 0;
+            return null;
         }
     }
 
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
-        if (authEnabled) {
+        if (servletRequest instanceof HttpServletRequest request && isAdminEndpoint(request)) {
+            authorizeAdmin(request, servletResponse, chain);
+        } else if (authEnabled) {
             authenticate(servletRequest, servletResponse, chain);
         } else {
             chain.doFilter(servletRequest, servletResponse);
@@ -105,6 +118,37 @@ public class AuthFilter implements Filter {
         }
     }
 
+    /*
+     * Without auth there is no telling who is an admin, so the admin endpoints are refused. They are still reachable on
+     * a separate management.server.port, the filter is not applied there.
+     */
+    private void authorizeAdmin(HttpServletRequest request, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
+        String details = requestDetails(request);
+        String authorizationHeader = request.getHeader(AUTHORIZATION);
+        if (!authEnabled) {
+            abortWithForbidden(servletResponse, details);
+        } else if (!isValid(authorizationHeader)) {
+            abortWithUnauthorized(servletResponse, details);
+        } else if (!hasRole(authorizationHeader, adminRole)) {
+            abortWithForbidden(servletResponse, details);
+        } else {
+            log.info(details);
+            chain.doFilter(request, servletResponse);
+        }
+    }
+
+    private static boolean isAdminEndpoint(HttpServletRequest request) {
+        String path = (request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo())).toLowerCase();
+        return ADMIN_ENDPOINTS.stream().anyMatch(e -> path.equals(e) || path.startsWith(e + "/"));
+    }
+
+    // Only asked after keycloak agreed the token is valid, so the roles in it can be trusted
+    private static boolean hasRole(String header, String role) {
+        KeycloakTokenPayload payload = payload(header);
+        return payload != null && payload.realmAccess() != null && payload.realmAccess().roles() != null
+                && payload.realmAccess().roles().contains(role);
+    }
+
     private String requestDetails(HttpServletRequest request) {
         String path = request.getRequestURI();
         StringBuilder params = new StringBuilder();
@@ -123,6 +167,15 @@ public class AuthFilter implements Filter {
         response.getWriter().flush();
     }
 
+    private void abortWithForbidden(ServletResponse servletResponse, String path) throws IOException {
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        log.warn("FORBIDDEN {}", path);
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        response.getWriter().write("{\"Forbidden\": \"Only admins may do this\"}");
+        response.getWriter().close();
+        response.getWriter().flush();
+    }
+
     private boolean isValid(String header) {
         if (header == null || !header.startsWith(AUTHENTICATION_SCHEME)) {
             return false;
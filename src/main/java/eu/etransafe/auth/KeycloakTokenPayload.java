@@ -3,6 +3,8 @@ package eu.etransafe.auth;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public class KeycloakTokenPayload {
 
@@ -12,4 +14,13 @@ public class KeycloakTokenPayload {
     private long expiration;
     @JsonProperty("iss")
     private String issuer;
+    @JsonProperty("realm_access")
+    private RealmAccess realmAccess;
+
+    @Data
+    public static class RealmAccess {
+
+        @JsonProperty("roles")
+        private List<String> roles;
+    }
 }
@@ -15,12 +15,10 @@ public class CachingConf {
     @Bean
     public RedisCacheManagerBuilderCustomizer redisCacheManagerBuilderCustomizer() {
         return builder -> builder
-                .withCacheConfiguration("expandMeddraPrimary", cacheConfiguration())
+                .withCacheConfiguration("meddraPrimaryTreeV2", cacheConfiguration())
                 .withCacheConfiguration("sironaFromMeddra", cacheConfiguration())
                 .withCacheConfiguration("sironaFromLab", cacheConfiguration())
                 .withCacheConfiguration("sironaFromHistopathology", cacheConfiguration())
-                .withCacheConfiguration("children", cacheConfiguration().entryTtl(Duration.ofDays(3)))
-                .withCacheConfiguration("parents", cacheConfiguration().entryTtl(Duration.ofDays(3)))
                 .withCacheConfiguration("snomedOptions", cacheConfiguration().entryTtl(Duration.ofDays(3)))
                 .withCacheConfiguration("conceptsByVocAndDom", cacheConfiguration().entryTtl(Duration.ofDays(5)));
     }
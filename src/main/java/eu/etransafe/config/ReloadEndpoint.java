@@ -0,0 +1,33 @@
+package eu.etransafe.config;
+
+import eu.etransafe.service.VocabularyReloadService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+// POST /actuator/reload after a vocabulary refresh of the db, GET shows if a reload is still running. Not exposed unless
+// configured, and then only admins get through the auth filter
+@Component
+@Endpoint(id = "reload")
+public class ReloadEndpoint {
+
+    private final VocabularyReloadService reloadService;
+
+    public ReloadEndpoint(VocabularyReloadService reloadService) {
+        this.reloadService = reloadService;
+    }
+
+    @ReadOperation
+    public Map<String, Boolean> status() {
+        return Map.of("reloading", reloadService.isReloading());
+    }
+
+    @WriteOperation
+    public Map<String, Boolean> reload() {
+        reloadService.reload();
+        return status();
+    }
+}
@@ -0,0 +1,38 @@
+package eu.etransafe.config;
+
+import eu.etransafe.repo.SnapshotRepo;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+import static eu.etransafe.domain.Vocabularies.PRECLINICAL;
+import static eu.etransafe.domain.Vocabularies.SUPPORTED;
+
+// Run with --rosetta.snapshot.export=<file> to write a vocabulary snapshot from the db and exit
+@Component
+@ConditionalOnProperty("rosetta.snapshot.export")
+public class SnapshotExport implements ApplicationRunner {
+
+    private final SnapshotRepo snapshotRepo;
+    private final ConfigurableApplicationContext context;
+    private final Path file;
+
+    public SnapshotExport(SnapshotRepo snapshotRepo, ConfigurableApplicationContext context,
+                          @Value("${rosetta.snapshot.export}") String file) {
+        this.snapshotRepo = snapshotRepo;
+        this.context = context;
+        this.file = Path.of(file);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        snapshotRepo.export(file, SUPPORTED, PRECLINICAL);
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+}
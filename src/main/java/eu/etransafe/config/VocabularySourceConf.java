@@ -0,0 +1,50 @@
+package eu.etransafe.config;
+
+import eu.etransafe.exception.RosettaException;
+import eu.etransafe.repo.AthenaRepo;
+import eu.etransafe.repo.ConceptRelationshipRepo;
+import eu.etransafe.repo.DbVocabularySource;
+import eu.etransafe.repo.FileVocabularySource;
+import eu.etransafe.repo.HierarchyRepo;
+import eu.etransafe.repo.SnapshotRepo;
+import eu.etransafe.repo.VocabularySource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.Nullable;
+
+import java.nio.file.Path;
+
+import static eu.etransafe.domain.Vocabularies.PRECLINICAL;
+import static eu.etransafe.domain.Vocabularies.SUPPORTED;
+
+@Configuration
+public class VocabularySourceConf {
+
+    @Bean
+    public VocabularySource vocabularySource(@Value("${rosetta.source:db}") String source,
+                                             @Value("${rosetta.snapshot.file:}") String snapshotFile,
+                                             @Value("${rosetta.athena.dir:}") String athenaDir,
+                                             HierarchyRepo hierarchyRepo, @Nullable ConceptRelationshipRepo relationshipRepo,
+                                             SnapshotRepo snapshotRepo, AthenaRepo athenaRepo) {
+        return switch (source) {
+            case "db" -> {
+                if (relationshipRepo == null) {
+                    throw new RosettaException("rosetta.source db needs a datasource");
+                }
+                yield new DbVocabularySource(hierarchyRepo, relationshipRepo);
+            }
+            case "snapshot" -> new FileVocabularySource(path(snapshotFile, "rosetta.snapshot.file"), snapshotRepo::read);
+            case "athena" -> new FileVocabularySource(path(athenaDir, "rosetta.athena.dir"),
+                    dir -> athenaRepo.read(dir, SUPPORTED, PRECLINICAL));
+            default -> throw new RosettaException("Unknown rosetta.source [" + source + "], expected db, snapshot or athena");
+        };
+    }
+
+    private static Path path(String value, String property) {
+        if (value == null || value.isBlank()) {
+            throw new RosettaException(property + " is required for this rosetta.source");
+        }
+        return Path.of(value);
+    }
+}
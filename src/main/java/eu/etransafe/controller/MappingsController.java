@@ -9,6 +9,7 @@ import eu.etransafe.domain.Vocabulary;
 import eu.etransafe.exception.RosettaException;
 import eu.etransafe.service.concepts.ConceptService;
 import eu.etransafe.service.mappings.Clinical2Preclinical;
+import eu.etransafe.service.mappings.Deadline;
 import eu.etransafe.service.mappings.Hpath2Send;
 import eu.etransafe.service.mappings.MappingService;
 import eu.etransafe.service.mappings.MeddraService;
@@ -17,7 +18,9 @@ import eu.etransafe.service.mappings.Preclinical2Clinical;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -30,12 +33,17 @@ import org.springframework.web.server.ResponseStatusException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static eu.etransafe.domain.MappingAlgorithm.ETOX2MEDDRAPT;
+import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2ETOX;
 import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2MEDDRASOC;
+import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2SEND;
 import static eu.etransafe.domain.MappingAlgorithm.SEND2MEDDRAPT;
 import static eu.etransafe.domain.Vocabularies.CLINICAL;
 import static eu.etransafe.domain.Vocabularies.ETOX;
@@ -45,6 +53,8 @@ import static eu.etransafe.domain.Vocabularies.PRECLINICAL_ORGANS;
 import static eu.etransafe.domain.Vocabularies.SEND;
 import static eu.etransafe.domain.Vocabulary.Identifier.MA;
 import static eu.etransafe.domain.Vocabulary.Identifier.SNOMED;
+import static eu.etransafe.service.mappings.MappingService.SQUASH_TOLERANCE;
+import static eu.etransafe.service.mappings.MappingService.penaltyLimit;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.NOT_IMPLEMENTED;
@@ -52,11 +62,16 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 
 @Slf4j
 @RestController
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = MappingsController.PARTIAL)
 @RequestMapping(path = "/mappings")
 @Tag(name = "Mappings", description = "Map between terminologies")
 public class MappingsController {
 
+    // Response header set when the deadline passed before the mapping was done
+    public static final String PARTIAL = "X-Rosetta-Partial";
+    // Algorithms from MedDRA to preclinical vocabularies, they share their work when asked for together
+    private static final Map<MappingAlgorithm, Set<Vocabulary.Identifier>> PRECLINICAL_TARGETS = Map.of(MEDDRAPT2ETOX, ETOX, MEDDRAPT2SEND, SEND);
+
     private final Preclinical2Clinical clinical;
     private final MeddraService meddraService;
     private final OrganService organs;
@@ -64,10 +79,12 @@ public class MappingsController {
     private final Clinical2Preclinical clinical2Preclinical;
     private final MappingService mappingService;
     private final ConceptService conceptService;
+    private final long deadline;
 
 
     public MappingsController(Preclinical2Clinical clinical, MeddraService meddraService, OrganService organs, Hpath2Send hpath2Send,
-                              Clinical2Preclinical clinical2Preclinical, MappingService mappingService, ConceptService conceptService) {
+                              Clinical2Preclinical clinical2Preclinical, MappingService mappingService, ConceptService conceptService,
+                              @Value("${rosetta.mapping.deadline:0}") long deadline) {
         this.clinical = clinical;
         this.meddraService = meddraService;
         this.organs = organs;
@@ -75,6 +92,7 @@ public class MappingsController {
         this.clinical2Preclinical = clinical2Preclinical;
         this.mappingService = mappingService;
         this.conceptService = conceptService;
+        this.deadline = deadline;
     }
 
     @GetMapping("")
@@ -98,21 +116,69 @@ public class MappingsController {
                     Maximum amount of traversals allowed to find results,
                     a higher value will result in more and less precise mappings.
                     Increasing the value will also lead to slower performance on the mapping
-                    """) @RequestParam(required = false, defaultValue = "2") int maxPenalty) {
+                    """) @RequestParam(required = false, defaultValue = "2") int maxPenalty,
+            @Parameter(description = """
+                    Milliseconds the mapping may take, when they have passed the mappings found so far are returned
+                    and the X-Rosetta-Partial response header is set. Use 0 to find all mappings, however long it takes.
+                    Defaults to the deadline configured on the server
+                    """) @RequestParam(required = false) Long deadline,
+            HttpServletResponse response) {
+        var limit = Deadline.in(deadline == null ? this.deadline : deadline);
+        var result = map(conceptCodes, algorithm, explain, maxPenalty, limit);
+        if (limit.passed()) {
+            response.setHeader(PARTIAL, "true");
+        }
+        return result;
+    }
+
+    @GetMapping("/multi")
+    @Operation(summary = "Map to several terminologies at once", description = """
+            Works the same as the regular endpoint, but maps the concept codes with every algorithm given and returns the
+            mappings per algorithm. When mapping a MedDRA term to both eTox and SEND the mappings to SNOMED and the parts
+            of the SNOMED concepts are looked up once for both.
+            """)
+    public Map<MappingAlgorithm, List<Mapping>> multi(
+            @RequestParam List<String> conceptCodes,
+            @RequestParam Set<MappingAlgorithm> algorithms,
+            @RequestParam(required = false) boolean explain,
+            @RequestParam(required = false, defaultValue = "2") int maxPenalty,
+            @RequestParam(required = false) Long deadline,
+            HttpServletResponse response) {
+        if (isEmpty(algorithms)) {
+            throw new ResponseStatusException(BAD_REQUEST, "Please provide algorithms");
+        }
+        // One deadline for all algorithms
+        var limit = Deadline.in(deadline == null ? this.deadline : deadline);
+        Map<MappingAlgorithm, List<Mapping>> result = new EnumMap<>(MappingAlgorithm.class);
+        var preclinical = algorithms.stream().filter(PRECLINICAL_TARGETS::containsKey).sorted().toList();
+        if (preclinical.size() > 1) {
+            result.putAll(clinical2preclinical(conceptCodes, explain, preclinical, maxPenalty, limit));
+        }
+        algorithms.stream()
+                .filter(algorithm -> !result.containsKey(algorithm))
+                .forEach(algorithm -> result.put(algorithm, map(conceptCodes, algorithm, explain, maxPenalty, limit)));
+        if (limit.passed()) {
+            response.setHeader(PARTIAL, "true");
+        }
+        return result;
+    }
+
+    private List<Mapping> map(List<String> conceptCodes, MappingAlgorithm algorithm, boolean explain, int maxPenalty, Deadline deadline) {
         var start = System.currentTimeMillis();
         Collection<Mapping> mappings = switch (algorithm) {
             case HPATH2SEND, SEND2HPATH, SEND2MA, MA2SEND -> preclinical2preclinical(conceptCodes, explain);
-            case SEND2MEDDRAPT, ETOX2MEDDRAPT -> preclinical2clinical(conceptCodes, explain, maxPenalty);
-            case MA2MEDDRASOC -> ma2soc(conceptCodes, maxPenalty, explain);
+            case SEND2MEDDRAPT, ETOX2MEDDRAPT -> preclinical2clinical(conceptCodes, explain, maxPenalty, deadline);
+            case MA2MEDDRASOC -> ma2soc(conceptCodes, maxPenalty, explain, deadline);
             case MEDDRAPT2MEDDRASOC -> meddraService.ptToPrimarySOC(conceptCodes);
-            case MA2SNOMED -> mapOrgans(conceptCodes, SNOMED, explain, maxPenalty);
-            case SNOMED2MA -> mapOrgans(conceptCodes, MA, explain, maxPenalty);
-            case MEDDRAPT2ETOX -> clinical2preclinical(conceptCodes, explain, ETOX, maxPenalty);
-            case MEDDRAPT2SEND -> clinical2preclinical(conceptCodes, explain, SEND, maxPenalty);
+            case MA2SNOMED -> mapOrgans(conceptCodes, SNOMED, explain, maxPenalty, deadline);
+            case SNOMED2MA -> mapOrgans(conceptCodes, MA, explain, maxPenalty, deadline);
+            case MEDDRAPT2ETOX -> clinical2preclinical(conceptCodes, explain, ETOX, maxPenalty, deadline);
+            case MEDDRAPT2SEND -> clinical2preclinical(conceptCodes, explain, SEND, maxPenalty, deadline);
             case MEDDRAPT2SNOMED -> meddraPT2snomed(conceptCodes, explain);
         };
         var end = System.currentTimeMillis();
-        log.info("Mapped {} to {} in {} milliseconds", conceptCodes, algorithm.name().split("2")[1], end - start);
+        log.info("Mapped {} to {} in {} milliseconds{}", conceptCodes, algorithm.name().split("2")[1], end - start,
+                deadline.passed() ? ", the deadline passed" : "");
         return sortAndFilter(mappings, maxPenalty);
     }
 
@@ -121,7 +187,7 @@ public class MappingsController {
             This endpoint does not support the SEND2MEDDRAPT and ETOX2MEDDRAPT algorithms
             """)
     @PostMapping("/bulk")
-    public List<Mapping> bulk(@RequestBody BulkRequest socMappingRequest) {
+    public List<Mapping> bulk(@RequestBody BulkRequest socMappingRequest, HttpServletResponse response) {
         var algorithm = socMappingRequest.algorithm();
         if (List.of(SEND2MEDDRAPT, ETOX2MEDDRAPT).contains(algorithm)) {
             throw new ResponseStatusException(NOT_IMPLEMENTED, "SEND2MEDDRAPT and ETOX2MEDDRAPT have not been implemented");
@@ -134,27 +200,56 @@ public class MappingsController {
             return meddraService.ptToPrimarySOC(conceptCodes);
         }
 
-        return conceptCodes.stream()
+        // Every code gets the server deadline
+        var partial = new AtomicBoolean();
+        var mappings = conceptCodes.stream()
                 .distinct()
-                .map(c -> map(List.of(c), algorithm, false, 2))
+                .map(c -> {
+                    var limit = Deadline.in(deadline);
+                    var mapped = map(List.of(c), algorithm, false, 2, limit);
+                    if (limit.passed()) {
+                        partial.set(true);
+                    }
+                    return mapped;
+                })
                 .flatMap(Collection::stream)
                 .toList();
+        if (partial.get()) {
+            response.setHeader(PARTIAL, "true");
+        }
+        return mappings;
     }
 
     private Set<Mapping> clinical2preclinical(List<String> conceptCodes, boolean explain,
-                                              Set<Vocabulary.Identifier> voc, int maxPenalty) {
+                                              Set<Vocabulary.Identifier> voc, int maxPenalty, Deadline deadline) {
         var input = getSingleConcept(conceptCodes, CLINICAL);
-        var result = clinical2Preclinical.map(input, voc, explain, maxPenalty);
+        var result = clinical2Preclinical.map(input, voc, explain, maxPenalty, deadline);
         return explain ? result : mappingService.squash(input, result);
     }
 
+    private Map<MappingAlgorithm, List<Mapping>> clinical2preclinical(List<String> conceptCodes, boolean explain,
+                                                                     List<MappingAlgorithm> algorithms, int maxPenalty,
+                                                                     Deadline deadline) {
+        var input = getSingleConcept(conceptCodes, CLINICAL);
+        var start = System.currentTimeMillis();
+        var results = clinical2Preclinical.map(input, algorithms.stream().map(PRECLINICAL_TARGETS::get).toList(), explain, maxPenalty, deadline);
+        log.info("Mapped {} to {} in {} milliseconds{}", conceptCodes, algorithms, System.currentTimeMillis() - start,
+                deadline.passed() ? ", the deadline passed" : "");
+        Map<MappingAlgorithm, List<Mapping>> mappings = new EnumMap<>(MappingAlgorithm.class);
+        algorithms.forEach(algorithm -> {
+            var result = results.get(PRECLINICAL_TARGETS.get(algorithm));
+            mappings.put(algorithm, sortAndFilter(explain ? result : mappingService.squash(input, result), maxPenalty));
+        });
+        return mappings;
+    }
+
     private Set<Mapping> preclinical2preclinical(List<String> conceptCodes, boolean explain) {
         var input = getSingleConcept(conceptCodes, PRECLINICAL_FINDINGS);
         var result = hpath2Send.map(input);
         return explain ? result : mappingService.squash(input, result);
     }
 
-    private Set<Mapping> preclinical2clinical(List<String> conceptCodes, boolean explain, int maxPenalty) {
+    private Set<Mapping> preclinical2clinical(List<String> conceptCodes, boolean explain, int maxPenalty, Deadline deadline) {
         if (conceptCodes.size() == 1 || conceptCodes.size() == 2) {
             var organ = getSourceOrgan(conceptCodes);
             Concept finding;
@@ -165,16 +260,17 @@ public class MappingsController {
             }
             var from = organ == null ? new MappingItem(Set.of(finding)) : new MappingItem(Set.of(finding, organ));
             Set<Mapping> result;
-            result = clinical.map(finding, organ, maxPenalty);
+            result = clinical.map(finding, organ, explain, maxPenalty, deadline);
             return explain ? result : mappingService.squash(Set.of(from), result);
         }
         throw new ResponseStatusException(BAD_REQUEST, "You must supply one or two conceptCodes, anything else I will not accept");
     }
 
 
-    private Set<Mapping> mapOrgans(List<String> conceptCodes, Vocabulary.Identifier voc, boolean explain, int maxPenalty) {
+    private Set<Mapping> mapOrgans(List<String> conceptCodes, Vocabulary.Identifier voc, boolean explain, int maxPenalty,
+                                   Deadline deadline) {
         var input = getSingleConcept(conceptCodes, ORGANS);
-        var result = organs.map(input, voc, maxPenalty);
+        var result = organs.map(input, voc, maxPenalty, deadline);
         return explain ? result : mappingService.squash(input, result);
     }
 
@@ -192,9 +288,9 @@ public class MappingsController {
     }
 
 
-    private List<Mapping> ma2soc(List<String> conceptCodes, int maxPenalty, boolean explain) {
+    private List<Mapping> ma2soc(List<String> conceptCodes, int maxPenalty, boolean explain, Deadline deadline) {
         var input = getSingleConcept(conceptCodes, EnumSet.of(MA));
-        List<Mapping> response = meddraService.mouseAnatomyToSystemOrganClass(input, maxPenalty);
+        List<Mapping> response = meddraService.mouseAnatomyToSystemOrganClass(input, maxPenalty, deadline);
         if (!isEmpty(response)) {
             return explain ? response : new ArrayList<>(mappingService.squash(input, response));
         } else {
@@ -213,7 +309,7 @@ public class MappingsController {
         return mappings.stream()
                 .sorted(Comparator.comparing(m -> Math.abs(m.totalPenalty())))
                 // At present +0.9 is a feature when not many mappings are returned, not a bug ;-)
-                .filter(m -> m.totalPenalty() < (maxPenalty + (mappings.size() > 10 ? 0 : 0.9)) && m.totalPenalty() > (-maxPenalty - 1))
+                .filter(m -> m.totalPenalty() < (maxPenalty + (mappings.size() > 10 ? 0 : SQUASH_TOLERANCE)) && m.totalPenalty() > -penaltyLimit(maxPenalty))
                 .toList();
     }
 
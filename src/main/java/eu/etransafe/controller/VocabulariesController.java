@@ -1,8 +1,10 @@
 package eu.etransafe.controller;
 
 import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
 import eu.etransafe.repo.VocabularyRepo;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,7 +28,7 @@ public class VocabulariesController {
 
     private final VocabularyRepo repo;
 
-    public VocabulariesController(VocabularyRepo repo) {
+    public VocabulariesController(@Nullable VocabularyRepo repo) {
         this.repo = repo;
     }
 
@@ -39,6 +41,9 @@ public class VocabulariesController {
             case ALL ->
                     Stream.of(PRECLINICAL, CLINICAL, INTERMEDIARY).flatMap(Collection::stream).collect(Collectors.toSet());
         };
+        if (repo == null) {
+            throw new RosettaException("Listing the vocabularies needs the db");
+        }
         return repo.findByIds(vocabularies);
     }
 
@@ -1,10 +1,10 @@
 package eu.etransafe.controller.dto;
 
-import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptNode;
 
 import java.util.List;
 
-public record ExpandResponse(List<Concept> concepts, Integer childlevel, Integer parentlevel, Integer count) {
+public record ExpandResponse(List<ConceptNode> concepts, Integer childlevel, Integer parentlevel, Integer count) {
 
 }
 
@@ -4,19 +4,24 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
-import jakarta.persistence.Transient;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Getter;
-import lombok.Setter;
+import lombok.NoArgsConstructor;
 
 import java.io.Serial;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
 
-@Setter
+/**
+ * A concept as it is stored in the vocabularies. Concepts are immutable, the same instance can be cached and shared by
+ * concurrent requests. Trees of concepts, as returned by the expand endpoints, are built from {@link ConceptNode}s.
+ */
 @Getter
 @Entity
+@Builder
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class Concept implements Serializable {
     @Serial
     private static final long serialVersionUID = 398745685L;
@@ -42,20 +47,10 @@ public class Concept implements Serializable {
     private String code;
     @JsonProperty("invalid_reason")
     private String invalidReason;
-    @Transient
-    @JsonProperty("level")
-    private int level;
-    @Transient
-    @JsonProperty("children")
-    private List<Concept> children = new ArrayList<>();
 
-
-    public Concept addChild(Concept childrenItem) {
-        if (this.children == null) {
-            this.children = new ArrayList<>();
-        }
-        this.children.add(childrenItem);
-        return this;
+    // Only the id, for lookups in sets and maps of concepts
+    public Concept(Integer id) {
+        this.id = id;
     }
 
     @Override
@@ -73,13 +68,12 @@ public class Concept implements Serializable {
 
     @Override
     public String toString() {
-        return id + (children == null || children.isEmpty() ? "" : children.stream().map(Concept::toString).collect(Collectors.joining(",")));
+        return String.valueOf(id);
     }
 
     // toString was used by Redis as key for cache trying to keep that small, this method is for debugging and logging
     public String string() {
-        return name + " (" + vocabulary + ": " + code + ")"
-                + (children == null || children.isEmpty() ? "" : "\n children: [" + children.stream().map(Concept::string).collect(Collectors.joining(", ")) + "] ");
+        return name + " (" + vocabulary + ": " + code + ")";
     }
 }
 
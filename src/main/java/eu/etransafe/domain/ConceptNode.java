@@ -0,0 +1,53 @@
+package eu.etransafe.domain;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import lombok.Getter;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A concept at a place in a tree, with its level and children. Nodes are immutable and built from the leaves up, a
+ * subtree that appears at multiple places in a tree is the same instance. Serialized as the concept with a level and
+ * children, the same JSON the expand endpoints always returned.
+ */
+@Getter
+public final class ConceptNode implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 5730958173648201L;
+
+    @JsonUnwrapped
+    private final Concept concept;
+    @JsonProperty("level")
+    private final int level;
+    @JsonProperty("children")
+    private final List<ConceptNode> children;
+
+    public ConceptNode(Concept concept, int level, List<ConceptNode> children) {
+        this.concept = concept;
+        this.level = level;
+        this.children = List.copyOf(children);
+    }
+
+    public ConceptNode(Concept concept, int level) {
+        this(concept, level, List.of());
+    }
+
+    public int size() {
+        return 1 + children.stream().mapToInt(ConceptNode::size).sum();
+    }
+
+    @Override
+    public String toString() {
+        return concept + (children.isEmpty() ? "" : children.stream().map(ConceptNode::toString).collect(Collectors.joining(",")));
+    }
+
+    // For debugging and logging
+    public String string() {
+        return concept.string()
+                + (children.isEmpty() ? "" : "\n children: [" + children.stream().map(ConceptNode::string).collect(Collectors.joining(", ")) + "] ");
+    }
+}
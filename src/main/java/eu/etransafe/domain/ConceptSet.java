@@ -0,0 +1,142 @@
+package eu.etransafe.domain;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The ids of a set of concepts, sorted and without duplicates, with the hash computed once. Equal sets are interned to
+ * the same instance, so comparing the concepts of mapping items is mostly a reference check and the same combination of
+ * concepts reached by many expansion steps is kept only once. Subset checks walk both sorted arrays once.
+ */
+public final class ConceptSet implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 7301245538092164L;
+
+    private static final Interner<ConceptSet> INTERNED = Interners.newWeakInterner();
+    private static final ConceptSet EMPTY = INTERNED.intern(new ConceptSet(new int[0]));
+
+    private final int[] ids;
+    private final int hash;
+
+    private ConceptSet(int[] ids) {
+        this.ids = ids;
+        this.hash = Arrays.hashCode(ids);
+    }
+
+    public static ConceptSet of(Collection<Concept> concepts) {
+        return concepts.isEmpty() ? EMPTY : INTERNED.intern(new ConceptSet(sortedIds(concepts)));
+    }
+
+    public static ConceptSet of(int... ids) {
+        var sorted = ids.clone();
+        Arrays.sort(sorted);
+        return INTERNED.intern(new ConceptSet(unique(sorted)));
+    }
+
+    // Sorted and without duplicates
+    public static int[] sortedIds(Collection<Concept> concepts) {
+        int[] ids = new int[concepts.size()];
+        int i = 0;
+        for (Concept concept : concepts) {
+            ids[i++] = concept.id();
+        }
+        Arrays.sort(ids);
+        return unique(ids);
+    }
+
+    private static int[] unique(int[] sorted) {
+        int unique = 0;
+        for (int j = 0; j < sorted.length; j++) {
+            if (j == 0 || sorted[j] != sorted[j - 1]) {
+                sorted[unique++] = sorted[j];
+            }
+        }
+        return unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    public boolean containsAll(ConceptSet other) {
+        if (other == this) {
+            return true;
+        }
+        if (other.ids.length > ids.length) {
+            return false;
+        }
+        int i = 0;
+        for (int id : other.ids) {
+            while (i < ids.length && ids[i] < id) {
+                i++;
+            }
+            if (i == ids.length || ids[i] != id) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    // The set after replacing a concept by another one, e.g. by its parent or child, the other one can already be part of it
+    public ConceptSet replace(int removed, int added) {
+        int at = Arrays.binarySearch(ids, removed);
+        if (at < 0 || removed == added) {
+            return at < 0 ? with(added) : this;
+        }
+        int[] without = new int[ids.length - 1];
+        System.arraycopy(ids, 0, without, 0, at);
+        System.arraycopy(ids, at + 1, without, at, ids.length - at - 1);
+        return new ConceptSet(without).with(added);
+    }
+
+    private ConceptSet with(int added) {
+        int at = Arrays.binarySearch(ids, added);
+        if (at >= 0) {
+            return INTERNED.intern(this);
+        }
+        at = -at - 1;
+        int[] with = new int[ids.length + 1];
+        System.arraycopy(ids, 0, with, 0, at);
+        with[at] = added;
+        System.arraycopy(ids, at, with, at + 1, ids.length - at);
+        return INTERNED.intern(new ConceptSet(with));
+    }
+
+    public int[] toArray() {
+        return ids.clone();
+    }
+
+    @Serial
+    private Object readResolve() {
+        return INTERNED.intern(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ConceptSet other && hash == other.hash && Arrays.equals(ids, other.ids));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ids);
+    }
+}
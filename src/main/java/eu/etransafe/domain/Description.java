@@ -0,0 +1,62 @@
+package eu.etransafe.domain;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The description of a mapping step, kept as a format and the concepts and terms it is about. Most steps are discarded
+ * or never shown, so the text is only put together when it is rendered. Two descriptions are equal when their format
+ * and arguments are, without rendering them.
+ * <p>
+ * Arguments are rendered as: concepts by name, mapping items as their concept names joined by AND, vocabulary enums by
+ * their value and collections with their elements rendered and joined by the separator, a comma unless given.
+ */
+public record Description(String format, List<Object> args, String separator) implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 4410598237165243L;
+
+    public static Description of(String text) {
+        return new Description(text, List.of(), null);
+    }
+
+    // Uses %s for every argument
+    public static Description of(String format, Object... args) {
+        return new Description(format, Arrays.asList(args), null);
+    }
+
+    public static Description joining(String separator, Collection<?> items) {
+        return new Description(null, Collections.unmodifiableList(new ArrayList<>(items)), separator);
+    }
+
+    public String render() {
+        if (separator != null) {
+            return args.stream().map(Description::render).collect(Collectors.joining(separator));
+        }
+        if (args.isEmpty()) {
+            return format;
+        }
+        return String.format(format, args.stream().map(Description::render).toArray());
+    }
+
+    private static String render(Object arg) {
+        return switch (arg) {
+            case Concept concept -> concept.name();
+            case MappingItem item -> item.humanReadableSimple();
+            case Description description -> description.render();
+            case CDMEnum<?> value -> value.value();
+            case Collection<?> items -> items.stream().map(Description::render).collect(Collectors.joining(", "));
+            case null, default -> String.valueOf(arg);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}
@@ -4,42 +4,72 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import eu.etransafe.exception.RosettaException;
-import eu.etransafe.util.StringUtils;
-import lombok.Data;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Serial;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
 import static eu.etransafe.domain.Mapping.Direction.DOWNHILL;
 
-@Data
+/**
+ * One step of a mapping, the steps before it are reached through the preceding mapping. Mappings are immutable, they are
+ * built with {@link #builder()} and {@link #copy()} builds one that differs from an existing mapping. The total penalty
+ * and hash are computed once when a mapping is built, which keeps sorting and deduplicating large sets of mappings
+ * cheap, and the steps before a mapping are shared between the mappings built on top of them.
+ */
+@Getter
+@ToString
 @Slf4j
-public class Mapping implements Serializable {
+public final class Mapping implements Serializable {
     public static final String DESCR_TO_SINGLE_OR = "Multiple ORs to one mapping";
+    public static final String DESCR_PRECEDING_STEPS = "Preceding steps";
     public static final String ENTIRE = "entire";
     public static final String STRUCTURE = "structure";
     public static final String PART = "part";
     @Serial
-    private static final long serialVersionUID = 1238495742837L;
+    private static final long serialVersionUID = 1238495742838L;
     private static final Collector<CharSequence, ?, String> JOINING_OR = Collectors.joining("\n OR \n");
+    private static final Description PRECEDING_STEPS = Description.of(DESCR_PRECEDING_STEPS);
     @JsonProperty("to")
-    private Set<MappingItem> to = new HashSet<>();
+    private final Set<MappingItem> to;
     @JsonProperty("from")
-    private Set<MappingItem> from;
-    @JsonProperty("description")
-    private String description;
+    private final Set<MappingItem> from;
+    // Rendered when the mapping is serialized, see description()
+    private final Description description;
     @JsonProperty(value = "penalty")
     @JsonInclude() // Always include
-    private double penalty = 0;
+    private final double penalty;
     @JsonProperty("preceding_mapping")
-    private Mapping precedingMapping;
-    private double totalPenalty;
+    private final Mapping precedingMapping;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final double totalPenalty;
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final int hash;
+
+    private Mapping(Builder builder) {
+        this.to = builder.to;
+        this.from = builder.from;
+        this.description = builder.description;
+        this.penalty = builder.penalty;
+        this.precedingMapping = builder.precedingMapping;
+        this.totalPenalty = precedingMapping != null ? totalPenalty(precedingMapping.totalPenalty, penalty) : penalty;
+        this.hash = Objects.hash(to, from, description, penalty, precedingMapping);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     public static Mapping noMapping(Concept... from) {
         var item = new MappingItem(Set.of(from));
@@ -47,9 +77,10 @@ public class Mapping implements Serializable {
     }
 
     public static Mapping noMapping(MappingItem from) {
-        return new Mapping()
+        return builder()
                 .from(from)
-                .description("No mappings available for " + from.humanReadable());
+                .description("No mappings available for " + from.humanReadable())
+                .build();
     }
 
 
@@ -77,66 +108,49 @@ public class Mapping implements Serializable {
                 + from.stream().map(MappingItem::humanReadable).collect(JOINING_OR);
     }
 
-    public Mapping from(Mapping preceding) {
-        if (preceding == null) {
-            log.warn("Passing a preceding null into Mapping, you should not do this (but I will let it pass for now)");
-            return this;
-        }
-        this.precedingMapping = preceding;
-        this.from = preceding.to();
-        return this;
-    }
-
-    public Mapping from(Collection<MappingItem> from) {
-        if (from instanceof Set<MappingItem> set) {
-            this.from = set;
-        } else {
-            this.from = new HashSet<>(from);
-        }
-        return this;
+    // A builder with the same step, to build a mapping that differs from this one in some of it
+    public Builder copy() {
+        var copy = new Builder();
+        copy.to = to;
+        copy.from = from;
+        copy.description = description;
+        copy.penalty = penalty;
+        copy.precedingMapping = precedingMapping;
+        return copy;
     }
 
-    public Mapping from(MappingItem from) {
-        this.from = Set.of(from);
-        return this;
-    }
-
-    public Mapping from(Concept from) {
-        this.from = Set.of(new MappingItem(from));
-        return this;
-    }
-
-    public Mapping to(Concept concept) {
-        this.to = Set.of(new MappingItem(Set.of(concept)));
-        return this;
-    }
-
-    public Mapping to(Set<MappingItem> to) {
-        this.to = to;
-        return this;
+    @JsonProperty("description")
+    public String description() {
+        return description == null ? null : description.render();
     }
 
-    public Mapping to(MappingItem mappingItem) {
-        this.to = Set.of(mappingItem);
-        return this;
+    // The description without rendering it, to build on in a next step
+    @JsonIgnore
+    public Description describedAs() {
+        return description;
     }
 
-    public Mapping precedingMapping(Mapping precedingMapping) {
-        this.precedingMapping = precedingMapping;
-        this.from = precedingMapping.to();
-        return this;
+    /*
+     * The expansion of a concept of the input to a relative as a single step after the root of a search, with the
+     * penalty of all steps since the root. A search that does not explain its results makes these instead of a chain of
+     * expansion steps, the total penalty is the same.
+     */
+    public static Mapping expandedSince(Mapping root, Mapping input, MappingItem to, Concept from, Concept relative,
+                                        Direction direction) {
+        double since = totalPenalty(input.penaltySince(root), stepPenalty(from.name(), relative.name(), direction));
+        return builder().precedingMapping(root).to(to).description(PRECEDING_STEPS).penalty(since).build();
     }
 
-    public Mapping expanded(Concept from, Concept to, Direction direction) {
-        this.description = StringUtils.capitalize(direction.toString().toLowerCase()) + " mapping of " + from.name();
-        this.penalty = calculatePenalty(from, to, direction);
-        return this;
+    // The penalty of the steps after the preceding mapping up to this one, negative when one of them is
+    private double penaltySince(Mapping preceding) {
+        return this == preceding ? 0 : totalPenalty(precedingMapping.penaltySince(preceding), penalty);
     }
 
-    private double calculatePenalty(Concept from, Concept to, Mapping.Direction direction) {
+    // The penalty of one step through the hierarchy, going between structures and their parts is almost free
+    public static double stepPenalty(String from, String to, Mapping.Direction direction) {
         double specialPenalty = 0.1;
-        var fromName = from.name().toLowerCase();
-        var toName = to.name().toLowerCase();
+        var fromName = from.toLowerCase();
+        var toName = to.toLowerCase();
         if (direction.equals(DOWNHILL)) {
             if (toName.contains(ENTIRE) && fromName.contains(PART)) {
                 return specialPenalty;
@@ -152,15 +166,50 @@ public class Mapping implements Serializable {
     @JsonProperty(value = "total_penalty")
     @JsonInclude() //Always include even when 0
     public double totalPenalty() {
-        if (precedingMapping != null) {
-            if (precedingMapping.totalPenalty() < 0 || penalty < 0) {
-                return -(Math.abs(penalty) + Math.abs(precedingMapping.totalPenalty()));
-            } else {
-                return penalty + precedingMapping.totalPenalty();
-            }
-        } else {
-            return penalty;
+        return totalPenalty;
+    }
+
+    // Negative penalties are contagious, a step after a negative total stays negative
+    public static double totalPenalty(double precedingTotal, double penalty) {
+        return precedingTotal < 0 || penalty < 0 ? -(Math.abs(penalty) + Math.abs(precedingTotal)) : penalty + precedingTotal;
+    }
+
+    /*
+     * The same step with the steps before it replaced by one that only has their result and total penalty. That is all
+     * a mapping without explanation needs, and the chain behind it can be garbage collected.
+     */
+    public Mapping detached() {
+        if (precedingMapping == null || precedingMapping.precedingMapping == null) {
+            return this;
+        }
+        return after(precedingMapping.to, precedingMapping.totalPenalty());
+    }
+
+    // This step behind a step to the given result with the given total penalty
+    public Mapping after(Set<MappingItem> precedingTo, double precedingTotal) {
+        var preceding = builder().to(precedingTo).penalty(precedingTotal).description(DESCR_PRECEDING_STEPS).build();
+        var step = copy().precedingMapping(preceding);
+        if (precedingMapping != null && from != precedingMapping.to) {
+            step.from(from);
         }
+        return step.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Mapping other) || hashCode() != other.hashCode()) {
+            return false;
+        }
+        return Double.compare(penalty, other.penalty) == 0 && Objects.equals(to, other.to) && Objects.equals(from, other.from)
+                && Objects.equals(description, other.description) && Objects.equals(precedingMapping, other.precedingMapping);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
     }
 
     public Set<Concept> toConcepts() {
@@ -197,6 +246,94 @@ public class Mapping implements Serializable {
         }
     }
 
+    // Builds one step of a mapping, a builder belongs to the thread using it
+    public static final class Builder {
+        private Set<MappingItem> to = Set.of();
+        private Set<MappingItem> from;
+        private Description description;
+        private double penalty;
+        private Mapping precedingMapping;
+
+        private Builder() {
+        }
+
+        public Builder from(Mapping preceding) {
+            if (preceding == null) {
+                log.warn("Passing a preceding null into Mapping, you should not do this (but I will let it pass for now)");
+                return this;
+            }
+            return precedingMapping(preceding);
+        }
+
+        public Builder from(Collection<MappingItem> from) {
+            if (from instanceof Set<MappingItem> set) {
+                this.from = set;
+            } else {
+                this.from = new HashSet<>(from);
+            }
+            return this;
+        }
+
+        public Builder from(MappingItem from) {
+            this.from = Set.of(from);
+            return this;
+        }
+
+        public Builder from(Concept from) {
+            this.from = Set.of(new MappingItem(from));
+            return this;
+        }
+
+        public Builder to(Concept concept) {
+            this.to = Set.of(new MappingItem(Set.of(concept)));
+            return this;
+        }
+
+        public Builder to(Set<MappingItem> to) {
+            this.to = to;
+            return this;
+        }
+
+        public Builder to(MappingItem mappingItem) {
+            this.to = Set.of(mappingItem);
+            return this;
+        }
+
+        public Builder precedingMapping(Mapping precedingMapping) {
+            this.precedingMapping = precedingMapping;
+            this.from = precedingMapping.to();
+            return this;
+        }
+
+        public Builder description(String description) {
+            return description(description == null ? null : Description.of(description));
+        }
+
+        public Builder description(String format, Object... args) {
+            return description(Description.of(format, args));
+        }
+
+        public Builder description(Description description) {
+            this.description = description;
+            return this;
+        }
+
+        public Builder penalty(double penalty) {
+            this.penalty = penalty;
+            return this;
+        }
+
+        public Builder expanded(Concept from, Concept to, Direction direction) {
+            this.description = Description.of(direction == DOWNHILL ? "Downhill mapping of %s" : "Uphill mapping of %s", from);
+            this.penalty = stepPenalty(from.name(), to.name(), direction);
+            return this;
+        }
+
+        public Mapping build() {
+            return new Mapping(this);
+        }
+    }
+
     public enum Direction {
         UPHILL,
         DOWNHILL
@@ -1,19 +1,57 @@
 package eu.etransafe.domain;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import eu.etransafe.exception.RosettaException;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-public record MappingItem(Set<Concept> concepts) implements Serializable {
+/**
+ * Concepts that together are the source or result of a mapping step. The ids of the concepts are kept as an interned
+ * {@link ConceptSet}, items are compared and hashed by those, so sets of items can be used as keys cheaply.
+ */
+public final class MappingItem implements Serializable {
     @Serial
     private static final long serialVersionUID = 223076576L;
 
+    @JsonProperty("concepts")
+    private final Set<Concept> concepts;
+    @JsonIgnore
+    private final ConceptSet ids;
+
+    @JsonCreator
+    public MappingItem(@JsonProperty("concepts") Set<Concept> concepts) {
+        this(concepts, ConceptSet.of(concepts));
+    }
+
     public MappingItem(Concept concept) {
-        this(Set.of(concept));
+        this(Set.of(concept), ConceptSet.of(concept.id()));
+    }
+
+    private MappingItem(Set<Concept> concepts, ConceptSet ids) {
+        this.concepts = concepts;
+        this.ids = ids;
+    }
+
+    public Set<Concept> concepts() {
+        return concepts;
+    }
+
+    public ConceptSet ids() {
+        return ids;
+    }
+
+    // The item after replacing a concept by another one, e.g. by its parent or child when expanding
+    public MappingItem replace(Concept removed, Concept added) {
+        Set<Concept> replaced = new HashSet<>(concepts);
+        replaced.remove(removed);
+        replaced.add(added);
+        return new MappingItem(replaced, ids.replace(removed.id(), added.id()));
     }
 
     public String humanReadable() {
@@ -44,4 +82,19 @@ public record MappingItem(Set<Concept> concepts) implements Serializable {
     public int size() {
         return concepts().size();
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof MappingItem other && ids.equals(other.ids));
+    }
+
+    @Override
+    public int hashCode() {
+        return ids.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "MappingItem[concepts=" + concepts + "]";
+    }
 }
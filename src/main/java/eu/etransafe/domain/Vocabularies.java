@@ -22,6 +22,8 @@ public class Vocabularies {
     public static final Set<Vocabulary.Identifier> PRECLINICAL_ORGANS = EnumSet.of(MA, SPECIMEN);
     public static final Set<Vocabulary.Identifier> SEND = EnumSet.of(NON_NEOPLASTIC_FINDING, NEOPLASM_TYPE, LABORATORY_TEST_NAME, SPECIMEN);
     public static final Set<Vocabulary.Identifier> SNOMED = EnumSet.of(Vocabulary.Identifier.SNOMED);
+    // Clinical, intermediary and preclinical together, all vocabularies the in-memory caches are built from
+    public static final Set<Vocabulary.Identifier> SUPPORTED = EnumSet.of(MEDDRA, Vocabulary.Identifier.SNOMED, HPATH, SPECIMEN, MA, NON_NEOPLASTIC_FINDING, NEOPLASM_TYPE, LABORATORY_TEST_NAME);
 
     private Vocabularies() {
     }
@@ -0,0 +1,261 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Repository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static eu.etransafe.domain.CDMEnum.valueOfFromDb;
+
+/**
+ * Reads an Athena vocabulary bundle (the tab separated CONCEPT.csv, CONCEPT_RELATIONSHIP.csv, CONCEPT_ANCESTOR.csv and
+ * CONCEPT_SYNONYM.csv files) into a {@link VocabularySnapshot}, so the in-memory hierarchy and mapping tables, and the
+ * concept lookups of requests, are served without loading the bundle into a db first. Only the rows those need are
+ * kept, the same selection as the snapshot export makes from the db. Without a synonym file there are no synonyms.
+ * <p>
+ * A plain Athena download has neither the preclinical vocabularies nor the eTRANSAFE mappings between them and SNOMED.
+ * The directory has to hold the download merged with the eTRANSAFE vocabulary files, with an extra source column in
+ * CONCEPT_RELATIONSHIP.csv that is eTRANSAFE for the eTRANSAFE mappings, like the source column in the db. Without that
+ * column the preclinical to SNOMED mappings would silently be empty, so the bundle is refused.
+ */
+@Slf4j
+@Repository
+public class AthenaRepo {
+
+    static final String CONCEPT = "CONCEPT.csv";
+    static final String CONCEPT_RELATIONSHIP = "CONCEPT_RELATIONSHIP.csv";
+    static final String CONCEPT_ANCESTOR = "CONCEPT_ANCESTOR.csv";
+    static final String CONCEPT_SYNONYM = "CONCEPT_SYNONYM.csv";
+
+    private static final char SEPARATOR = '\t';
+    private static final String IS_A = "Is a";
+    private static final String MAPS_TO = "Maps to";
+    private static final Set<String> TO_MEDDRA = Set.of("SNOMED - MedDRA eq", "Mapped from");
+    // The relationships requests look up, Other stands for the ones they do not know
+    private static final Map<String, ConceptRelationship.Identifier> LOOKED_UP = Arrays.stream(ConceptRelationship.Identifier.values())
+            .filter(r -> r != ConceptRelationship.Identifier.OTHER)
+            .collect(Collectors.toMap(ConceptRelationship.Identifier::value, Function.identity()));
+    // Not in Athena downloads, added to the relationships of the eTRANSAFE vocabulary files
+    private static final String SOURCE = "source";
+
+    public VocabularySnapshot read(Path directory, Collection<Vocabulary.Identifier> vocabularies,
+                                   Collection<Vocabulary.Identifier> mappedVocabularies) {
+        long start = System.currentTimeMillis();
+        Map<Integer, ConceptRow> concepts = concepts(directory.resolve(CONCEPT), vocabularies);
+        // The relationship and the ancestor file are by far the largest, they only depend on the concepts
+        var relationships = CompletableFuture.supplyAsync(() ->
+                relationships(directory.resolve(CONCEPT_RELATIONSHIP), concepts, mappedVocabularies));
+        var synonyms = CompletableFuture.supplyAsync(() -> synonyms(directory.resolve(CONCEPT_SYNONYM), concepts));
+        List<int[]> ancestors = ancestors(directory.resolve(CONCEPT_ANCESTOR), concepts);
+
+        var builder = VocabularySnapshot.builder();
+        concepts.values().forEach(c -> builder.concept(c.id(), c.name(), c.code(), c.conceptClass(), c.invalidReason(),
+                c.vocabulary(), c.domain()));
+        ancestors.forEach(edge -> builder.ancestor(edge[0], edge[1]));
+        for (RelationshipRow r : join(relationships)) {
+            if (r.isA()) {
+                builder.isA(r.conceptOne(), r.conceptTwo());
+            }
+            if (r.kept()) {
+                builder.relationship(r.conceptOne(), r.conceptTwo(), r.relationshipId(), r.invalidReason(), r.source());
+            }
+        }
+        join(synonyms).forEach(s -> builder.synonym(s.conceptId(), s.name()));
+        var snapshot = builder.build();
+        log.info("Read {} concepts, {} relationships and {} synonyms from Athena vocabularies {} in {} milliseconds",
+                snapshot.concepts(), snapshot.relationships(), snapshot.synonyms(), directory, System.currentTimeMillis() - start);
+        return snapshot;
+    }
+
+    private Map<Integer, ConceptRow> concepts(Path file, Collection<Vocabulary.Identifier> vocabularies) {
+        // Matched on the exact vocabulary id, the thousands of concepts of other vocabularies are not parsed any further
+        Map<String, Vocabulary.Identifier> accepted = vocabularies.stream()
+                .collect(Collectors.toMap(Vocabulary.Identifier::value, Function.identity()));
+        Map<String, Domain> domains = new ConcurrentHashMap<>();
+        return rows(file, (columns, rows) -> rows
+                .map(row -> {
+                    var vocabulary = accepted.get(columns.get(row, "vocabulary_id"));
+                    if (vocabulary == null) {
+                        return null;
+                    }
+                    String domain = columns.get(row, "domain_id");
+                    return new ConceptRow(Integer.parseInt(columns.get(row, "concept_id")), columns.get(row, "concept_name"),
+                            columns.get(row, "concept_code"), columns.get(row, "concept_class_id"),
+                            columns.get(row, "invalid_reason"), vocabulary,
+                            domain == null ? null : domains.computeIfAbsent(domain, d -> valueOfFromDb(d, Domain.class)));
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toMap(ConceptRow::id, Function.identity(), (first, second) -> first)));
+    }
+
+    // Is a edges between the concepts, and the relationships the snapshot export selects
+    private List<RelationshipRow> relationships(Path file, Map<Integer, ConceptRow> concepts,
+                                                Collection<Vocabulary.Identifier> mappedVocabularies) {
+        Map<String, ConceptRelationship.Identifier> relationshipIds = new ConcurrentHashMap<>();
+        return rows(file, (columns, rows) -> {
+            if (!columns.has(SOURCE)) {
+                log.error("Athena file {} has no {} column to tell the eTRANSAFE mappings apart", file, SOURCE);
+                throw new RosettaException("The Athena relationships have no source column, the eTRANSAFE mappings are missing");
+            }
+            return rows
+                    .map(row -> {
+                        var one = concepts.get(Integer.parseInt(columns.get(row, "concept_id_1")));
+                        var two = one == null ? null : concepts.get(Integer.parseInt(columns.get(row, "concept_id_2")));
+                        if (two == null) {
+                            return null;
+                        }
+                        String relationship = columns.get(row, "relationship_id");
+                        boolean isA = IS_A.equals(relationship);
+                        boolean kept = MAPS_TO.equals(relationship) || LOOKED_UP.containsKey(relationship)
+                                || mappedVocabularies.contains(one.vocabulary()) || mappedVocabularies.contains(two.vocabulary())
+                                || (two.vocabulary() == Vocabulary.Identifier.MEDDRA && TO_MEDDRA.contains(relationship));
+                        if (!kept && !isA) {
+                            return null;
+                        }
+                        // Only the kept relationships need the enum, there are far more relationship ids than it knows
+                        var relationshipId = !kept || relationship == null ? null : relationshipIds.computeIfAbsent(relationship,
+                                r -> valueOfFromDb(r, ConceptRelationship.Identifier.class));
+                        return new RelationshipRow(one.id(), two.id(), relationshipId, columns.get(row, "invalid_reason"),
+                                columns.get(row, SOURCE), isA, kept);
+                    })
+                    .filter(Objects::nonNull)
+                    .toList();
+        });
+    }
+
+    private List<int[]> ancestors(Path file, Map<Integer, ConceptRow> concepts) {
+        return rows(file, (columns, rows) -> rows
+                .filter(row -> "1".equals(columns.get(row, "min_levels_of_separation")))
+                .map(row -> new int[]{Integer.parseInt(columns.get(row, "ancestor_concept_id")),
+                        Integer.parseInt(columns.get(row, "descendant_concept_id"))})
+                .filter(edge -> edge[0] != edge[1] && concepts.containsKey(edge[0]) && concepts.containsKey(edge[1]))
+                .toList());
+    }
+
+    private List<SynonymRow> synonyms(Path file, Map<Integer, ConceptRow> concepts) {
+        if (!Files.exists(file)) {
+            log.warn("Athena file {} not found, concepts are not found by their synonyms", file);
+            return List.of();
+        }
+        return rows(file, (columns, rows) -> rows
+                .map(row -> {
+                    int conceptId = Integer.parseInt(columns.get(row, "concept_id"));
+                    return concepts.containsKey(conceptId) ? new SynonymRow(conceptId, columns.get(row, "concept_synonym_name")) : null;
+                })
+                .filter(Objects::nonNull)
+                .toList());
+    }
+
+    // The rows after the header are parsed by a parallel stream, the file is split over the cores
+    private static <T> T rows(Path file, RowParser<T> parser) {
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(file); Stream<String> lines = Files.lines(file)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new RosettaException("Athena file " + file + " is empty");
+            }
+            var columns = new Columns(header);
+            T result = parser.parse(columns, lines.parallel().skip(1).filter(line -> !line.isEmpty()).map(Columns::split));
+            log.debug("Parsed {} in {} milliseconds", file, System.currentTimeMillis() - start);
+            return result;
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to read Athena file {}", file, e);
+            throw new RosettaException("Could not read the Athena vocabularies");
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            log.error("Malformed row in Athena file {}", file, e);
+            throw new RosettaException("Could not read the Athena vocabularies");
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowParser<T> {
+        T parse(Columns columns, Stream<String[]> rows);
+    }
+
+    // Columns are looked up by name, Athena exports do not all have the same column order
+    private static final class Columns {
+
+        private final Map<String, Integer> index = new HashMap<>();
+
+        private Columns(String header) {
+            String[] names = split(header);
+            for (int i = 0; i < names.length; i++) {
+                index.put(names[i].trim().toLowerCase(Locale.ROOT), i);
+            }
+        }
+
+        private boolean has(String column) {
+            return index.containsKey(column);
+        }
+
+        // Empty values are nulls, like the NULL columns in the db
+        private String get(String[] row, String column) {
+            Integer i = index.get(column);
+            if (i == null || i >= row.length || row[i].isEmpty()) {
+                return null;
+            }
+            return row[i];
+        }
+
+        private static String[] split(String line) {
+            int count = 1;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == SEPARATOR) {
+                    count++;
+                }
+            }
+            String[] values = new String[count];
+            int from = 0;
+            for (int i = 0; i < count; i++) {
+                int to = line.indexOf(SEPARATOR, from);
+                values[i] = line.substring(from, to < 0 ? line.length() : to);
+                from = to + 1;
+            }
+            return values;
+        }
+    }
+
+    private record ConceptRow(int id, String name, String code, String conceptClass, String invalidReason,
+                              Vocabulary.Identifier vocabulary, Domain domain) {
+    }
+
+    private record RelationshipRow(int conceptOne, int conceptTwo, ConceptRelationship.Identifier relationshipId,
+                                   String invalidReason, String source, boolean isA, boolean kept) {
+    }
+
+    private record SynonymRow(int conceptId, String name) {
+    }
+}
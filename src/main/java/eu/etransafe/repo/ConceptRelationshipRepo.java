@@ -48,6 +48,24 @@ public interface ConceptRelationshipRepo extends JpaRepository<ConceptRelationsh
             """)
     List<ConceptRelationship> findAllMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to, ConceptRelationship.Identifier mapsTo);
 
+    // Same source concepts as ConceptRepo.findAllByVocabularyAndDomainMappedForETransafe, with all their mappings in one go
+    @Query(value = """
+            SELECT DISTINCT cr
+            FROM ConceptRelationship cr
+            JOIN FETCH cr.conceptOne conceptOne
+            JOIN FETCH cr.conceptTwo conceptTwo
+            WHERE conceptOne.vocabulary IN :from
+            AND conceptTwo.vocabulary IN :to
+            AND (conceptOne.invalidReason IS NULL OR conceptOne.invalidReason NOT IN ('U', 'D'))
+            AND EXISTS (
+                SELECT 1
+                FROM ConceptRelationship etransafe
+                WHERE etransafe.conceptOne = conceptOne
+                AND etransafe.source = 'eTRANSAFE'
+            )
+            """)
+    List<ConceptRelationship> findAllETransafeMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to);
+
     @Query(value = """
             SELECT cr
             FROM ConceptRelationship cr
@@ -24,33 +24,6 @@ public interface ConceptRepo extends JpaRepository<Concept, Integer> {
 
     Set<Concept> findDistinctByNameAndVocabularyIn(String conceptName, Set<Vocabulary.Identifier> vocabularyIds);
 
-    @Query(value = """
-            SELECT DISTINCT c.*
-            FROM concept_ancestor a, concept c
-            WHERE a.ancestor_concept_id = :id
-            AND c.concept_id = a.descendant_concept_id
-            AND a.descendant_concept_id != a.ancestor_concept_id
-            AND min_levels_of_separation = 1
-            """, nativeQuery = true)
-    List<Concept> findChildrenById(Integer id);
-
-    @Query(value = """
-            SELECT DISTINCT c.*
-            FROM concept_relationship cr, concept c
-            WHERE cr.concept_id_1 = :id
-            AND c.concept_id = cr.concept_id_2
-            AND cr.relationship_id = 'Is a'
-            UNION
-            SELECT DISTINCT c.*
-            FROM concept_ancestor a, concept c
-            WHERE a.descendant_concept_id = :id
-            AND c.concept_id = a.ancestor_concept_id
-            AND a.descendant_concept_id != a.ancestor_concept_id
-            AND min_levels_of_separation = 1
-            """, nativeQuery = true)
-    List<Concept> findParentsById(Integer id);
-
-
     @Query(value = """
             SELECT DISTINCT c
             FROM ConceptRelationship cr, Concept c
@@ -72,6 +45,38 @@ public interface ConceptRepo extends JpaRepository<Concept, Integer> {
             """)
     Set<Concept> map(Integer conceptId, Set<ConceptRelationship.Identifier> relationships, Set<Vocabulary.Identifier> vocabularies);
 
+    // Concepts that every one of the source concepts maps to, count has to be the number of distinct source ids
+    @Query(value = """
+            SELECT DISTINCT c
+            FROM Concept c
+            WHERE c.id IN (
+                SELECT cr.conceptTwo.id
+                FROM ConceptRelationship cr
+                WHERE cr.conceptOne.id IN :conceptIds
+                AND cr.relationshipId IN :relationships
+                GROUP BY cr.conceptTwo.id
+                HAVING COUNT(DISTINCT cr.conceptOne.id) = :count
+            )
+            AND c.domain IN :domains
+            AND c.vocabulary IN :vocabularies
+            """)
+    Set<Concept> mapShared(Set<Integer> conceptIds, long count, Set<ConceptRelationship.Identifier> relationships, Set<Domain> domains, Set<Vocabulary.Identifier> vocabularies);
+
+    @Query(value = """
+            SELECT DISTINCT c
+            FROM Concept c
+            WHERE c.id IN (
+                SELECT cr.conceptTwo.id
+                FROM ConceptRelationship cr
+                WHERE cr.conceptOne.id IN :conceptIds
+                AND cr.relationshipId IN :relationships
+                GROUP BY cr.conceptTwo.id
+                HAVING COUNT(DISTINCT cr.conceptOne.id) = :count
+            )
+            AND c.vocabulary IN :vocabularies
+            """)
+    Set<Concept> mapShared(Set<Integer> conceptIds, long count, Set<ConceptRelationship.Identifier> relationships, Set<Vocabulary.Identifier> vocabularies);
+
 
     @Query(value = """
                       SELECT DISTINCT cr.conceptTwo
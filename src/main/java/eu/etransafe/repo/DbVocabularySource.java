@@ -0,0 +1,46 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+public class DbVocabularySource implements VocabularySource {
+
+    private final HierarchyRepo hierarchyRepo;
+    private final ConceptRelationshipRepo relationshipRepo;
+
+    public DbVocabularySource(HierarchyRepo hierarchyRepo, ConceptRelationshipRepo relationshipRepo) {
+        this.hierarchyRepo = hierarchyRepo;
+        this.relationshipRepo = relationshipRepo;
+    }
+
+    @Override
+    public ConceptHierarchy hierarchy(Collection<Vocabulary.Identifier> vocabularies) {
+        return hierarchyRepo.load(vocabularies);
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsTo(Set<Vocabulary.Identifier> to) {
+        return relationshipRepo.findAllMappingsTo(to);
+    }
+
+    @Override
+    public List<ConceptRelationship> eTransafeMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to) {
+        return relationshipRepo.findAllETransafeMappingsFromTo(from, to);
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to,
+                                                    ConceptRelationship.Identifier relationship) {
+        return relationshipRepo.findAllMappingsFromTo(from, to, relationship);
+    }
+
+    @Override
+    public VocabularySnapshot lookups() {
+        return null;
+    }
+}
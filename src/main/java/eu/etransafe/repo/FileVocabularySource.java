@@ -0,0 +1,94 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/*
+ * Serves the caches and the lookups from vocabulary data read from disk, a snapshot file or a directory of Athena files.
+ * The data is read again when a file has been replaced.
+ */
+public class FileVocabularySource implements VocabularySource {
+
+    private final Path path;
+    private final Function<Path, VocabularySnapshot> reader;
+    private VocabularySnapshot snapshot;
+    private FileTime version;
+
+    public FileVocabularySource(Path path, Function<Path, VocabularySnapshot> reader) {
+        this.path = path;
+        this.reader = reader;
+    }
+
+    // The caches load in parallel, whoever comes first reads the file and the others reuse it
+    private synchronized VocabularySnapshot snapshot() {
+        FileTime modified = lastModified();
+        if (snapshot == null || !modified.equals(version)) {
+            snapshot = reader.apply(path);
+            version = modified;
+        }
+        return snapshot;
+    }
+
+    /*
+     * The newest of the files, replacing a file in a directory does not always change the time of the directory itself,
+     * e.g. when it is copied over the old one
+     */
+    private FileTime lastModified() {
+        try {
+            if (!Files.isDirectory(path)) {
+                return Files.getLastModifiedTime(path);
+            }
+            try (Stream<Path> files = Files.list(path)) {
+                FileTime newest = FileTime.fromMillis(0);
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    var modified = Files.getLastModifiedTime(file);
+                    if (Files.isRegularFile(file) && modified.compareTo(newest) > 0) {
+                        newest = modified;
+                    }
+                }
+                return newest;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new RosettaException("Vocabulary data " + path + " not found");
+        }
+    }
+
+    @Override
+    public ConceptHierarchy hierarchy(Collection<Vocabulary.Identifier> vocabularies) {
+        return snapshot().hierarchy(vocabularies);
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsTo(Set<Vocabulary.Identifier> to) {
+        return snapshot().mappingsTo(to);
+    }
+
+    @Override
+    public List<ConceptRelationship> eTransafeMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to) {
+        return snapshot().eTransafeMappingsFromTo(from, to);
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to,
+                                                    ConceptRelationship.Identifier relationship) {
+        return snapshot().mappingsFromTo(from, to, relationship);
+    }
+
+    @Override
+    public VocabularySnapshot lookups() {
+        return snapshot();
+    }
+}
@@ -0,0 +1,181 @@
+package eu.etransafe.repo;
+
+import com.google.common.collect.Lists;
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static eu.etransafe.domain.CDMEnum.valueOfFromDb;
+import static java.sql.ResultSet.CONCUR_READ_ONLY;
+import static java.sql.ResultSet.TYPE_FORWARD_ONLY;
+
+// Plain JDBC on purpose, going through Hibernate for a couple of million rows is way too slow
+@Slf4j
+@Repository
+public class HierarchyRepo {
+
+    private static final String ANCESTOR_EDGES = """
+            SELECT ancestor_concept_id, descendant_concept_id
+            FROM concept_ancestor
+            WHERE min_levels_of_separation = 1
+            AND ancestor_concept_id != descendant_concept_id
+            """;
+
+    private static final String IS_A_EDGES = """
+            SELECT concept_id_1, concept_id_2
+            FROM concept_relationship
+            WHERE relationship_id = 'Is a'
+            """;
+
+    private static final String CONCEPTS = """
+            SELECT concept_id, concept_name, domain_id, vocabulary_id, concept_class_id, concept_code, invalid_reason
+            FROM concept
+            WHERE vocabulary_id IN (%s)
+            """;
+
+    private static final String CHILDREN_OF = """
+            SELECT DISTINCT a.ancestor_concept_id AS source_id, c.*
+            FROM concept_ancestor a
+            JOIN concept c ON c.concept_id = a.descendant_concept_id
+            WHERE a.ancestor_concept_id IN (%1$s)
+            AND a.descendant_concept_id != a.ancestor_concept_id
+            AND a.min_levels_of_separation = 1
+            """;
+
+    private static final String PARENTS_OF = """
+            SELECT DISTINCT cr.concept_id_1 AS source_id, c.*
+            FROM concept_relationship cr
+            JOIN concept c ON c.concept_id = cr.concept_id_2
+            WHERE cr.concept_id_1 IN (%1$s)
+            AND cr.relationship_id = 'Is a'
+            UNION
+            SELECT DISTINCT a.descendant_concept_id AS source_id, c.*
+            FROM concept_ancestor a
+            JOIN concept c ON c.concept_id = a.ancestor_concept_id
+            WHERE a.descendant_concept_id IN (%1$s)
+            AND a.descendant_concept_id != a.ancestor_concept_id
+            AND a.min_levels_of_separation = 1
+            """;
+
+    // Keep the IN lists at a size the db is comfortable with
+    private static final int BATCH_SIZE = 1000;
+
+    private final DataSource dataSource;
+
+    public HierarchyRepo(@Nullable DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public ConceptHierarchy load(Collection<Vocabulary.Identifier> vocabularies) {
+        return load(vocabularies, ConceptHierarchy.builder()).build();
+    }
+
+    // Streams the concepts of the vocabularies and all direct hierarchy edges into the sink
+    public <T extends ConceptHierarchy.Sink> T load(Collection<Vocabulary.Identifier> vocabularies, T sink) {
+        var questionMarks = vocabularies.stream().map(v -> "?").collect(Collectors.joining(","));
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement stmt = streaming(conn, CONCEPTS.formatted(questionMarks))) {
+                int pos = 1;
+                for (Vocabulary.Identifier vocabulary : vocabularies) {
+                    stmt.setString(pos++, vocabulary.value());
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        sink.concept(rs.getInt(1), rs.getString(2), rs.getString(6), rs.getString(5), rs.getString(7),
+                                valueOfFromDb(rs.getString(4), Vocabulary.Identifier.class),
+                                valueOfFromDb(rs.getString(3), Domain.class));
+                    }
+                }
+            }
+            try (PreparedStatement stmt = streaming(conn, ANCESTOR_EDGES); ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    sink.ancestor(rs.getInt(1), rs.getInt(2));
+                }
+            }
+            try (PreparedStatement stmt = streaming(conn, IS_A_EDGES); ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    sink.isA(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed to load the concept hierarchy", e);
+            throw new RosettaException("Something went wrong with the db");
+        }
+        return sink;
+    }
+
+    public Map<Integer, List<Concept>> findChildren(Collection<Integer> ids) {
+        return findRelatives(CHILDREN_OF, 1, ids);
+    }
+
+    public Map<Integer, List<Concept>> findParents(Collection<Integer> ids) {
+        // The parents query has the IN list twice, once for each side of the UNION
+        return findRelatives(PARENTS_OF, 2, ids);
+    }
+
+    private Map<Integer, List<Concept>> findRelatives(String sql, int inLists, Collection<Integer> ids) {
+        Map<Integer, List<Concept>> result = new HashMap<>(ids.size());
+        if (ids.isEmpty()) {
+            return result;
+        }
+        var batches = Lists.partition(List.copyOf(ids), BATCH_SIZE);
+        try (Connection conn = dataSource.getConnection()) {
+            for (List<Integer> batch : batches) {
+                var questionMarks = batch.stream().map(id -> "?").collect(Collectors.joining(","));
+                try (PreparedStatement stmt = conn.prepareStatement(sql.formatted(questionMarks))) {
+                    int pos = 1;
+                    for (int r = 0; r < inLists; r++) {
+                        for (Integer id : batch) {
+                            stmt.setInt(pos++, id);
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            result.computeIfAbsent(rs.getInt("source_id"), k -> new ArrayList<>()).add(concept(rs));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed to query relatives of {} concepts", ids.size(), e);
+            throw new RosettaException("Something went wrong with the db");
+        }
+        return result;
+    }
+
+    private Concept concept(ResultSet rs) throws SQLException {
+        return Concept.builder()
+                .id(rs.getInt("concept_id"))
+                .name(rs.getString("concept_name"))
+                .code(rs.getString("concept_code"))
+                .conceptClass(rs.getString("concept_class_id"))
+                .invalidReason(rs.getString("invalid_reason"))
+                .vocabulary(valueOfFromDb(rs.getString("vocabulary_id"), Vocabulary.Identifier.class))
+                .domain(valueOfFromDb(rs.getString("domain_id"), Domain.class))
+                .build();
+    }
+
+    // Forward only, read only and a fetch size of MIN_VALUE makes the MySQL driver stream rows instead of buffering them all
+    static PreparedStatement streaming(Connection conn, String sql) throws SQLException {
+        var stmt = conn.prepareStatement(sql, TYPE_FORWARD_ONLY, CONCUR_READ_ONLY);
+        stmt.setFetchSize(Integer.MIN_VALUE);
+        return stmt;
+    }
+}
@@ -0,0 +1,408 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.CDMEnum;
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static eu.etransafe.domain.CDMEnum.valueOfFromDb;
+import static eu.etransafe.repo.HierarchyRepo.streaming;
+
+/**
+ * Binary snapshot of the vocabulary data the in-memory caches are built from, so replicas can start from a file
+ * instead of querying the db. The file is a header followed by tagged records: concepts, hierarchy edges, relationships
+ * and synonyms. Low cardinality strings (vocabulary, domain, class, relationship, source) are written once and then
+ * referred to by index.
+ * <p>
+ * Besides the concept hierarchy and the mapping tables a snapshot answers the lookups of concepts by id, code, name or
+ * synonym and the relationship queries of a request. Writing one reads the db, the wildcard searches still need it.
+ */
+@Slf4j
+@Repository
+public class SnapshotRepo {
+
+    static final int MAGIC = 0x524F5353;
+    // Version 2 added the SNOMED - MedDRA eq and Mapped from links to MedDRA, version 3 the synonyms and the
+    // relationships requests look up. Older files lack them.
+    static final int VERSION = 3;
+
+    private static final byte END = 0;
+    private static final byte CONCEPT = 1;
+    private static final byte ANCESTOR = 2;
+    private static final byte IS_A = 3;
+    private static final byte RELATIONSHIP = 4;
+    private static final byte SYNONYM = 5;
+
+    private static final int NULL = -1;
+    private static final int NEW_SYMBOL = -2;
+
+    // The relationships the caches are built from, and the ones requests look up, like the SNOMED finding sites. The
+    // other links to MedDRA are what preclinical to clinical mappings look for, their concepts are kept in memory.
+    private static final String RELATIONSHIPS = """
+            SELECT cr.concept_id_1, cr.concept_id_2, cr.relationship_id, cr.invalid_reason, cr.source
+            FROM concept_relationship cr
+            JOIN concept c1 ON c1.concept_id = cr.concept_id_1
+            JOIN concept c2 ON c2.concept_id = cr.concept_id_2
+            WHERE c1.vocabulary_id IN (%1$s)
+            AND c2.vocabulary_id IN (%1$s)
+            AND (c1.vocabulary_id IN (%2$s) OR c2.vocabulary_id IN (%2$s) OR cr.relationship_id IN (%3$s)
+                OR (c2.vocabulary_id = 'MedDRA' AND cr.relationship_id IN ('SNOMED - MedDRA eq', 'Mapped from')))
+            """;
+
+    private static final String SYNONYMS = """
+            SELECT s.concept_id, s.concept_synonym_name
+            FROM concept_synonym s
+            JOIN concept c ON c.concept_id = s.concept_id
+            WHERE c.vocabulary_id IN (%s)
+            """;
+
+    // Every relationship id requests ask for, Other stands for the ones they do not know
+    private static final List<ConceptRelationship.Identifier> LOOKED_UP = Arrays.stream(ConceptRelationship.Identifier.values())
+            .filter(r -> r != ConceptRelationship.Identifier.OTHER)
+            .toList();
+
+    private final DataSource dataSource;
+    private final HierarchyRepo hierarchyRepo;
+
+    public SnapshotRepo(@Nullable DataSource dataSource, HierarchyRepo hierarchyRepo) {
+        this.dataSource = dataSource;
+        this.hierarchyRepo = hierarchyRepo;
+    }
+
+    /*
+     * Writes the concepts of the vocabularies with their hierarchy and synonyms, the relationships from or to the mapped
+     * vocabularies and the ones requests look up. Written to a temporary file first, a replica starting at the same time never sees half a file.
+     */
+    public void export(Path file, Collection<Vocabulary.Identifier> vocabularies, Collection<Vocabulary.Identifier> mappedVocabularies) {
+        long start = System.currentTimeMillis();
+        write(file, writer -> {
+            hierarchyRepo.load(vocabularies, writer);
+            exportRelationships(writer, vocabularies, mappedVocabularies);
+            exportSynonyms(writer, vocabularies);
+        });
+        log.info("Exported vocabulary snapshot to {} in {} milliseconds", file, System.currentTimeMillis() - start);
+    }
+
+    void write(Path file, Consumer<Writer> content) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var writer = new Writer(temp)) {
+            content.accept(writer);
+            writer.end();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to write vocabulary snapshot {}", file, e);
+            throw new RosettaException("Could not write the vocabulary snapshot");
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to move vocabulary snapshot to {}", file, e);
+            throw new RosettaException("Could not write the vocabulary snapshot");
+        }
+    }
+
+    private void exportRelationships(Writer writer, Collection<Vocabulary.Identifier> vocabularies,
+                                     Collection<Vocabulary.Identifier> mappedVocabularies) {
+        var sql = RELATIONSHIPS.formatted(questionMarks(vocabularies), questionMarks(mappedVocabularies), questionMarks(LOOKED_UP));
+        try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = streaming(conn, sql)) {
+            int pos = 1;
+            for (Collection<Vocabulary.Identifier> list : List.of(vocabularies, vocabularies, mappedVocabularies, mappedVocabularies)) {
+                for (Vocabulary.Identifier vocabulary : list) {
+                    stmt.setString(pos++, vocabulary.value());
+                }
+            }
+            for (ConceptRelationship.Identifier relationship : LOOKED_UP) {
+                stmt.setString(pos++, relationship.value());
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    writer.relationship(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getString(5));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed to export the concept relationships", e);
+            throw new RosettaException("Something went wrong with the db");
+        }
+    }
+
+    private void exportSynonyms(Writer writer, Collection<Vocabulary.Identifier> vocabularies) {
+        var sql = SYNONYMS.formatted(questionMarks(vocabularies));
+        try (Connection conn = dataSource.getConnection(); PreparedStatement stmt = streaming(conn, sql)) {
+            int pos = 1;
+            for (Vocabulary.Identifier vocabulary : vocabularies) {
+                stmt.setString(pos++, vocabulary.value());
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    writer.synonym(rs.getInt(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Failed to export the concept synonyms", e);
+            throw new RosettaException("Something went wrong with the db");
+        }
+    }
+
+    // The file is mapped into memory, reading it is a single pass without any copying through stream buffers
+    public VocabularySnapshot read(Path file) {
+        long start = System.currentTimeMillis();
+        var builder = VocabularySnapshot.builder();
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new RosettaException("Vocabulary snapshot " + file + " is too large to map");
+            }
+            var reader = new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            reader.header(file);
+            reader.records(builder);
+        } catch (IOException e) {
+            log.error("Failed to read vocabulary snapshot {}", file, e);
+            throw new RosettaException("Could not read the vocabulary snapshot");
+        }
+        var snapshot = builder.build();
+        log.info("Read {} concepts, {} relationships and {} synonyms from vocabulary snapshot {} in {} milliseconds",
+                snapshot.concepts(), snapshot.relationships(), snapshot.synonyms(), file, System.currentTimeMillis() - start);
+        return snapshot;
+    }
+
+    private static String questionMarks(Collection<?> values) {
+        return values.stream().map(v -> "?").collect(Collectors.joining(","));
+    }
+
+    static final class Writer implements ConceptHierarchy.Sink, AutoCloseable {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> symbols = new HashMap<>();
+        // Edges are only written when both concepts are in the file, so the ids are kept until the first edge
+        private int[] conceptIds = new int[1024];
+        private int concepts;
+        private boolean sorted;
+
+        private Writer(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        @Override
+        public Writer concept(int id, String name, String code, String conceptClass, String invalidReason,
+                              Vocabulary.Identifier vocabulary, Domain domain) {
+            if (concepts == conceptIds.length) {
+                conceptIds = Arrays.copyOf(conceptIds, Math.max(concepts * 2, 1024));
+            }
+            conceptIds[concepts++] = id;
+            sorted = false;
+            try {
+                out.writeByte(CONCEPT);
+                out.writeInt(id);
+                writeString(name);
+                writeString(code);
+                writeSymbol(conceptClass);
+                writeSymbol(invalidReason);
+                writeSymbol(vocabulary == null ? null : vocabulary.value());
+                writeSymbol(domain == null ? null : domain.value());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        @Override
+        public Writer ancestor(int ancestorId, int descendantId) {
+            edge(ANCESTOR, ancestorId, descendantId);
+            return this;
+        }
+
+        @Override
+        public Writer isA(int childId, int parentId) {
+            edge(IS_A, childId, parentId);
+            return this;
+        }
+
+        void relationship(int conceptOne, int conceptTwo, String relationshipId, String invalidReason, String source) {
+            if (!known(conceptOne) || !known(conceptTwo)) {
+                return;
+            }
+            try {
+                out.writeByte(RELATIONSHIP);
+                out.writeInt(conceptOne);
+                out.writeInt(conceptTwo);
+                writeSymbol(relationshipId);
+                writeString(invalidReason);
+                writeSymbol(source);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void synonym(int conceptId, String name) {
+            if (!known(conceptId)) {
+                return;
+            }
+            try {
+                out.writeByte(SYNONYM);
+                out.writeInt(conceptId);
+                writeString(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void edge(byte type, int first, int second) {
+            if (!known(first) || !known(second)) {
+                return;
+            }
+            try {
+                out.writeByte(type);
+                out.writeInt(first);
+                out.writeInt(second);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private boolean known(int conceptId) {
+            if (!sorted) {
+                conceptIds = Arrays.copyOf(conceptIds, concepts);
+                Arrays.sort(conceptIds);
+                sorted = true;
+            }
+            return Arrays.binarySearch(conceptIds, 0, concepts, conceptId) >= 0;
+        }
+
+        private void end() throws IOException {
+            out.writeByte(END);
+        }
+
+        private void writeSymbol(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            Integer index = symbols.get(value);
+            if (index == null) {
+                symbols.put(value, symbols.size());
+                out.writeInt(NEW_SYMBOL);
+                writeString(value);
+            } else {
+                out.writeInt(index);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private final List<String> symbols = new ArrayList<>();
+        // Every symbol is only converted to its enum once
+        private final Map<String, Vocabulary.Identifier> vocabularies = new HashMap<>();
+        private final Map<String, Domain> domains = new HashMap<>();
+        private final Map<String, ConceptRelationship.Identifier> relationships = new HashMap<>();
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void header(Path file) {
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+                throw new RosettaException(file + " is not a vocabulary snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new RosettaException("Vocabulary snapshot " + file + " has version " + version + ", expected " + VERSION);
+            }
+            buffer.getLong();
+        }
+
+        private void records(VocabularySnapshot.Builder builder) {
+            byte type;
+            while ((type = buffer.get()) != END) {
+                switch (type) {
+                    case CONCEPT -> builder.concept(buffer.getInt(), readString(), readString(), readSymbol(), readSymbol(),
+                            readEnum(vocabularies, Vocabulary.Identifier.class), readEnum(domains, Domain.class));
+                    case ANCESTOR -> builder.ancestor(buffer.getInt(), buffer.getInt());
+                    case IS_A -> builder.isA(buffer.getInt(), buffer.getInt());
+                    case RELATIONSHIP -> builder.relationship(buffer.getInt(), buffer.getInt(),
+                            readEnum(relationships, ConceptRelationship.Identifier.class), readString(), readSymbol());
+                    case SYNONYM -> builder.synonym(buffer.getInt(), readString());
+                    default -> throw new RosettaException("Corrupt vocabulary snapshot, unknown record type " + type);
+                }
+            }
+        }
+
+        private <E extends Enum<E> & CDMEnum<E>> E readEnum(Map<String, E> cache, Class<E> type) {
+            String value = readSymbol();
+            return value == null ? null : cache.computeIfAbsent(value, toEnum(type));
+        }
+
+        private static <E extends Enum<E> & CDMEnum<E>> Function<String, E> toEnum(Class<E> type) {
+            return value -> valueOfFromDb(value, type);
+        }
+
+        private String readSymbol() {
+            int index = buffer.getInt();
+            if (index == NULL) {
+                return null;
+            } else if (index == NEW_SYMBOL) {
+                String value = readString();
+                symbols.add(value);
+                return value;
+            }
+            return symbols.get(index);
+        }
+
+        private String readString() {
+            int length = buffer.getInt();
+            if (length == NULL) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Everything the in-memory caches need, held in memory instead of in the db, and what the concept lookups of requests
+ * need so they do not have to go to the db either. The concepts and the hierarchy are kept in a
+ * {@link ConceptHierarchy}, relationships and synonyms column wise.
+ * <p>
+ * Relationships are indexed by both of their concepts, in compressed sparse row form like the hierarchy. Concepts are
+ * indexed by code and by name, and synonyms by name, as arrays sorted ignoring case like the collation of the db.
+ * Relationship queries materialize a single Concept instance per concept id, like Hibernate does within one query.
+ */
+public final class VocabularySnapshot implements VocabularySource {
+
+    private static final String ETRANSAFE = "eTRANSAFE";
+    private static final Comparator<String> IGNORE_CASE = Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER);
+
+    private final ConceptHierarchy hierarchy;
+    private final int[] conceptOnes;
+    private final int[] conceptTwos;
+    private final ConceptRelationship.Identifier[] relationshipIds;
+    private final String[] invalidReasons;
+    private final String[] sources;
+    // The relationships of ordinal o are index[offsets[o] .. offsets[o + 1]), by concept one and by concept two
+    private final int[] oneOffsets;
+    private final int[] byOne;
+    private final int[] twoOffsets;
+    private final int[] byTwo;
+    // Ordinals sorted on code and on name
+    private final int[] byCode;
+    private final int[] byName;
+    // Sorted on name
+    private final String[] synonymNames;
+    private final int[] synonymConcepts;
+
+    private VocabularySnapshot(ConceptHierarchy hierarchy, int[] conceptOnes, int[] conceptTwos,
+                               ConceptRelationship.Identifier[] relationshipIds, String[] invalidReasons, String[] sources,
+                               String[] synonymNames, int[] synonymConcepts) {
+        this.hierarchy = hierarchy;
+        this.conceptOnes = conceptOnes;
+        this.conceptTwos = conceptTwos;
+        this.relationshipIds = relationshipIds;
+        this.invalidReasons = invalidReasons;
+        this.sources = sources;
+        this.oneOffsets = offsets(hierarchy, conceptOnes);
+        this.byOne = index(hierarchy, conceptOnes, oneOffsets);
+        this.twoOffsets = offsets(hierarchy, conceptTwos);
+        this.byTwo = index(hierarchy, conceptTwos, twoOffsets);
+        this.byCode = sorted(hierarchy.size(), hierarchy::code);
+        this.byName = sorted(hierarchy.size(), hierarchy::name);
+        int[] synonyms = sorted(synonymNames.length, i -> synonymNames[i]);
+        this.synonymNames = Arrays.stream(synonyms).mapToObj(i -> synonymNames[i]).toArray(String[]::new);
+        this.synonymConcepts = Arrays.stream(synonyms).map(i -> synonymConcepts[i]).toArray();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int concepts() {
+        return hierarchy.size();
+    }
+
+    public int relationships() {
+        return conceptOnes.length;
+    }
+
+    public int synonyms() {
+        return synonymNames.length;
+    }
+
+    // The snapshot only holds the vocabularies it was built for, those are the ones the hierarchy is asked for
+    @Override
+    public ConceptHierarchy hierarchy(Collection<Vocabulary.Identifier> vocabularies) {
+        return hierarchy;
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsTo(Set<Vocabulary.Identifier> to) {
+        return relationships(r -> to.contains(hierarchy.vocabulary(conceptTwos[r])));
+    }
+
+    @Override
+    public List<ConceptRelationship> eTransafeMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to) {
+        Set<Integer> mappedByETransafe = new HashSet<>();
+        for (int r = 0; r < conceptOnes.length; r++) {
+            if (ETRANSAFE.equals(sources[r])) {
+                mappedByETransafe.add(conceptOnes[r]);
+            }
+        }
+        return relationships(r -> mappedByETransafe.contains(conceptOnes[r])
+                && from.contains(hierarchy.vocabulary(conceptOnes[r]))
+                && to.contains(hierarchy.vocabulary(conceptTwos[r])))
+                .stream()
+                .filter(cr -> isValid(cr.conceptOne()))
+                .toList();
+    }
+
+    @Override
+    public List<ConceptRelationship> mappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to,
+                                                    ConceptRelationship.Identifier relationship) {
+        return relationships(r -> relationshipIds[r] == relationship
+                && from.contains(hierarchy.vocabulary(conceptOnes[r]))
+                && to.contains(hierarchy.vocabulary(conceptTwos[r])));
+    }
+
+    // The snapshot answers the lookups of requests itself
+    @Override
+    public VocabularySnapshot lookups() {
+        return this;
+    }
+
+    public Concept concept(int id) {
+        return hierarchy.concept(id);
+    }
+
+    public List<Concept> byCode(String code, Set<Vocabulary.Identifier> vocabularies) {
+        return matching(byCode, hierarchy::code, code, vocabularies);
+    }
+
+    public List<Concept> byCodes(Collection<String> codes, Set<Vocabulary.Identifier> vocabularies) {
+        return codes.stream().distinct().flatMap(code -> byCode(code, vocabularies).stream()).distinct().toList();
+    }
+
+    // In any vocabulary when none are given
+    public Set<Concept> byName(String name, Set<Vocabulary.Identifier> vocabularies) {
+        return new HashSet<>(matching(byName, hierarchy::name, name, vocabularies));
+    }
+
+    public Set<Concept> bySynonym(String name) {
+        Set<Concept> result = new HashSet<>();
+        for (int i = first(synonymNames.length, p -> synonymNames[p], name);
+             i < synonymNames.length && IGNORE_CASE.compare(synonymNames[i], name) == 0; i++) {
+            result.add(hierarchy.concept(synonymConcepts[i]));
+        }
+        return result;
+    }
+
+    // The relationships from the concepts, with one of the relationship ids
+    public List<ConceptRelationship> relationshipsFrom(Collection<Concept> concepts,
+                                                       Set<ConceptRelationship.Identifier> relationships) {
+        return relationships(concepts, relationships, oneOffsets, byOne);
+    }
+
+    // The relationships to the concepts, with one of the relationship ids
+    public List<ConceptRelationship> relationshipsTo(Collection<Concept> concepts,
+                                                     Set<ConceptRelationship.Identifier> relationships) {
+        return relationships(concepts, relationships, twoOffsets, byTwo);
+    }
+
+    private List<ConceptRelationship> relationships(Collection<Concept> concepts, Set<ConceptRelationship.Identifier> relationships,
+                                                    int[] offsets, int[] index) {
+        Map<Integer, Concept> materialized = new HashMap<>();
+        List<ConceptRelationship> result = new ArrayList<>();
+        Set<Integer> ids = new LinkedHashSet<>();
+        concepts.forEach(c -> ids.add(c.id()));
+        for (int id : ids) {
+            int ordinal = hierarchy.ordinal(id);
+            for (int i = ordinal < 0 ? 0 : offsets[ordinal], end = ordinal < 0 ? 0 : offsets[ordinal + 1]; i < end; i++) {
+                if (relationships.contains(relationshipIds[index[i]])) {
+                    result.add(relationship(index[i], materialized));
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<ConceptRelationship> relationships(IntPredicate filter) {
+        Map<Integer, Concept> concepts = new HashMap<>();
+        List<ConceptRelationship> result = new ArrayList<>();
+        for (int r = 0; r < conceptOnes.length; r++) {
+            if (filter.test(r)) {
+                result.add(relationship(r, concepts));
+            }
+        }
+        return result;
+    }
+
+    private ConceptRelationship relationship(int r, Map<Integer, Concept> concepts) {
+        return new ConceptRelationship()
+                .conceptOne(concepts.computeIfAbsent(conceptOnes[r], hierarchy::concept))
+                .conceptTwo(concepts.computeIfAbsent(conceptTwos[r], hierarchy::concept))
+                .relationshipId(relationshipIds[r])
+                .invalidReason(invalidReasons[r])
+                .source(sources[r]);
+    }
+
+    private List<Concept> matching(int[] sorted, IntFunction<String> key, String value, Set<Vocabulary.Identifier> vocabularies) {
+        List<Concept> result = new ArrayList<>();
+        for (int i = first(sorted.length, p -> key.apply(sorted[p]), value);
+             i < sorted.length && IGNORE_CASE.compare(key.apply(sorted[i]), value) == 0; i++) {
+            var concept = hierarchy.concept(hierarchy.id(sorted[i]));
+            if (vocabularies == null || vocabularies.isEmpty() || vocabularies.contains(concept.vocabulary())) {
+                result.add(concept);
+            }
+        }
+        return result;
+    }
+
+    // The first position in a sorted column that is not below the value
+    private static int first(int size, IntFunction<String> key, String value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (IGNORE_CASE.compare(key.apply(mid), value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int[] sorted(int size, IntFunction<String> key) {
+        return IntStream.range(0, size).boxed()
+                .sorted(Comparator.comparing(key::apply, IGNORE_CASE))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private static int[] offsets(ConceptHierarchy hierarchy, int[] concepts) {
+        int[] offsets = new int[hierarchy.size() + 1];
+        for (int concept : concepts) {
+            offsets[hierarchy.ordinal(concept) + 1]++;
+        }
+        for (int o = 0; o < hierarchy.size(); o++) {
+            offsets[o + 1] += offsets[o];
+        }
+        return offsets;
+    }
+
+    private static int[] index(ConceptHierarchy hierarchy, int[] concepts, int[] offsets) {
+        int[] next = Arrays.copyOf(offsets, hierarchy.size());
+        int[] index = new int[concepts.length];
+        for (int r = 0; r < concepts.length; r++) {
+            index[next[hierarchy.ordinal(concepts[r])]++] = r;
+        }
+        return index;
+    }
+
+    private static boolean isValid(Concept concept) {
+        return concept.invalidReason() == null || !Set.of("U", "D").contains(concept.invalidReason());
+    }
+
+    // Collects concepts and edges for the hierarchy, and the relationships between those concepts
+    public static final class Builder implements ConceptHierarchy.Sink {
+
+        private final ConceptHierarchy.Builder hierarchy = ConceptHierarchy.builder();
+        private int size;
+        private int[] conceptOnes = new int[1024];
+        private int[] conceptTwos = new int[1024];
+        private ConceptRelationship.Identifier[] relationshipIds = new ConceptRelationship.Identifier[1024];
+        private String[] invalidReasons = new String[1024];
+        private String[] sources = new String[1024];
+        private int synonyms;
+        private int[] synonymConcepts = new int[1024];
+        private String[] synonymNames = new String[1024];
+
+        private Builder() {
+        }
+
+        @Override
+        public Builder concept(int id, String name, String code, String conceptClass, String invalidReason,
+                               Vocabulary.Identifier vocabulary, Domain domain) {
+            hierarchy.concept(id, name, code, conceptClass, invalidReason, vocabulary, domain);
+            return this;
+        }
+
+        @Override
+        public Builder ancestor(int ancestorId, int descendantId) {
+            hierarchy.ancestor(ancestorId, descendantId);
+            return this;
+        }
+
+        @Override
+        public Builder isA(int childId, int parentId) {
+            hierarchy.isA(childId, parentId);
+            return this;
+        }
+
+        public Builder relationship(int conceptOne, int conceptTwo, ConceptRelationship.Identifier relationshipId,
+                                    String invalidReason, String source) {
+            if (size == conceptOnes.length) {
+                int capacity = size * 2;
+                conceptOnes = Arrays.copyOf(conceptOnes, capacity);
+                conceptTwos = Arrays.copyOf(conceptTwos, capacity);
+                relationshipIds = Arrays.copyOf(relationshipIds, capacity);
+                invalidReasons = Arrays.copyOf(invalidReasons, capacity);
+                sources = Arrays.copyOf(sources, capacity);
+            }
+            conceptOnes[size] = conceptOne;
+            conceptTwos[size] = conceptTwo;
+            relationshipIds[size] = relationshipId;
+            invalidReasons[size] = invalidReason;
+            sources[size] = source;
+            size++;
+            return this;
+        }
+
+        public Builder synonym(int conceptId, String name) {
+            if (synonyms == synonymConcepts.length) {
+                synonymConcepts = Arrays.copyOf(synonymConcepts, synonyms * 2);
+                synonymNames = Arrays.copyOf(synonymNames, synonyms * 2);
+            }
+            synonymConcepts[synonyms] = conceptId;
+            synonymNames[synonyms] = name;
+            synonyms++;
+            return this;
+        }
+
+        // Relationships and synonyms of concepts that are not in the snapshot are dropped, like the hierarchy edges
+        public VocabularySnapshot build() {
+            var built = hierarchy.build();
+            int kept = 0;
+            for (int r = 0; r < size; r++) {
+                if (built.contains(conceptOnes[r]) && built.contains(conceptTwos[r])) {
+                    conceptOnes[kept] = conceptOnes[r];
+                    conceptTwos[kept] = conceptTwos[r];
+                    relationshipIds[kept] = relationshipIds[r];
+                    invalidReasons[kept] = invalidReasons[r];
+                    sources[kept] = sources[r];
+                    kept++;
+                }
+            }
+            int keptSynonyms = 0;
+            for (int i = 0; i < synonyms; i++) {
+                if (synonymNames[i] != null && built.contains(synonymConcepts[i])) {
+                    synonymConcepts[keptSynonyms] = synonymConcepts[i];
+                    synonymNames[keptSynonyms] = synonymNames[i];
+                    keptSynonyms++;
+                }
+            }
+            return new VocabularySnapshot(built, Arrays.copyOf(conceptOnes, kept), Arrays.copyOf(conceptTwos, kept),
+                    Arrays.copyOf(relationshipIds, kept), Arrays.copyOf(invalidReasons, kept), Arrays.copyOf(sources, kept),
+                    Arrays.copyOf(synonymNames, keptSynonyms), Arrays.copyOf(synonymConcepts, keptSynonyms));
+        }
+    }
+}
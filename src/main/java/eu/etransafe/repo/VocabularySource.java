@@ -0,0 +1,32 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk data the in-memory caches are built from. Normally this comes from the db, but it can also be read from a
+ * snapshot file or an Athena download so new replicas can start without querying the db for it. The caches are the
+ * concept hierarchy and the mapping tables. Data read from files also answers the lookups of concepts, synonyms and
+ * relationships the mappings make, with the db source those are queried.
+ */
+public interface VocabularySource {
+
+    ConceptHierarchy hierarchy(Collection<Vocabulary.Identifier> vocabularies);
+
+    // All relationships to a concept in one of the vocabularies
+    List<ConceptRelationship> mappingsTo(Set<Vocabulary.Identifier> to);
+
+    // Relationships of valid concepts that have been mapped by eTRANSAFE to concepts in the target vocabularies
+    List<ConceptRelationship> eTransafeMappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to);
+
+    List<ConceptRelationship> mappingsFromTo(Set<Vocabulary.Identifier> from, Set<Vocabulary.Identifier> to,
+                                             ConceptRelationship.Identifier relationship);
+
+    // The data to look up concepts and relationships in, null when they are looked up in the db
+    VocabularySnapshot lookups();
+}
@@ -0,0 +1,67 @@
+package eu.etransafe.service;
+
+import eu.etransafe.service.mappings.ExpansionMemo;
+import eu.etransafe.service.mappings.MappingCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reloads the in-memory vocabulary data after the db has been refreshed with a new vocabulary release, without a
+ * restart. The hierarchy, the mapping tables and the distances between them are rebuilt in the background and swapped
+ * in together when all are complete, requests are served from the old data in the meantime. The external caches and
+ * the expansion memo are emptied once the new data is in place.
+ */
+@Slf4j
+@Service
+public class VocabularyReloadService {
+
+    private final MappingCache mappingCache;
+    private final ExpansionMemo expansionMemo;
+    private final CacheManager cacheManager;
+    private CompletableFuture<Void> reloading;
+
+    public VocabularyReloadService(MappingCache mappingCache, ExpansionMemo expansionMemo, CacheManager cacheManager) {
+        this.mappingCache = mappingCache;
+        this.expansionMemo = expansionMemo;
+        this.cacheManager = cacheManager;
+    }
+
+    @Scheduled(cron = "${rosetta.reload.cron:-}")
+    public void scheduledReload() {
+        reload();
+    }
+
+    // Returns the running reload when there already is one
+    public synchronized CompletableFuture<Void> reload() {
+        if (reloading != null && !reloading.isDone()) {
+            return reloading;
+        }
+        log.info("Reloading vocabulary data");
+        long start = System.currentTimeMillis();
+        reloading = mappingCache.reload()
+                .thenRun(this::evictCaches)
+                .whenComplete((done, e) -> {
+                    if (e != null) {
+                        log.error("Reloading vocabulary data failed, still using the previous data", e);
+                    } else {
+                        log.info("Reloaded vocabulary data in {} milliseconds", System.currentTimeMillis() - start);
+                    }
+                });
+        return reloading;
+    }
+
+    public synchronized boolean isReloading() {
+        return reloading != null && !reloading.isDone();
+    }
+
+    private void evictCaches() {
+        expansionMemo.invalidate();
+        cacheManager.getCacheNames().forEach(name -> Optional.ofNullable(cacheManager.getCache(name)).ifPresent(Cache::clear));
+    }
+}
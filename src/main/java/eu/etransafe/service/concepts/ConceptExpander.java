@@ -3,6 +3,7 @@ package eu.etransafe.service.concepts;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptNode;
 import eu.etransafe.service.mappings.MappingService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.annotation.Cacheable;
@@ -10,11 +11,15 @@ import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import static org.springframework.util.CollectionUtils.isEmpty;
+import static java.util.Collections.emptyList;
 
 @Service
 @Slf4j
@@ -24,7 +29,7 @@ public class ConceptExpander {
     public static final String SMQ = "SMQ";
     // Cache for slow expand responses, to keep memory use low, will only store very few requests
     // WARNING! Only use getIfPresent(), the get() method will automatically populate it with an empty response (due to the build() part)
-    private static final LoadingCache<Integer, List<Concept>> expandCache = Caffeine.newBuilder()
+    private static final LoadingCache<Integer, List<ConceptNode>> expandCache = Caffeine.newBuilder()
             .maximumSize(32)
             .expireAfterWrite(10, TimeUnit.DAYS)
             .build(h -> new ArrayList<>());
@@ -36,49 +41,53 @@ public class ConceptExpander {
         this.conceptService = conceptService;
     }
 
-    @Cacheable(value = "expandMeddraPrimary")
-    public Concept expandMeddraPrimary(Concept concept) {
+    @Cacheable(value = "meddraPrimaryTreeV2")
+    public ConceptNode expandMeddraPrimary(Concept concept) {
         if (concept == null) {
             return null;
         }
+        return expandMeddraPrimary(new ConceptNode(concept, 0));
+    }
+
+    private ConceptNode expandMeddraPrimary(ConceptNode node) {
+        var concept = node.concept();
         if (concept.conceptClass().equals("LLT")) {
-            return processLLTForPrimaryExpand(concept);
+            return processLLTForPrimaryExpand(node);
         }
         Concept parent = mappingService.mapPrimaryParent(concept);
         if (parent == null) {
             log.warn("Received request for primary parent of {}, but parent could not be found", concept.string());
-            return concept;
+            return node;
         }
-        parent.addChild(concept);
+        var parentNode = new ConceptNode(parent, 0, List.of(node));
         if (parent.conceptClass().equals("SOC")) {
-            return parent;
+            return parentNode;
         } else {
-            return expandMeddraPrimary(parent);
+            return expandMeddraPrimary(parentNode);
         }
     }
 
-    private Concept processLLTForPrimaryExpand(Concept concept) {
+    private ConceptNode processLLTForPrimaryExpand(ConceptNode node) {
+        var concept = node.concept();
         List<Concept> parents = conceptService.parents(concept);
         if (parents.size() == 1) {
             var p = parents.get(0);
-            p.addChild(concept);
-            return expandMeddraPrimary(p);
+            return expandMeddraPrimary(new ConceptNode(p, 0, List.of(node)));
         } else {
             log.warn("Expanding LLT {} we found {} parents, it should have exactly 1", concept.string(), parents.size());
             var p = parents.stream()
                     .filter(c -> c.conceptClass().equalsIgnoreCase("PT"))
                     .findAny().orElse(null);
             if (p != null) {
-                p.addChild(concept);
-                return expandMeddraPrimary(p);
+                return expandMeddraPrimary(new ConceptNode(p, 0, List.of(node)));
             } else {
-                return concept;
+                return node;
             }
         }
     }
 
 
-    public List<Concept> expand(Concept concept, Integer childLevels, Integer parentLevels) {
+    public List<ConceptNode> expand(Concept concept, Integer childLevels, Integer parentLevels) {
         long start = System.currentTimeMillis();
         int requestHash = Objects.hash(concept, childLevels, parentLevels);
         var responseFromCache = expandCache.getIfPresent(requestHash);
@@ -86,16 +95,16 @@ public class ConceptExpander {
             return responseFromCache;
         }
 
-        List<Concept> conceptTrees;
+        List<ConceptNode> conceptTrees;
 
         if (concept.conceptClass().equalsIgnoreCase(SMQ)) {
-            concept.children(new ArrayList<>(mappingService.mapSmqToPts(concept)));
-            conceptTrees = List.of(concept);
+            var pts = mappingService.mapSmqToPts(concept).stream().map(pt -> new ConceptNode(pt, 0)).toList();
+            conceptTrees = List.of(new ConceptNode(concept, 0, pts));
         } else {
             conceptTrees = doExpand(concept, childLevels, parentLevels);
         }
 
-        // Put cycles that last over 0.5 second in cache
+        // Put cycles that last over 0.5 second in cache, the trees are immutable so they can be handed out again
         if (System.currentTimeMillis() - start > 500) {
             expandCache.put(requestHash, conceptTrees);
         }
@@ -105,33 +114,44 @@ public class ConceptExpander {
     /*
      * parentLevels = null indicates all parent levels, parentLevels = 0 indicates no parentLevels
      */
-    private List<Concept> doExpand(Concept concept, Integer childLevels, Integer parentLevels) {
+    private List<ConceptNode> doExpand(Concept concept, Integer childLevels, Integer parentLevels) {
         var conceptWithChildren = attachChildren(concept, childLevels);
         if (conceptWithChildren == null) {
             return Collections.emptyList();
         }
-        return conceptService.parents(conceptWithChildren, 1, parentLevels, true);
+        return conceptService.parents(conceptWithChildren, parentLevels);
     }
 
-    private Concept attachChildren(Concept concept, Integer maxLevels) {
-        List<Concept> result = getConceptByIds(List.of(concept), 1, maxLevels);
-        return !isEmpty(result) ? result.get(0) : null;
+    private ConceptNode attachChildren(Concept concept, Integer maxLevels) {
+        // Breadth first, a single children lookup for every level of the tree
+        List<Map<Integer, List<Concept>>> childrenByLevel = new ArrayList<>();
+        List<Concept> frontier = List.of(concept);
+        for (int level = 1; maxLevels != null && level <= maxLevels && !frontier.isEmpty(); level++) {
+            var childrenById = conceptService.childrenOf(frontier);
+            childrenByLevel.add(childrenById);
+            Set<Integer> expanded = new HashSet<>();
+            frontier = childrenById.values().stream()
+                    .flatMap(List::stream)
+                    .filter(child -> expanded.add(child.id()))
+                    .toList();
+        }
+        return node(concept, 1, childrenByLevel, new HashMap<>());
     }
 
-    private List<Concept> getConceptByIds(List<Concept> concepts, Integer level, Integer maxLevels) {
-        List<Concept> result = new ArrayList<>();
-        if (!isEmpty(concepts)) {
-            concepts.forEach(concept -> {
-                concept.level(level);
-                if (maxLevels != null && level <= maxLevels) {
-                    concept.children(getConceptByIds(conceptService.children(concept), level + 1, maxLevels));
-                } else {
-                    concept.children(new ArrayList<>());
-                }
-                result.add(concept);
-            });
+    // Same concept at the same level has the same subtree, so it is built once and shared by all its parents
+    private ConceptNode node(Concept concept, int level, List<Map<Integer, List<Concept>>> childrenByLevel,
+                             Map<Long, ConceptNode> built) {
+        long key = ((long) level << 32) | (concept.id() & 0xFFFFFFFFL);
+        var node = built.get(key);
+        if (node == null) {
+            var children = level > childrenByLevel.size() ? List.<Concept>of()
+                    : childrenByLevel.get(level - 1).getOrDefault(concept.id(), emptyList());
+            node = new ConceptNode(concept, level, children.stream()
+                    .map(child -> node(child, level + 1, childrenByLevel, built))
+                    .toList());
+            built.put(key, node);
         }
-        return result;
+        return node;
     }
 
 }
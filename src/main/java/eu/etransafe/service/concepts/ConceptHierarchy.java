@@ -0,0 +1,447 @@
+package eu.etransafe.service.concepts;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable in-memory snapshot of the direct (min level of separation 1) concept hierarchy.
+ * <p>
+ * Concepts are stored column wise and addressed by a dense ordinal (their index in the sorted id array), parent and
+ * child adjacency are stored in compressed sparse row form: the neighbours of ordinal {@code o} are
+ * {@code targets[offsets[o] .. offsets[o + 1])}. Parents also include the 'Is a' relationships, children only come
+ * from concept_ancestor, which is the same as the findParents and findChildren queries in the HierarchyRepo. Edges to
+ * concepts that are not in the snapshot are dropped, the concepts that had them are marked as having partial parents or
+ * children, for those the db is still the only complete source.
+ */
+public final class ConceptHierarchy {
+
+    public static final ConceptHierarchy EMPTY = builder().build();
+    private static final int[] NONE = new int[0];
+
+    private final int[] ids;
+    private final String[] names;
+    private final String[] codes;
+    private final String[] conceptClasses;
+    private final String[] invalidReasons;
+    private final Vocabulary.Identifier[] vocabularies;
+    private final Domain[] domains;
+    private final int[] parentOffsets;
+    private final int[] parents;
+    private final int[] childOffsets;
+    private final int[] children;
+    // Ordinals of the concepts that lost parent or child edges to concepts outside the snapshot
+    private final BitSet partialParents;
+    private final BitSet partialChildren;
+
+    private ConceptHierarchy(int[] ids, String[] names, String[] codes, String[] conceptClasses, String[] invalidReasons,
+                             Vocabulary.Identifier[] vocabularies, Domain[] domains,
+                             int[] parentOffsets, int[] parents, int[] childOffsets, int[] children,
+                             BitSet partialParents, BitSet partialChildren) {
+        this.ids = ids;
+        this.names = names;
+        this.codes = codes;
+        this.conceptClasses = conceptClasses;
+        this.invalidReasons = invalidReasons;
+        this.vocabularies = vocabularies;
+        this.domains = domains;
+        this.parentOffsets = parentOffsets;
+        this.parents = parents;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.partialParents = partialParents;
+        this.partialChildren = partialChildren;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int edges() {
+        return parents.length + children.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public boolean contains(int conceptId) {
+        return ordinal(conceptId) >= 0;
+    }
+
+    public int ordinal(int conceptId) {
+        return Arrays.binarySearch(ids, conceptId);
+    }
+
+    public int id(int ordinal) {
+        return ids[ordinal];
+    }
+
+    public int[] parentIds(int conceptId) {
+        return neighbourIds(conceptId, parentOffsets, parents);
+    }
+
+    public int[] childIds(int conceptId) {
+        return neighbourIds(conceptId, childOffsets, children);
+    }
+
+    // Whether the concept is in the snapshot with all of its parents, not only the ones in the snapshot
+    public boolean hasAllParents(int conceptId) {
+        int ordinal = ordinal(conceptId);
+        return ordinal >= 0 && !partialParents.get(ordinal);
+    }
+
+    public boolean hasAllChildren(int conceptId) {
+        int ordinal = ordinal(conceptId);
+        return ordinal >= 0 && !partialChildren.get(ordinal);
+    }
+
+    public List<Concept> parents(int conceptId) {
+        return neighbours(conceptId, parentOffsets, parents);
+    }
+
+    public List<Concept> children(int conceptId) {
+        return neighbours(conceptId, childOffsets, children);
+    }
+
+    public String name(int ordinal) {
+        return names[ordinal];
+    }
+
+    public String code(int ordinal) {
+        return codes[ordinal];
+    }
+
+    public Vocabulary.Identifier vocabulary(int conceptId) {
+        int ordinal = ordinal(conceptId);
+        return ordinal < 0 ? null : vocabularies[ordinal];
+    }
+
+    // Materialized on every call, the hierarchy only keeps the columns
+    public Concept concept(int conceptId) {
+        int ordinal = ordinal(conceptId);
+        return ordinal < 0 ? null : materialize(ordinal);
+    }
+
+    /*
+     * The cost of the cheapest walk from every concept (by ordinal) to one of the target concepts (by id), only
+     * following parents (up) or only children. Searched backwards from the targets over the reversed edges, so every
+     * concept is visited once whatever the number of targets. Steps cost 0 or 1, walks that would cost more than the
+     * limit are not followed and those concepts get limit + 1.
+     */
+    public byte[] costsTo(IntPredicate targets, boolean up, StepCost cost, int limit) {
+        if (limit < 0 || limit >= Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Limit should be between 0 and " + (Byte.MAX_VALUE - 1) + ", got " + limit);
+        }
+        int n = ids.length;
+        int[][] reversed = reverse(up ? parentOffsets : childOffsets, up ? parents : children);
+        int[] offsets = reversed[0];
+        int[] sources = reversed[1];
+        byte[] costs = new byte[n];
+        Arrays.fill(costs, (byte) (limit + 1));
+        // Concepts at the current cost, the ones a free step reaches are pushed onto the same stack
+        int[] current = new int[16];
+        int size = 0;
+        for (int o = 0; o < n; o++) {
+            if (targets.test(ids[o])) {
+                costs[o] = 0;
+                current = push(current, size++, o);
+            }
+        }
+        for (int c = 0; c <= limit && size > 0; c++) {
+            int[] next = new int[16];
+            int nextSize = 0;
+            while (size > 0) {
+                int to = current[--size];
+                if (costs[to] != c) {
+                    continue;
+                }
+                for (int i = offsets[to]; i < offsets[to + 1]; i++) {
+                    int from = sources[i];
+                    int step = cost.cost(from, to);
+                    if (c + step < costs[from]) {
+                        costs[from] = (byte) (c + step);
+                        if (step == 0) {
+                            current = push(current, size++, from);
+                        } else if (c < limit) {
+                            next = push(next, nextSize++, from);
+                        }
+                    }
+                }
+            }
+            current = next;
+            size = nextSize;
+        }
+        return costs;
+    }
+
+    private static int[] push(int[] stack, int size, int value) {
+        int[] grown = size == stack.length ? Arrays.copyOf(stack, size * 2) : stack;
+        grown[size] = value;
+        return grown;
+    }
+
+    // The edges the other way around, in the same compressed sparse row form
+    private int[][] reverse(int[] offsets, int[] targets) {
+        int n = ids.length;
+        int[] reversedOffsets = new int[n + 1];
+        for (int target : targets) {
+            reversedOffsets[target + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            reversedOffsets[i + 1] += reversedOffsets[i];
+        }
+        int[] sources = new int[targets.length];
+        int[] cursor = Arrays.copyOf(reversedOffsets, n);
+        for (int o = 0; o < n; o++) {
+            for (int i = offsets[o]; i < offsets[o + 1]; i++) {
+                sources[cursor[targets[i]]++] = o;
+            }
+        }
+        return new int[][]{reversedOffsets, sources};
+    }
+
+    private int[] neighbourIds(int conceptId, int[] offsets, int[] targets) {
+        int ordinal = ordinal(conceptId);
+        if (ordinal < 0) {
+            return NONE;
+        }
+        int from = offsets[ordinal];
+        int to = offsets[ordinal + 1];
+        int[] result = new int[to - from];
+        for (int i = from; i < to; i++) {
+            result[i - from] = ids[targets[i]];
+        }
+        return result;
+    }
+
+    private List<Concept> neighbours(int conceptId, int[] offsets, int[] targets) {
+        int ordinal = ordinal(conceptId);
+        if (ordinal < 0) {
+            return Collections.emptyList();
+        }
+        int from = offsets[ordinal];
+        int to = offsets[ordinal + 1];
+        List<Concept> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(materialize(targets[i]));
+        }
+        return result;
+    }
+
+    private Concept materialize(int ordinal) {
+        return Concept.builder()
+                .id(ids[ordinal])
+                .name(names[ordinal])
+                .code(codes[ordinal])
+                .conceptClass(conceptClasses[ordinal])
+                .invalidReason(invalidReasons[ordinal])
+                .vocabulary(vocabularies[ordinal])
+                .domain(domains[ordinal])
+                .build();
+    }
+
+
+    // The cost of a single step from a concept to its parent or child, both given by ordinal
+    @FunctionalInterface
+    public interface StepCost {
+
+        int cost(int from, int to);
+    }
+
+    // Receives the rows of the hierarchy while they are read, so they do not have to be collected in between
+    public interface Sink {
+
+        Sink concept(int id, String name, String code, String conceptClass, String invalidReason,
+                     Vocabulary.Identifier vocabulary, Domain domain);
+
+        Sink ancestor(int ancestorId, int descendantId);
+
+        Sink isA(int childId, int parentId);
+    }
+
+    public static final class Builder implements Sink {
+
+        private int conceptCount;
+        private int[] ids = new int[1024];
+        private String[] names = new String[1024];
+        private String[] codes = new String[1024];
+        private String[] conceptClasses = new String[1024];
+        private String[] invalidReasons = new String[1024];
+        private Vocabulary.Identifier[] vocabularies = new Vocabulary.Identifier[1024];
+        private Domain[] domains = new Domain[1024];
+
+        private final IntPairs parentEdges = new IntPairs();
+        private final IntPairs childEdges = new IntPairs();
+
+        private Builder() {
+        }
+
+        @Override
+        public Builder concept(int id, String name, String code, String conceptClass, String invalidReason,
+                               Vocabulary.Identifier vocabulary, Domain domain) {
+            if (conceptCount == ids.length) {
+                int capacity = ids.length * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                codes = Arrays.copyOf(codes, capacity);
+                conceptClasses = Arrays.copyOf(conceptClasses, capacity);
+                invalidReasons = Arrays.copyOf(invalidReasons, capacity);
+                vocabularies = Arrays.copyOf(vocabularies, capacity);
+                domains = Arrays.copyOf(domains, capacity);
+            }
+            ids[conceptCount] = id;
+            names[conceptCount] = name;
+            codes[conceptCount] = code;
+            // Only a few dozen distinct classes, no need to keep a copy per concept
+            conceptClasses[conceptCount] = conceptClass == null ? null : conceptClass.intern();
+            invalidReasons[conceptCount] = invalidReason;
+            vocabularies[conceptCount] = vocabulary;
+            domains[conceptCount] = domain;
+            conceptCount++;
+            return this;
+        }
+
+        // A concept_ancestor edge, used for both the parent and the child direction
+        @Override
+        public Builder ancestor(int ancestorId, int descendantId) {
+            if (ancestorId != descendantId) {
+                parentEdges.add(descendantId, ancestorId);
+                childEdges.add(ancestorId, descendantId);
+            }
+            return this;
+        }
+
+        // An 'Is a' relationship, these are only used when looking for parents
+        @Override
+        public Builder isA(int childId, int parentId) {
+            if (childId != parentId) {
+                parentEdges.add(childId, parentId);
+            }
+            return this;
+        }
+
+        public ConceptHierarchy build() {
+            int n = conceptCount;
+            // Sort by id, keeping the insertion index in the lower half so we do not have to box anything
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = ((long) ids[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int[] sortedIds = new int[n];
+            String[] sortedNames = new String[n];
+            String[] sortedCodes = new String[n];
+            String[] sortedClasses = new String[n];
+            String[] sortedInvalidReasons = new String[n];
+            Vocabulary.Identifier[] sortedVocabularies = new Vocabulary.Identifier[n];
+            Domain[] sortedDomains = new Domain[n];
+            int unique = 0;
+            for (int i = 0; i < n; i++) {
+                int o = (int) order[i];
+                if (unique > 0 && sortedIds[unique - 1] == ids[o]) {
+                    continue;
+                }
+                sortedIds[unique] = ids[o];
+                sortedNames[unique] = names[o];
+                sortedCodes[unique] = codes[o];
+                sortedClasses[unique] = conceptClasses[o];
+                sortedInvalidReasons[unique] = invalidReasons[o];
+                sortedVocabularies[unique] = vocabularies[o];
+                sortedDomains[unique] = domains[o];
+                unique++;
+            }
+            sortedIds = Arrays.copyOf(sortedIds, unique);
+
+            var partialParents = new BitSet(unique);
+            var partialChildren = new BitSet(unique);
+            int[][] parentCsr = csr(sortedIds, parentEdges, partialParents);
+            int[][] childCsr = csr(sortedIds, childEdges, partialChildren);
+            return new ConceptHierarchy(sortedIds,
+                    Arrays.copyOf(sortedNames, unique),
+                    Arrays.copyOf(sortedCodes, unique),
+                    Arrays.copyOf(sortedClasses, unique),
+                    Arrays.copyOf(sortedInvalidReasons, unique),
+                    Arrays.copyOf(sortedVocabularies, unique),
+                    Arrays.copyOf(sortedDomains, unique),
+                    parentCsr[0], parentCsr[1], childCsr[0], childCsr[1], partialParents, partialChildren);
+        }
+
+        /*
+         * Counting sort of the edges by source ordinal, edges to or from unknown concepts are dropped, duplicates removed.
+         * Known concepts with an edge to an unknown one are marked partial.
+         */
+        private static int[][] csr(int[] sortedIds, IntPairs edges, BitSet partial) {
+            int n = sortedIds.length;
+            int[] from = new int[edges.size];
+            int[] to = new int[edges.size];
+            int[] offsets = new int[n + 1];
+            int m = 0;
+            for (int i = 0; i < edges.size; i++) {
+                int f = Arrays.binarySearch(sortedIds, edges.first[i]);
+                int t = Arrays.binarySearch(sortedIds, edges.second[i]);
+                if (f >= 0 && t >= 0) {
+                    from[m] = f;
+                    to[m] = t;
+                    offsets[f + 1]++;
+                    m++;
+                } else if (f >= 0) {
+                    partial.set(f);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] targets = new int[m];
+            int[] cursor = Arrays.copyOf(offsets, n);
+            for (int i = 0; i < m; i++) {
+                targets[cursor[from[i]]++] = to[i];
+            }
+
+            // Sort and deduplicate every row in place, then compact
+            int[] compactOffsets = new int[n + 1];
+            int write = 0;
+            for (int i = 0; i < n; i++) {
+                int start = offsets[i];
+                int end = offsets[i + 1];
+                Arrays.sort(targets, start, end);
+                compactOffsets[i] = write;
+                for (int j = start; j < end; j++) {
+                    if (j == start || targets[j] != targets[j - 1]) {
+                        targets[write++] = targets[j];
+                    }
+                }
+            }
+            compactOffsets[n] = write;
+            return new int[][]{compactOffsets, Arrays.copyOf(targets, write)};
+        }
+    }
+
+    private static final class IntPairs {
+        private int size;
+        private int[] first = new int[1024];
+        private int[] second = new int[1024];
+
+        private void add(int a, int b) {
+            if (size == first.length) {
+                first = Arrays.copyOf(first, size * 2);
+                second = Arrays.copyOf(second, size * 2);
+            }
+            first[size] = a;
+            second[size] = b;
+            size++;
+        }
+    }
+}
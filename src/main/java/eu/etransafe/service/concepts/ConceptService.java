@@ -2,42 +2,71 @@ package eu.etransafe.service.concepts;
 
 
 import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptNode;
+import eu.etransafe.domain.ConceptRelationship;
 import eu.etransafe.domain.Domain;
 import eu.etransafe.domain.Vocabulary;
 import eu.etransafe.exception.RosettaException;
 import eu.etransafe.repo.ConceptRepo;
+import eu.etransafe.repo.HierarchyRepo;
+import eu.etransafe.repo.VocabularySnapshot;
+import eu.etransafe.service.mappings.VocabularyHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static eu.etransafe.domain.ConceptRelationship.Identifier.HAS_DIR_PROC_SITE;
 import static eu.etransafe.domain.ConceptRelationship.Identifier.HAS_FINDING_SITE;
 import static eu.etransafe.domain.ConceptRelationship.Identifier.MED_DRA_SNOMED_EQ;
 import static eu.etransafe.domain.ConceptRelationship.Identifier.SNOMED_MED_DRA_EQ;
+import static java.util.Collections.emptyList;
 import static org.springframework.util.CollectionUtils.isEmpty;
 
+/*
+ * When the vocabulary data is read from files the concepts and relationships are looked up in it, there is no db then.
+ * The wildcard searches and the listings by class, vocabulary and domain still need the db.
+ */
 @Service
 @Slf4j
 public class ConceptService {
 
+    private static final Set<ConceptRelationship.Identifier> SITES = EnumSet.of(HAS_FINDING_SITE, HAS_DIR_PROC_SITE);
+    private static final Set<ConceptRelationship.Identifier> EQUALS = EnumSet.of(MED_DRA_SNOMED_EQ, SNOMED_MED_DRA_EQ);
 
     private final ConceptRepo conceptRepo;
+    private final HierarchyCache hierarchyCache;
+    private final HierarchyRepo hierarchyRepo;
+    private final VocabularyHolder vocabulary;
 
-    public ConceptService(ConceptRepo conceptRepo) {
+    public ConceptService(@Nullable ConceptRepo conceptRepo, HierarchyCache hierarchyCache,
+                          @Nullable HierarchyRepo hierarchyRepo, VocabularyHolder vocabulary) {
         this.conceptRepo = conceptRepo;
+        this.hierarchyCache = hierarchyCache;
+        this.hierarchyRepo = hierarchyRepo;
+        this.vocabulary = vocabulary;
     }
 
     public Optional<Concept> byId(Integer id) {
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return Optional.ofNullable(lookups.concept(id));
+        }
         return conceptRepo.findById(id);
     }
 
@@ -49,7 +78,8 @@ public class ConceptService {
         if (code == null || code.isBlank()) {
             return null;
         }
-        var result = conceptRepo.findDistinctByCodeAndVocabularyIn(code, vocabularies);
+        var lookups = vocabulary.lookups();
+        var result = lookups != null ? lookups.byCode(code, vocabularies) : conceptRepo.findDistinctByCodeAndVocabularyIn(code, vocabularies);
         if (isEmpty(result)) {
             log.warn("Concept with code: [" + code + "] not found");
             return null;
@@ -63,6 +93,10 @@ public class ConceptService {
         if (codes.isEmpty()) {
             return Collections.emptyList();
         }
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return lookups.byCodes(codes, vocabularies);
+        }
         return conceptRepo.findDistinctByCodeInAndVocabularyIn(codes, vocabularies);
     }
 
@@ -74,45 +108,116 @@ public class ConceptService {
     }
 
     public Set<Concept> byName(String name, Set<Vocabulary.Identifier> vocabularies) {
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return lookups.byName(name, vocabularies);
+        }
         if (isEmpty(vocabularies)) {
             return conceptRepo.findDistinctByName(name);
         }
         return conceptRepo.findDistinctByNameAndVocabularyIn(name, vocabularies);
     }
 
-    @Cacheable(value = "children")
     public List<Concept> children(Concept parent) {
-        return conceptRepo.findChildrenById(parent.id());
+        return childrenOf(List.of(parent)).get(parent.id());
     }
 
-    @Cacheable(value = "parents")
+    // The direct parents, or the concept itself when it has none
     public List<Concept> parents(Concept concept) {
-        return parents(concept, 1, 1, false);
+        var parents = parentsOf(List.of(concept)).get(concept.id());
+        return isEmpty(parents) ? List.of(concept) : parents;
     }
 
 
-    public List<Concept> parents(Concept concept, Integer level, Integer maxLevels, boolean appendChild) {
-        if (maxLevels == -1 || level <= maxLevels) {
-            var parents = conceptRepo.findParentsById(concept.id());
-            if (appendChild) {
-                parents.forEach(parent -> parent.addChild(concept));
-            }
-            var tops = parents.stream()
-                    .flatMap(parent -> {
-                        if (appendChild) {
-                            parent.level(level);
-                        }
-                        return parents(parent, level + 1, maxLevels, appendChild).stream();
-                    }).toList();
+    /*
+     * maxLevels = null or -1 indicates all parent levels. Returns the top most parents that were reached, carrying the
+     * path back down to the node as their children.
+     */
+    public List<ConceptNode> parents(ConceptNode node, Integer maxLevels) {
+        // Fetch the parents breadth first, one lookup per level instead of one per concept
+        Map<Integer, List<Concept>> parentsById = new HashMap<>();
+        List<Concept> frontier = List.of(node.concept());
+        for (int l = 1; withinLevels(l, maxLevels) && !frontier.isEmpty(); l++) {
+            var found = parentsOf(frontier);
+            parentsById.putAll(found);
+            frontier = found.values().stream()
+                    .flatMap(List::stream)
+                    .filter(p -> !parentsById.containsKey(p.id()))
+                    .filter(distinctById())
+                    .toList();
+        }
+        return tops(node, 1, maxLevels, parentsById);
+    }
+
+    // A parent reached through multiple paths gets a node per path, the subtree below it is shared
+    private List<ConceptNode> tops(ConceptNode node, int level, Integer maxLevels, Map<Integer, List<Concept>> parentsById) {
+        if (withinLevels(level, maxLevels)) {
+            var tops = parentsById.getOrDefault(node.concept().id(), emptyList()).stream()
+                    .flatMap(parent -> tops(new ConceptNode(parent, level, List.of(node)), level + 1, maxLevels, parentsById).stream())
+                    .toList();
             if (!isEmpty(tops)) {
                 return tops;
             }
         }
-        return List.of(concept);
+        return List.of(node);
+    }
+
+    private boolean withinLevels(int level, Integer maxLevels) {
+        return maxLevels == null || maxLevels == -1 || level <= maxLevels;
+    }
+
+    public Map<Integer, List<Concept>> childrenOf(Collection<Concept> parents) {
+        var hierarchy = hierarchyCache.hierarchy();
+        return relativesOf(parents, hierarchy::hasAllChildren, hierarchy::children,
+                vocabulary.lookups() != null ? ids -> Map.of() : hierarchyRepo::findChildren);
+    }
+
+    public Map<Integer, List<Concept>> parentsOf(Collection<Concept> concepts) {
+        var hierarchy = hierarchyCache.hierarchy();
+        return relativesOf(concepts, hierarchy::hasAllParents, hierarchy::parents,
+                vocabulary.lookups() != null ? ids -> Map.of() : hierarchyRepo::findParents);
+    }
+
+    /*
+     * Every requested concept gets an entry. Concepts missing from the in-memory hierarchy, or with relatives outside
+     * of it, are fetched in a single query. Without a db there is nothing outside of it, they have no relatives.
+     */
+    private Map<Integer, List<Concept>> relativesOf(Collection<Concept> concepts, IntPredicate complete,
+                                                    IntFunction<List<Concept>> inMemory,
+                                                    Function<Collection<Integer>, Map<Integer, List<Concept>>> fromDb) {
+        Map<Integer, List<Concept>> result = new HashMap<>(concepts.size());
+        Set<Integer> missing = new HashSet<>();
+        for (Concept concept : concepts) {
+            int id = concept.id();
+            if (result.containsKey(id)) {
+                continue;
+            }
+            if (complete.test(id)) {
+                result.put(id, inMemory.apply(id));
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            var found = fromDb.apply(missing);
+            missing.forEach(id -> result.put(id, found.getOrDefault(id, emptyList())));
+        }
+        return result;
+    }
+
+    private static Predicate<Concept> distinctById() {
+        Set<Integer> seen = new HashSet<>();
+        return c -> seen.add(c.id());
     }
 
     public Set<Concept> findingSites(Concept concept) {
-        return conceptRepo.findFindingSites(concept, EnumSet.of(HAS_FINDING_SITE, HAS_DIR_PROC_SITE));
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return lookups.relationshipsFrom(List.of(concept), SITES).stream()
+                    .map(ConceptRelationship::conceptTwo)
+                    .collect(Collectors.toSet());
+        }
+        return conceptRepo.findFindingSites(concept, SITES);
     }
 
     public Set<Concept> normalize(String term, Set<Vocabulary.Identifier> vocabularies, boolean nonPreferred) {
@@ -121,8 +226,7 @@ public class ConceptService {
         if (nonPreferred) {
             concepts.addAll(bySynonym(term, vocabularies));
         }
-        var equalConcepts = conceptRepo.findEqualConcepts(concepts, vocabularies, EnumSet.of(MED_DRA_SNOMED_EQ, SNOMED_MED_DRA_EQ));
-        concepts.addAll(equalConcepts);
+        concepts.addAll(equalConcepts(concepts, vocabularies));
         if (concepts.size() > 1) {
             var valid = concepts.stream().filter(c -> c.invalidReason() == null || c.invalidReason().isEmpty() || c.invalidReason().isBlank()).collect(Collectors.toSet());
             if (!isEmpty(valid)) {
@@ -132,8 +236,21 @@ public class ConceptService {
         return concepts;
     }
 
+    private Set<Concept> equalConcepts(Set<Concept> concepts, Set<Vocabulary.Identifier> vocabularies) {
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return lookups.relationshipsFrom(concepts, EQUALS).stream()
+                    .map(ConceptRelationship::conceptTwo)
+                    .filter(c -> vocabularies.contains(c.vocabulary()))
+                    .collect(Collectors.toSet());
+        }
+        return conceptRepo.findEqualConcepts(concepts, vocabularies, EQUALS);
+    }
+
     private Set<Concept> bySynonym(String term, Set<Vocabulary.Identifier> vocabularies) {
-        return conceptRepo.findDistinctBySynonymName(term).stream().filter(c -> isEmpty(vocabularies) || vocabularies.contains(c.vocabulary())).collect(Collectors.toSet());
+        var lookups = vocabulary.lookups();
+        var synonyms = lookups != null ? lookups.bySynonym(term) : conceptRepo.findDistinctBySynonymName(term);
+        return synonyms.stream().filter(c -> isEmpty(vocabularies) || vocabularies.contains(c.vocabulary())).collect(Collectors.toSet());
     }
 
     public List<String> wildcardSearchSynonyms(String query, Set<Domain> domains, Set<Vocabulary.Identifier> vocabularies, Integer limit, Integer offset, String conceptClass) {
@@ -144,22 +261,8 @@ public class ConceptService {
         return conceptRepo.matchConceptNames(query, Domain.convert(domains), Vocabulary.Identifier.convert(vocabularies), limit, offset, conceptClass);
     }
 
-    public int count(List<Concept> conceptTrees) {
-        AtomicInteger count = new AtomicInteger(0);
-        conceptTrees.forEach(parent -> {
-            int cnt = count(parent);
-            count.addAndGet(cnt);
-        });
-        return count.get();
-    }
-
-    private int count(Concept concept) {
-        if (isEmpty(concept.children())) {
-            return 1;
-        }
-        var count = new AtomicInteger(1);
-        concept.children().forEach(child -> count.set(count.addAndGet(count(child))));
-        return count.get();
+    public int count(List<ConceptNode> conceptTrees) {
+        return conceptTrees.stream().mapToInt(ConceptNode::size).sum();
     }
 
     @Cacheable(value = "conceptsByVocAndDom")
@@ -174,11 +277,27 @@ public class ConceptService {
     }
 
     public List<Concept> findingsForSite(Concept site) {
-        return conceptRepo.findingSitesOf(site, EnumSet.of(HAS_FINDING_SITE, HAS_DIR_PROC_SITE));
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return lookups.relationshipsTo(List.of(site), SITES).stream()
+                    .map(ConceptRelationship::conceptOne)
+                    .distinct()
+                    .toList();
+        }
+        return conceptRepo.findingSitesOf(site, EnumSet.copyOf(SITES));
 
     }
 
     public List<Concept> meddraByNameIn(Collection<String> names) {
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return names.stream()
+                    .distinct()
+                    .flatMap(name -> lookups.byName(name, EnumSet.of(Vocabulary.Identifier.MEDDRA)).stream())
+                    .filter(c -> List.of("PT", "LLT").contains(c.conceptClass()))
+                    .distinct()
+                    .toList();
+        }
         return conceptRepo.findAllByNameInAndVocabularyInAndConceptClassIn(names, EnumSet.of(Vocabulary.Identifier.MEDDRA), List.of("PT", "LLT"));
     }
 }
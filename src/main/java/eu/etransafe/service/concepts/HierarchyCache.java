@@ -0,0 +1,51 @@
+package eu.etransafe.service.concepts;
+
+import eu.etransafe.repo.VocabularySource;
+import eu.etransafe.service.mappings.VocabularyHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static eu.etransafe.domain.Vocabularies.SUPPORTED;
+
+@Slf4j
+@Service
+public class HierarchyCache {
+
+    private final VocabularySource vocabularySource;
+    private final boolean enabled;
+    private final VocabularyHolder vocabulary;
+
+    public HierarchyCache(VocabularySource vocabularySource, @Value("${rosetta.hierarchy.enabled:true}") boolean enabled,
+                          VocabularyHolder vocabulary) {
+        this.vocabularySource = vocabularySource;
+        this.enabled = enabled;
+        this.vocabulary = vocabulary;
+    }
+
+    // Loads a new hierarchy in the background, the mapping cache publishes it together with the tables loaded next to it
+    public CompletableFuture<ConceptHierarchy> load() {
+        if (!enabled) {
+            log.info("In-memory concept hierarchy is disabled, parents and children will be queried from the db");
+            return CompletableFuture.completedFuture(ConceptHierarchy.EMPTY);
+        }
+        Executor executor = task -> Thread.ofPlatform().name("hierarchy-loader").daemon().start(task);
+        return CompletableFuture.supplyAsync(this::loadNow, executor);
+    }
+
+    private ConceptHierarchy loadNow() {
+        long start = System.currentTimeMillis();
+        var loaded = vocabularySource.hierarchy(SUPPORTED);
+        log.info("Loaded {} concepts and {} hierarchy edges in {} milliseconds", loaded.size(), loaded.edges(),
+                System.currentTimeMillis() - start);
+        return loaded;
+    }
+
+    // Concepts that are not in the snapshot (or all of them when it is disabled) should be looked up in the db
+    public ConceptHierarchy hierarchy() {
+        return vocabulary.hierarchy();
+    }
+}
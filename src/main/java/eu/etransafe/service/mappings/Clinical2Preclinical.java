@@ -2,27 +2,37 @@ package eu.etransafe.service.mappings;
 
 import com.google.common.collect.Sets;
 import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptSet;
+import eu.etransafe.domain.Description;
 import eu.etransafe.domain.Domain;
 import eu.etransafe.domain.Mapping;
 import eu.etransafe.domain.MappingItem;
 import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
 import eu.etransafe.service.concepts.ConceptService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static eu.etransafe.domain.Mapping.DESCR_TO_SINGLE_OR;
 import static eu.etransafe.domain.Mapping.Direction.DOWNHILL;
 import static eu.etransafe.domain.Mapping.Direction.UPHILL;
+import static eu.etransafe.service.mappings.MappingService.penaltyLimit;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
 import static java.util.stream.Collectors.groupingBy;
@@ -33,36 +43,95 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 @Slf4j
 public class Clinical2Preclinical {
 
-    public static final Set<Concept> DO_NOT_EXPAND = Set.of(new Concept().id(40481827), new Concept().id(4034052), new Concept().id(4237366), new Concept().id(70002975), new Concept().id(70000004), new Concept().id(4175951));
+    public static final Set<Concept> DO_NOT_EXPAND = Set.of(new Concept(40481827), new Concept(4034052), new Concept(4237366), new Concept(70002975), new Concept(70000004), new Concept(4175951));
     private final ConceptService conceptService;
     private final MappingService mappingService;
     private final MappingCache mappingCache;
+    private final ExpansionMemo expansionMemo;
+    private final SearchStrategy search;
+    private final MappingBranches branches;
+    private final MappableDistances distances;
+    private final VocabularyHolder vocabulary;
 
 
-    public Clinical2Preclinical(ConceptService conceptService, MappingService mappingService, MappingCache mappingCache) {
+    public Clinical2Preclinical(ConceptService conceptService, MappingService mappingService, MappingCache mappingCache,
+                                ExpansionMemo expansionMemo, @Value("${rosetta.mapping.search:exhaustive}") SearchStrategy search,
+                                MappingBranches branches, MappableDistances distances, VocabularyHolder vocabulary) {
         this.conceptService = conceptService;
         this.mappingService = mappingService;
         this.mappingCache = mappingCache;
+        this.expansionMemo = expansionMemo;
+        this.search = search;
+        this.branches = branches;
+        this.distances = distances;
+        this.vocabulary = vocabulary;
     }
 
     public Set<Mapping> map(Concept source, Set<Vocabulary.Identifier> targetVocabularies, boolean explain, int maxPenalty) {
+        return map(source, targetVocabularies, explain, maxPenalty, Deadline.none());
+    }
+
+    // Stops expanding once the deadline has passed, the mappings found until then are returned
+    public Set<Mapping> map(Concept source, Set<Vocabulary.Identifier> targetVocabularies, boolean explain, int maxPenalty,
+                            Deadline deadline) {
+        return map(source, List.of(targetVocabularies), explain, maxPenalty, deadline).get(targetVocabularies);
+    }
+
+    /*
+     * Maps to several sets of target vocabularies at once, e.g. eTox and SEND. The mappings to SNOMED and the parts of
+     * the SNOMED concepts do not depend on the target, they are looked up once. Expanding the SNOMED concepts stops at
+     * concepts mapped to the target, so it is done for every target, as are the lookups of the preclinical terms.
+     */
+    public Map<Set<Vocabulary.Identifier>, Set<Mapping>> map(Concept source, List<Set<Vocabulary.Identifier>> targets,
+                                                             boolean explain, int maxPenalty, Deadline deadline) {
+        return vocabulary.pinned(() -> mapPinned(source, targets, explain, maxPenalty, deadline));
+    }
+
+    private Map<Set<Vocabulary.Identifier>, Set<Mapping>> mapPinned(Concept source, List<Set<Vocabulary.Identifier>> targets,
+                                                                    boolean explain, int maxPenalty, Deadline deadline) {
+        Map<Set<Vocabulary.Identifier>, Set<Mapping>> result = new LinkedHashMap<>();
         if (source == null) {
             log.error("Provided concept was null mapping clinical to preclinical");
-            return emptySet();
+            targets.forEach(target -> result.put(target, emptySet()));
+            return result;
         }
-        log.debug("Mapping {} [{}] to {}. maxPenalty: {}", source.name(), source.code(), targetVocabularies, maxPenalty);
+        log.debug("Mapping {} [{}] to {}. maxPenalty: {}", source.name(), source.code(), targets, maxPenalty);
         List<Mapping> mappingsToSnomed = toSnomed(source);
         if (mappingsToSnomed.isEmpty()) {
-            return Set.of(Mapping.noMapping(source));
+            targets.forEach(target -> result.put(target, Set.of(Mapping.noMapping(source))));
+            return result;
         }
+        var parts = branches.map(mappingsToSnomed.stream().filter(m -> m.totalPenalty() <= maxPenalty).toList(),
+                vocabulary.pinning(m -> List.of(mappingService.decomposeSnomed(m))));
+        targets.forEach(target -> result.put(target, map(source, mappingsToSnomed, parts, target, explain, maxPenalty, deadline)));
+        return result;
+    }
 
-        Set<Mapping> result = new HashSet<>();
-        Map<Set<Concept>, Double> alreadyDone = new HashMap<>();
+    /*
+     * Starts mapping with a maximum penalty that is raised one level at a time, e.g. to find the mappings with the lowest
+     * penalty there are. Every level continues where the previous one stopped: the mappings to SNOMED and their parts are
+     * looked up once, what was found is kept and only the expansions the previous level cut off at its maximum penalty
+     * are expanded further. The expansions are always exhaustive and are not shared with other requests. A deepening
+     * belongs to one request, it is not thread safe, and keeps using the vocabulary data that was current when it started.
+     */
+    public Deepening deepening(Concept source, Set<Vocabulary.Identifier> targetVocabularies, boolean explain, int deepest) {
+        return new Deepening(source, targetVocabularies, explain, deepest);
+    }
 
+    private Set<Mapping> map(Concept source, List<Mapping> mappingsToSnomed, List<MappingService.SnomedParts> parts,
+                             Set<Vocabulary.Identifier> targetVocabularies, boolean explain, int maxPenalty, Deadline deadline) {
+        // Shared by the SNOMED alternatives, which can be mapped in parallel
+        Map<ConceptSet, Double> alreadyDone = new ConcurrentHashMap<>();
 
-        mappingsToSnomed.stream()
-                .map(snomed -> mapSnomedToPreclinical(targetVocabularies, snomed, maxPenalty, alreadyDone))
-                .flatMap(Collection::stream)
+        var candidates = search == SearchStrategy.BEST_FIRST
+                ? bestFirst(parts, targetVocabularies, maxPenalty, alreadyDone, deadline, explain)
+                : branches.map(parts, vocabulary.pinning(snomed -> mapSnomedToPreclinical(targetVocabularies, snomed, maxPenalty, alreadyDone, deadline, explain)));
+        return finish(source, mappingsToSnomed, candidates, explain);
+    }
+
+    private Set<Mapping> finish(Concept source, List<Mapping> mappingsToSnomed, Collection<Mapping> candidates, boolean explain) {
+        Set<Mapping> result = new HashSet<>();
+        candidates.stream()
                 .filter(m -> m.to() != null && !m.to().stream().allMatch(Objects::isNull))
                 .map(this::splitOrToSingleMapping)
                 .flatMap(Collection::stream)
@@ -79,22 +148,122 @@ public class Clinical2Preclinical {
                 });
 
         if (result.isEmpty()) {
-            var deadEnd = new Mapping().from(source).description("Mapped source concepts to " + mappingsToSnomed.stream()
+            var deadEnd = Mapping.builder().from(source).description("Mapped source concepts to " + mappingsToSnomed.stream()
                     .map(Mapping::to)
                     .flatMap(Collection::stream)
                     .distinct()
                     .map(MappingItem::humanReadable)
-                    .collect(Collectors.joining("  OR  ")) + " but failed to reach a suitable preclinical translation");
+                    .collect(Collectors.joining("  OR  ")) + " but failed to reach a suitable preclinical translation")
+                    .build();
             return Set.of(deadEnd);
         }
         return explain ? result : mappingService.squash(source, result);
     }
 
+    public final class Deepening {
+        private final Concept source;
+        private final Set<Vocabulary.Identifier> targetVocabularies;
+        private final boolean explain;
+        private final int deepest;
+        private final List<Mapping> mappingsToSnomed;
+        // SNOMED alternatives over the penalty of the levels so far
+        private final List<MappingService.SnomedParts> waiting;
+        // Split SNOMED mappings not expanded yet, with what was found for their alternative
+        private final Map<Mapping, Set<Mapping>> unexpanded = new LinkedHashMap<>();
+        private final List<Expansion> expansions = new ArrayList<>();
+        private final Map<ConceptSet, Double> alreadyDone = new HashMap<>();
+        private final Set<Mapping> candidates = new HashSet<>();
+        private final LoadedVocabulary data;
+        private int level;
+
+        private Deepening(Concept source, Set<Vocabulary.Identifier> targetVocabularies, boolean explain, int deepest) {
+            this.data = vocabulary.current();
+            this.source = source;
+            this.targetVocabularies = targetVocabularies;
+            this.explain = explain;
+            this.deepest = deepest;
+            this.mappingsToSnomed = source == null ? emptyList() : vocabulary.pinned(data, () -> toSnomed(source));
+            this.waiting = vocabulary.pinned(data, () -> mappingsToSnomed.stream()
+                    .filter(m -> m.totalPenalty() <= deepest)
+                    .map(mappingService::decomposeSnomed)
+                    .collect(Collectors.toCollection(ArrayList::new)));
+        }
+
+        // The mappings with at most the given penalty, which can not be lower than the one of the previous level
+        public Set<Mapping> map(int maxPenalty, Deadline deadline) {
+            return vocabulary.pinned(data, () -> deepen(maxPenalty, deadline));
+        }
+
+        private Set<Mapping> deepen(int maxPenalty, Deadline deadline) {
+            if (maxPenalty < level || maxPenalty > deepest) {
+                throw new RosettaException("Can not deepen from a maximum penalty of " + level + " to " + maxPenalty);
+            }
+            if (source == null) {
+                return emptySet();
+            }
+            if (mappingsToSnomed.isEmpty()) {
+                return Set.of(Mapping.noMapping(source));
+            }
+            level = maxPenalty;
+            start();
+            expansions.forEach(expansion -> resume(expansion, deadline));
+            for (var it = unexpanded.entrySet().iterator(); it.hasNext() && !deadline.expired(); ) {
+                var next = it.next();
+                var m = next.getKey();
+                var found = next.getValue();
+                if (m.totalPenalty() < level) {
+                    it.remove();
+                    // The same limit as mapSnomedToPreclinical puts on split mappings with many concepts
+                    if (!(found.size() > 5 && m.toConcepts().size() > 5)) {
+                        var expansion = new Expansion(level, deepest, targetVocabularies, new HashMap<>(), deadline,
+                                new ArrayList<>(), explain ? null : m);
+                        var expanded = detached(expandAndMap(m, null, null, expansion), expansion);
+                        found.addAll(expanded);
+                        candidates.addAll(expanded);
+                        expansion.alreadyDone.forEach((concepts, penalty) -> alreadyDone.merge(concepts, penalty, Math::min));
+                        expansions.add(expansion);
+                    }
+                }
+            }
+            return finish(source, mappingsToSnomed, candidates, explain);
+        }
+
+        // Maps the SNOMED alternatives that fit in the current level directly and splits them
+        private void start() {
+            for (var it = waiting.iterator(); it.hasNext(); ) {
+                var parts = it.next();
+                if (parts.mapping().totalPenalty() <= level) {
+                    it.remove();
+                    Set<Mapping> found = new HashSet<>(directMapping(parts.mapping(), targetVocabularies));
+                    var split = mappingService.splitSnomed(parts, targetVocabularies);
+                    found.addAll(snomedPartsToPreclinical(split, targetVocabularies, alreadyDone, deepest));
+                    candidates.addAll(found);
+                    split.forEach(m -> unexpanded.put(m, found));
+                }
+            }
+        }
+
+        private void resume(Expansion expansion, Deadline deadline) {
+            expansion.maxPenalty = level;
+            expansion.deadline = deadline;
+            var cut = new ArrayList<>(expansion.cut);
+            expansion.cut.clear();
+            cut.forEach(reached -> {
+                if (reached.mapping().totalPenalty() >= level || deadline.expired()) {
+                    expansion.cut.add(reached);
+                } else if (expansion.exclude.size() < 120) {
+                    candidates.addAll(detached(deeper(reached, expansion), expansion));
+                }
+            });
+            expansion.alreadyDone.forEach((concepts, penalty) -> alreadyDone.merge(concepts, penalty, Math::min));
+        }
+    }
+
     private Mapping negativelyScoreOnlyOrgans(Mapping mapping) {
         boolean shouldBeNegative = mapping.toConcepts().stream().allMatch(c -> c.domain().equals(Domain.SPEC_ANATOMIC_SITE));
         if (shouldBeNegative) {
             double negative = -mapping.penalty() - 1;
-            mapping.penalty(negative);
+            return mapping.copy().penalty(negative).build();
         }
         return mapping;
     }
@@ -102,8 +271,7 @@ public class Clinical2Preclinical {
     // I don't know where these nulls are coming from, but they are wrecking havock in the UI
     private Mapping removeNulls(Mapping m) {
         var filtered = m.to().stream().filter(i -> i.concepts() != null && !i.concepts().isEmpty()).collect(toSet());
-        m.to(filtered);
-        return m;
+        return filtered.size() == m.to().size() ? m : m.copy().to(filtered).build();
     }
 
     private Set<Mapping> reduceOverTwoItemsToPairs(Mapping m) {
@@ -115,9 +283,10 @@ public class Clinical2Preclinical {
             combinations.stream()
                     .filter(c -> c.stream().map(Concept::domain).distinct().count() == 2)
                     .forEach(pair -> {
-                        var n = new Mapping().to(new MappingItem(pair))
+                        var n = Mapping.builder().to(new MappingItem(pair))
                                 .precedingMapping(m)
-                                .description("Reduced mapping of more than two concepts to a pair, for practical purposes");
+                                .description("Reduced mapping of more than two concepts to a pair, for practical purposes")
+                                .build();
                         reduced.add(n);
                     });
         }
@@ -129,10 +298,11 @@ public class Clinical2Preclinical {
         Set<Mapping> ors = new HashSet<>();
         if (r.to().size() > 1) {
             r.to().forEach(t -> {
-                var m = new Mapping().to(t)
+                var m = Mapping.builder().to(t)
                         .description(DESCR_TO_SINGLE_OR)
                         .precedingMapping(r)
-                        .penalty((r.to().size() - 1) * 0.1);
+                        .penalty((r.to().size() - 1) * 0.1)
+                        .build();
                 ors.add(m);
 
             });
@@ -151,16 +321,14 @@ public class Clinical2Preclinical {
         conceptService.children(source).forEach(meddra -> {
             var snomedItems = mappingCache.meddraToSNOMED(meddra);
             if (snomedItems != null && !snomedItems.isEmpty()) {
-                var llt = new Mapping()
+                var llt = Mapping.builder()
                         .from(source)
                         .to(meddra)
                         .expanded(source, meddra, Mapping.Direction.DOWNHILL)
-                        .penalty(0.1);
+                        .penalty(0.1)
+                        .build();
 
-                snomedItems.forEach(i -> {
-                    i.precedingMapping(llt);
-                    intermediate.add(i);
-                });
+                snomedItems.forEach(i -> intermediate.add(i.copy().precedingMapping(llt).build()));
             }
         });
         if (intermediate.isEmpty()) {
@@ -178,30 +346,29 @@ public class Clinical2Preclinical {
         return result;
     }
 
-    private Set<Mapping> mapSnomedToPreclinical(Set<Vocabulary.Identifier> targetVocabularies, Mapping mappingToSnomed,
-                                                int maxPenalty, Map<Set<Concept>, Double> alreadyDone) {
+    private Set<Mapping> mapSnomedToPreclinical(Set<Vocabulary.Identifier> targetVocabularies, MappingService.SnomedParts parts,
+                                                int maxPenalty, Map<ConceptSet, Double> alreadyDone, Deadline deadline,
+                                                boolean explain) {
+        var mappingToSnomed = parts.mapping();
         log.debug("Mapping {}", mappingToSnomed.toConcepts().stream().map(Concept::string).collect(Collectors.joining(", ")));
         Set<Mapping> result = new HashSet<>();
-        if (mappingToSnomed.totalPenalty() > maxPenalty) {
-            return result;
-        }
         var directMappings = directMapping(mappingToSnomed, targetVocabularies);
         if (!directMappings.isEmpty()) {
             result.addAll(directMappings);
         }
 
-        var split = mappingService.splitSnomed(mappingToSnomed, targetVocabularies);
+        var split = mappingService.splitSnomed(parts, targetVocabularies);
         if (!split.isEmpty()) {
-            var indirectMappings = snomedPartsToPreclinical(split, targetVocabularies, alreadyDone);
+            var indirectMappings = snomedPartsToPreclinical(split, targetVocabularies, alreadyDone, maxPenalty);
             if (!indirectMappings.isEmpty()) {
                 result.addAll(indirectMappings);
             }
 
             split.forEach(m -> {
-                if (m.totalPenalty() < maxPenalty) {
+                if (m.totalPenalty() < maxPenalty && !deadline.expired()) {
                     // If we already have results and there are lots of concepts, we will skip expansion it can get a bit crazy with things like CLOVE syndrome (3 morph + 4 finding sites with many children)
                     if (!(result.size() > 5 && m.toConcepts().size() > 5)) {
-                        var expMaps = expandAndMap(m, new HashSet<>(), null, maxPenalty, targetVocabularies, alreadyDone);
+                        var expMaps = expandAndMap(m, maxPenalty, targetVocabularies, alreadyDone, deadline, explain);
                         result.addAll(expMaps);
                     }
                 }
@@ -210,15 +377,90 @@ public class Clinical2Preclinical {
         return result;
     }
 
+    /*
+     * Expands the cheapest SNOMED mapping first. Expanding only adds penalty, so once the cheapest mapping left reaches
+     * the penalty limit of what is returned nothing that would be returned can be found anymore. Every split mapping
+     * keeps its own expansion state, as in the exhaustive search, so until then it finds what the exhaustive search
+     * finds, the cheapest results first when the deadline passes. Only the concepts an expansion leaves out once they
+     * have been expanded to depend on the order they are reached in, which can make either search miss a result the
+     * other finds.
+     */
+    private Set<Mapping> bestFirst(List<MappingService.SnomedParts> parts, Set<Vocabulary.Identifier> targetVocabularies,
+                                   int maxPenalty, Map<ConceptSet, Double> alreadyDone, Deadline deadline, boolean explain) {
+        Set<Mapping> found = new HashSet<>();
+        List<Expansion> expansions = new ArrayList<>();
+        PriorityQueue<Frontier> frontier = new PriorityQueue<>(Comparator.comparingDouble(Frontier::penalty));
+        parts.forEach(snomed -> {
+            found.addAll(directMapping(snomed.mapping(), targetVocabularies));
+            var split = mappingService.splitSnomed(snomed, targetVocabularies);
+            found.addAll(snomedPartsToPreclinical(split, targetVocabularies, alreadyDone, maxPenalty));
+            split.stream()
+                    .filter(m -> m.totalPenalty() < maxPenalty)
+                    .forEach(m -> {
+                        // Like expandAndMap, only mappings of one item start from what the request already mapped
+                        var expansion = new Expansion(maxPenalty, targetVocabularies,
+                                m.to().size() != 1 ? alreadyDone : new HashMap<>(), deadline, explain ? null : m);
+                        expansions.add(expansion);
+                        splitOrToSingleMapping(m).forEach(single -> frontier.add(new Frontier(single,
+                                ExpansionState.of(single.toConcepts(), null, targetVocabularies), null, expansion)));
+                    });
+        });
+        int expanded = 0;
+        while (!frontier.isEmpty() && frontier.peek().penalty() < penaltyLimit(maxPenalty) && !deadline.expired()) {
+            var next = frontier.poll();
+            expanded++;
+            var expansion = next.expansion();
+            var exclude = expansion.exclude;
+            var direction = next.direction();
+            for (Concept snomed : next.mapping().singleToMappingItem().concepts()) {
+                if (!(DOWNHILL.equals(direction) && exclude.contains(snomed))) {
+                    var parents = conceptService.parents(snomed);
+                    if (parents.stream().noneMatch(DO_NOT_EXPAND::contains)) {
+                        expandBestFirst(next, snomed, parents, UPHILL, expansion, found, frontier);
+                    }
+                }
+                if (!(UPHILL.equals(direction) && exclude.contains(snomed)) && !DO_NOT_EXPAND.contains(snomed)) {
+                    expandBestFirst(next, snomed, conceptService.children(snomed), DOWNHILL, expansion, found, frontier);
+                }
+            }
+        }
+        log.debug("Expanded {} SNOMED mappings best first, {} left in the frontier", expanded, frontier.size());
+        expansions.stream()
+                .filter(expansion -> expansion.alreadyDone != alreadyDone)
+                .forEach(expansion -> expansion.alreadyDone.forEach((concepts, penalty) -> alreadyDone.merge(concepts, penalty, Math::min)));
+        return found;
+    }
+
+    private void expandBestFirst(Frontier from, Concept snomed, List<Concept> relatives, Mapping.Direction direction,
+                                 Expansion expansion, Set<Mapping> found, PriorityQueue<Frontier> frontier) {
+        for (Concept relative : relatives) {
+            var expanded = expansion.scoredFrom == null
+                    ? createHierarchicTraversalMappingItem(from.mapping(), snomed, relative, direction)
+                    : scoredTraversal(expansion.scoredFrom, from.mapping(), snomed, relative, direction);
+            if (mappingCache.isMappedToPreclinical(relative, expansion.targetVocabularies)) {
+                found.addAll(detached(snomedPartsToPreclinical(Set.of(expanded), expansion.targetVocabularies, expansion.alreadyDone, expansion.deepest), expansion));
+            }
+            if (expanded.totalPenalty() < expansion.maxPenalty) {
+                expansion.exclude.add(relative);
+                var state = from.state().expand(snomed, relative, direction);
+                if (!outOfReach(expanded, relative, direction, expansion, expansion.maxPenalty)
+                        && expansion.firstReached(state, expanded.totalPenalty())) {
+                    frontier.add(new Frontier(expanded, state, direction, expansion));
+                }
+            }
+        }
+    }
+
     private Set<Mapping> snomedPartsToPreclinical(Set<Mapping> split, Set<Vocabulary.Identifier> vocabularies,
-                                                  Map<Set<Concept>, Double> alreadyDone) {
+                                                  Map<ConceptSet, Double> alreadyDone, int maxPenalty) {
         Set<Mapping> mappings = new HashSet<>();
         split.forEach(s -> s.to().forEach(item -> {
             var snomedConceptsGroupedByMappedOrNot = item.concepts().stream().collect(groupingBy(m -> mappingCache.isMappedToPreclinical(m, vocabularies)));
             List<Concept> removedItems = snomedConceptsGroupedByMappedOrNot.getOrDefault(false, emptyList());
             Set<Concept> mappableSnomed = new HashSet<>(snomedConceptsGroupedByMappedOrNot.getOrDefault(true, emptyList()));
-            if (!mappableSnomed.isEmpty() && (alreadyDone.get(mappableSnomed) == null || alreadyDone.get(mappableSnomed) > s.totalPenalty())) {
-                alreadyDone.put(mappableSnomed, s.totalPenalty());
+            var mappable = removedItems.isEmpty() ? item.ids() : ConceptSet.of(mappableSnomed);
+            if (!mappable.isEmpty() && (alreadyDone.get(mappable) == null || alreadyDone.get(mappable) > s.totalPenalty())) {
+                alreadyDone.put(mappable, s.totalPenalty());
                 log.debug("Concepts in SNOMED split {}", s.toConcepts().stream().map(Concept::string).collect(Collectors.joining(", ")));
 
                 // Only makes sense if we have the original set completely mappable
@@ -234,7 +476,7 @@ public class Clinical2Preclinical {
                 if (item.size() > 1) {
                     Mapping preceding = createPrecedingMapping(s, item, removedItems);
                     mappingCache.partial(mappableSnomed, preceding, vocabularies).forEach(p -> {
-                        var mergers = merge(p, preceding);
+                        var mergers = merge(p, preceding, maxPenalty);
                         mappings.addAll(mergers);
                     });
                     log.debug("mappableSnomed size {}", mappableSnomed.size());
@@ -243,17 +485,17 @@ public class Clinical2Preclinical {
 
                     if (mappableSnomed.size() > 1) {
                         individualConceptMappings.forEach(m -> m.forEach(inner -> {
-                            var intermediate = new Mapping().precedingMapping(preceding).to(inner.from()).penalty(mappableSnomed.size() - 1.0).description("Removed AND mappings");
-                            var singleItemMapping = new Mapping().precedingMapping(intermediate).to(inner.to()).description(inner.description()).penalty(inner.penalty());
+                            var intermediate = Mapping.builder().precedingMapping(preceding).to(inner.from()).penalty(mappableSnomed.size() - 1.0).description("Removed AND mappings").build();
+                            var singleItemMapping = Mapping.builder().precedingMapping(intermediate).to(inner.to()).description(inner.describedAs()).penalty(inner.penalty()).build();
                             log.debug("Adding a single mapping {}", singleItemMapping.singleToMappingItem().humanReadableSimple());
                             mappings.add(singleItemMapping);
                             mappingCache.partial(inner.from().stream().findAny().get().concepts(), intermediate, vocabularies).forEach(p -> {
-                                var mergers = merge(p, preceding);
+                                var mergers = merge(p, preceding, maxPenalty);
                                 mappings.addAll(mergers);
                             });
                         }));
                     }
-                    var acquisitions = merge(individualConceptMappings, preceding);
+                    var acquisitions = merge(individualConceptMappings, preceding, maxPenalty);
                     mappings.addAll(acquisitions);
                 }
             }
@@ -264,41 +506,86 @@ public class Clinical2Preclinical {
     private Mapping createPrecedingMapping(Mapping s, MappingItem item, List<Concept> removedItems) {
         Mapping preceding;
         if (!removedItems.isEmpty()) {
-            preceding = new Mapping().precedingMapping(s)
+            preceding = Mapping.builder().precedingMapping(s)
                     .to(new MappingItem(item.concepts().stream().filter(c -> !removedItems.contains(c)).collect(toSet())))
                     .penalty(removedItems.size())
-                    .description("Removed AND mappings " + removedItems.stream().map(Concept::name).collect(Collectors.joining(", ")));
+                    .description("Removed AND mappings %s", removedItems)
+                    .build();
         } else {
             preceding = s;
         }
         return preceding;
     }
 
-    private Mapping createMergedMapping(List<List<Mapping>> mappings, Mapping preceding) {
-        var flattened = mappings.stream().flatMap(Collection::stream).toList();
+    private Mapping createMergedMapping(List<Mapping> flattened, Mapping preceding) {
         var penalty = flattened.stream().mapToDouble(Mapping::penalty).sum();
-        var description = penalty == 0 ? "Exact match" : flattened.stream().map(Mapping::description).collect(Collectors.joining(" | "));
+        var description = penalty == 0 ? Description.of("Exact match")
+                : Description.joining(" | ", flattened.stream().map(Mapping::describedAs).toList());
         var items = flattened.stream().map(Mapping::to).flatMap(Collection::stream).map(MappingItem::concepts).flatMap(Collection::stream).collect(toSet());
         var combinedItem = new MappingItem(items);
-        return new Mapping().to(combinedItem).precedingMapping(preceding).description(description).penalty(penalty);
+        return Mapping.builder().to(combinedItem).precedingMapping(preceding).description(description).penalty(penalty).build();
     }
 
-    // Squash set of mappings into a single item, accounts for ands and ors and exact, broad, narrow
-    private Set<Mapping> merge(List<List<Mapping>> mappings, Mapping preceding) {
-        var singles = mappings.stream().filter(m -> m != null && !m.isEmpty()).allMatch(m -> m.size() == 1);
-        Set<Mapping> result = new HashSet<>();
-        if (singles) {
-            result.add(createMergedMapping(mappings, preceding));
-        } else {
-            List<Mapping> multiple = mappings.stream().filter(m -> m != null && m.size() > 1).findAny().get();
-            var excludingMultiple = mappings.stream().filter(m -> !m.equals(multiple)).toList();
-            multiple.forEach(m -> {
-                var copy = new ArrayList<>(excludingMultiple);
-                copy.add(List.of(m));
-                result.addAll(merge(copy, preceding));
-            });
+    /*
+     * Squash set of mappings into a single item, accounts for ands and ors and exact, broad, narrow. Every combination
+     * of one mapping per part is merged. The combinations are generated one at a time, depth first, and a partial
+     * combination is dropped as soon as its penalty plus the cheapest choices left can not stay under the maximum
+     * penalty. Of the combinations that end up with the same concepts only the cheapest is kept.
+     */
+    private Set<Mapping> merge(List<List<Mapping>> mappings, Mapping preceding, int maxPenalty) {
+        // Parts with one mapping are in every combination, the parts to choose from follow them
+        List<Mapping> fixed = new ArrayList<>();
+        List<List<Mapping>> choices = new ArrayList<>();
+        mappings.stream().filter(m -> m != null && !m.isEmpty()).forEach(m -> {
+            if (m.size() == 1) {
+                fixed.addAll(m);
+            } else if (!choices.contains(m)) {
+                choices.add(m);
+            }
+        });
+        // The lowest penalty the choices from an index on can add, so partial combinations can be bounded
+        double[] cheapestLeft = new double[choices.size() + 1];
+        for (int i = choices.size() - 1; i >= 0; i--) {
+            cheapestLeft[i] = cheapestLeft[i + 1] + choices.get(i).stream().mapToDouble(Mapping::penalty).min().orElseThrow();
         }
-        return result;
+        // Responses never include a mapping with a total penalty of the maximum plus one, see MappingsController
+        double limit = maxPenalty + 1.0 - Math.abs(preceding.totalPenalty());
+
+        Map<ConceptSet, Mapping> cheapest = new HashMap<>();
+        List<Mapping> combination = new ArrayList<>(fixed);
+        double[] penalty = new double[choices.size() + 1];
+        penalty[0] = fixed.stream().mapToDouble(Mapping::penalty).sum();
+        // The index of the next mapping to try for every part
+        int[] next = new int[choices.size()];
+        int depth = 0;
+        while (depth >= 0) {
+            if (depth == choices.size()) {
+                var merged = createMergedMapping(combination, preceding);
+                cheapest.merge(merged.singleToMappingItem().ids(), merged,
+                        (kept, other) -> Math.abs(other.totalPenalty()) < Math.abs(kept.totalPenalty()) ? other : kept);
+                depth = up(combination, fixed, depth);
+            } else if (next[depth] == choices.get(depth).size()) {
+                next[depth] = 0;
+                depth = up(combination, fixed, depth);
+            } else {
+                var choice = choices.get(depth).get(next[depth]++);
+                penalty[depth + 1] = penalty[depth] + choice.penalty();
+                double lowest = penalty[depth + 1] + cheapestLeft[depth + 1];
+                if (lowest < 0 || lowest < limit) {
+                    combination.add(choice);
+                    depth++;
+                }
+            }
+        }
+        return new HashSet<>(cheapest.values());
+    }
+
+    // Back to the previous part, removing the choice made for it
+    private static int up(List<Mapping> combination, List<Mapping> fixed, int depth) {
+        if (combination.size() > fixed.size()) {
+            combination.remove(combination.size() - 1);
+        }
+        return depth - 1;
     }
 
     private Set<Mapping> directMapping(Mapping sts, Set<Vocabulary.Identifier> vocabularies) {
@@ -308,66 +595,205 @@ public class Clinical2Preclinical {
                 .collect(toSet());
     }
 
-    private Set<Mapping> expandAndMap(Mapping mapping, Set<Concept> exclude, Mapping.Direction direction,
-                                      int maxPenalty,
-                                      Set<Vocabulary.Identifier> targetVocabulary, Map<Set<Concept>, Double> alreadyDone) {
+    /*
+     * Expanding a split SNOMED mapping only depends on its concepts, the target vocabularies and the penalty budget
+     * left, so the results are shared between requests. Without explanation the expansion steps only keep their result
+     * and penalty, and only the result and total penalty of the steps before a result are returned.
+     */
+    private Set<Mapping> expandAndMap(Mapping mapping, int maxPenalty, Set<Vocabulary.Identifier> targetVocabularies,
+                                      Map<ConceptSet, Double> alreadyDone, Deadline deadline, boolean explain) {
+        var scoredFrom = explain ? null : mapping;
+        if (mapping.to().size() != 1) {
+            return expandAndMap(mapping, null, null, new Expansion(maxPenalty, targetVocabularies, alreadyDone, deadline, scoredFrom));
+        }
+        var state = ExpansionState.of(mapping.toConcepts(), null, targetVocabularies);
+        double budget = maxPenalty - Math.abs(mapping.totalPenalty());
+        var memoized = expansionMemo.get(state, mapping, budget, explain);
+        if (memoized != null) {
+            return memoized;
+        }
+        // What this request already mapped elsewhere must not prune the shared results
+        var expansion = new Expansion(maxPenalty, targetVocabularies, new HashMap<>(), deadline, scoredFrom);
+        var mappings = expandAndMap(mapping, state, null, expansion);
+        // An expansion cut short by the deadline is not the complete answer for this state
+        if (!deadline.passed()) {
+            expansionMemo.put(state, mapping, budget, mappings, expansion.gates, explain);
+        }
+        expansion.alreadyDone.forEach((concepts, penalty) -> alreadyDone.merge(concepts, penalty, Math::min));
+        return explain ? mappings : mappings.stream().map(Mapping::detached).collect(toSet());
+    }
+
+    private Set<Mapping> expandAndMap(Mapping mapping, ExpansionState state, Mapping.Direction direction, Expansion expansion) {
         log.debug("Expand and map {}", mapping.toConcepts().stream().map(Concept::string).collect(Collectors.joining(", ")));
         Set<Mapping> mappings = new HashSet<>();
-        if (mapping.totalPenalty() < maxPenalty) {
+        var exclude = expansion.exclude;
+        if (mapping.totalPenalty() < expansion.maxPenalty && !expansion.deadline.expired()) {
+            double gate = Math.abs(mapping.totalPenalty());
             splitOrToSingleMapping(mapping)
-                    .forEach(m -> m.singleToMappingItem().concepts()
-                            .forEach(snomed -> {
-                                if (!(DOWNHILL.equals(direction) && exclude.contains(snomed))) {
-                                    var parents = conceptService.parents(snomed);
-                                    if (parents.stream().noneMatch(DO_NOT_EXPAND::contains)) {
-                                        mappings.addAll(mapExpansion(m, snomed, parents, UPHILL, maxPenalty, targetVocabulary, alreadyDone, exclude));
-                                    }
+                    .forEach(m -> {
+                        var concepts = m.singleToMappingItem().concepts();
+                        var current = m == mapping && state != null ? state
+                                : ExpansionState.of(concepts, direction, expansion.targetVocabularies);
+                        concepts.forEach(snomed -> {
+                            if (!(DOWNHILL.equals(direction) && exclude.contains(snomed))) {
+                                var parents = conceptService.parents(snomed);
+                                if (parents.stream().noneMatch(DO_NOT_EXPAND::contains)) {
+                                    mappings.addAll(mapExpansion(m, current, snomed, parents, UPHILL, gate, expansion));
                                 }
-                                if (!(UPHILL.equals(direction) && exclude.contains(snomed))) {
-                                    if (!DO_NOT_EXPAND.contains(snomed)) {
-                                        var children = conceptService.children(snomed);
-                                        mappings.addAll(mapExpansion(m, snomed, children, DOWNHILL, maxPenalty, targetVocabulary, alreadyDone, exclude));
-                                    }
+                            }
+                            if (!(UPHILL.equals(direction) && exclude.contains(snomed))) {
+                                if (!DO_NOT_EXPAND.contains(snomed)) {
+                                    var children = conceptService.children(snomed);
+                                    mappings.addAll(mapExpansion(m, current, snomed, children, DOWNHILL, gate, expansion));
                                 }
-                            }));
+                            }
+                        });
+                    });
         }
         return mappings;
     }
 
-    private Set<Mapping> mapExpansion(Mapping input, Concept expandedConcept, List<Concept> relatives,
-                                      Mapping.Direction direction, int maxPenalty, Set<Vocabulary.Identifier> targetVoc,
-                                      Map<Set<Concept>, Double> alreadyDone, Set<Concept> exclude) {
+    private Set<Mapping> mapExpansion(Mapping input, ExpansionState state, Concept expandedConcept, List<Concept> relatives,
+                                      Mapping.Direction direction, double gate, Expansion expansion) {
         log.debug("Map expansion of {}", expandedConcept.string());
+        var targetVoc = expansion.targetVocabularies;
+        var exclude = expansion.exclude;
         Set<Mapping> result = new HashSet<>();
         relatives.forEach(p -> {
-            Mapping expanded = createHierarchicTraversalMappingItem(input, expandedConcept, p, direction);
+            Mapping expanded = expansion.scoredFrom == null
+                    ? createHierarchicTraversalMappingItem(input, expandedConcept, p, direction)
+                    : scoredTraversal(expansion.scoredFrom, input, expandedConcept, p, direction);
+            expansion.gates.put(expanded, gate);
             if (mappingCache.isMappedToPreclinical(p, targetVoc)) {
-                var mappings = snomedPartsToPreclinical(Set.of(expanded), targetVoc, alreadyDone);
+                var mappings = snomedPartsToPreclinical(Set.of(expanded), targetVoc, expansion.alreadyDone, expansion.deepest);
                 result.addAll(mappings);
-            }                                           // If we have already checked 120 expanded terms we will stop expanding, arbitrary number, it has been enough.
-            if (expanded.totalPenalty() < maxPenalty && exclude.size() < 120) {
+            }
+            // If we have already checked 120 expanded terms we will stop expanding, arbitrary number, it has been enough.
+            if (exclude.size() >= 120) {
+                return;
+            }
+            var reached = new Reached(expanded, state.expand(expandedConcept, p, direction), direction, p);
+            if (expanded.totalPenalty() < expansion.maxPenalty && !outOfReach(expanded, p, direction, expansion, expansion.maxPenalty)) {
+                result.addAll(deeper(reached, expansion));
+            } else if (expansion.cut != null && !outOfReach(expanded, p, direction, expansion, expansion.deepest)) {
+                // Out of reach now, it may still be in reach of a later level of a deepening
+                expansion.cut.add(reached);
+            } else if (expanded.totalPenalty() < expansion.maxPenalty) {
+                // Left out like any other concept that has been expanded to, the rest of the search stays the same
                 exclude.add(p);
-                var expandedMappings = expandAndMap(expanded, exclude, direction, maxPenalty, targetVoc, alreadyDone);
-                result.addAll(expandedMappings);
             }
         });
         return result;
     }
 
+    /*
+     * Whether expanding this mapping any further can not find anything within the maximum penalty. A mapped concept can
+     * be reached from any of its concepts going either way: expanding another concept of the item changes the direction,
+     * after which the concept it was expanded to may go back. Only when it is the single concept the direction stays
+     * the same. A result is a single step from a mapping below the maximum penalty, so only when the least penalty to a
+     * mapped concept reaches the maximum plus one nothing can be found.
+     */
+    private boolean outOfReach(Mapping expanded, Concept relative, Mapping.Direction direction, Expansion expansion,
+                               int maxPenalty) {
+        var targets = expansion.targetVocabularies;
+        var concepts = expanded.singleToMappingItem().concepts();
+        int left = concepts.size() == 1
+                ? distances.penaltyLeft(relative, direction, targets)
+                : distances.penaltyLeft(relative, targets);
+        for (Concept other : concepts) {
+            if (left == 0) {
+                return false;
+            }
+            if (!other.equals(relative)) {
+                left = Math.min(left, distances.penaltyLeft(other, targets));
+            }
+        }
+        return expanded.totalPenalty() + left >= maxPenalty + 1.0;
+    }
+
+    private Set<Mapping> deeper(Reached reached, Expansion expansion) {
+        expansion.exclude.add(reached.relative());
+        if (expansion.firstReached(reached.state(), reached.mapping().totalPenalty())) {
+            return expandAndMap(reached.mapping(), reached.state(), reached.direction(), expansion);
+        }
+        return emptySet();
+    }
+
     private Mapping createHierarchicTraversalMappingItem(Mapping precedingMapping, Concept
             conceptThatWasExpanded, Concept resultOfExpansion, Mapping.Direction direction) {
-        Set<Concept> concepts = new HashSet<>();
-        // remove concept that was expanded
-        var remaining = precedingMapping.singleToMappingItem().concepts().stream()
-                .filter(concept -> !concept.equals(conceptThatWasExpanded))
-                .collect(toSet());
-        concepts.addAll(remaining);
-        // add result of concept expansion
-        concepts.add(resultOfExpansion);
-        return new Mapping()
-                .to(new MappingItem(concepts))
+        return Mapping.builder()
+                .to(precedingMapping.singleToMappingItem().replace(conceptThatWasExpanded, resultOfExpansion))
                 .from(precedingMapping)
-                .expanded(conceptThatWasExpanded, resultOfExpansion, direction);
+                .expanded(conceptThatWasExpanded, resultOfExpansion, direction)
+                .build();
+    }
+
+    // The same step for an expansion that is not explained, it only keeps the penalty since the root of the expansion
+    private static Mapping scoredTraversal(Mapping root, Mapping precedingMapping, Concept conceptThatWasExpanded,
+                                           Concept resultOfExpansion, Mapping.Direction direction) {
+        return Mapping.expandedSince(root, precedingMapping,
+                precedingMapping.singleToMappingItem().replace(conceptThatWasExpanded, resultOfExpansion),
+                conceptThatWasExpanded, resultOfExpansion, direction);
+    }
+
+    // Without explanation only the result and total penalty of the steps before a result are returned
+    private static Set<Mapping> detached(Set<Mapping> mappings, Expansion expansion) {
+        return expansion.scoredFrom == null ? mappings : mappings.stream().map(Mapping::detached).collect(toSet());
     }
 
+    // Everything that is shared while expanding one split SNOMED mapping
+    private static final class Expansion {
+        // Raised for every level of a deepening, as is the deadline
+        private int maxPenalty;
+        // The highest maximum penalty the expansion will get, merged mappings are only left out above it
+        private final int deepest;
+        private final Set<Vocabulary.Identifier> targetVocabularies;
+        private final Map<ConceptSet, Double> alreadyDone;
+        private final Set<Concept> exclude = new HashSet<>();
+        private final Map<ExpansionState, Double> reached = new HashMap<>();
+        private final Map<Mapping, Double> gates = new IdentityHashMap<>();
+        private Deadline deadline;
+        // Expansions cut off at the maximum penalty, only kept when a deepening continues them
+        private final List<Reached> cut;
+        // The mapping the expansion started from when it is not explained, the steps only keep the penalty since it
+        private final Mapping scoredFrom;
+
+        private Expansion(int maxPenalty, Set<Vocabulary.Identifier> targetVocabularies, Map<ConceptSet, Double> alreadyDone,
+                          Deadline deadline, Mapping scoredFrom) {
+            this(maxPenalty, maxPenalty, targetVocabularies, alreadyDone, deadline, null, scoredFrom);
+        }
+
+        private Expansion(int maxPenalty, int deepest, Set<Vocabulary.Identifier> targetVocabularies,
+                          Map<ConceptSet, Double> alreadyDone, Deadline deadline, List<Reached> cut, Mapping scoredFrom) {
+            this.maxPenalty = maxPenalty;
+            this.deepest = deepest;
+            this.targetVocabularies = targetVocabularies;
+            this.alreadyDone = alreadyDone;
+            this.deadline = deadline;
+            this.cut = cut;
+            this.scoredFrom = scoredFrom;
+        }
+
+        // The same concepts reached again in the same direction without a lower penalty would only repeat the work
+        private boolean firstReached(ExpansionState state, double penalty) {
+            var best = reached.get(state);
+            if (best != null && best <= penalty) {
+                return false;
+            }
+            reached.put(state, penalty);
+            return true;
+        }
+    }
+
+    // A relative a concept of a mapping is expanded to, with the mapping and state it leads to
+    private record Reached(Mapping mapping, ExpansionState state, Mapping.Direction direction, Concept relative) {
+    }
+
+    // A mapping waiting to be expanded best first, with the expansion of the split mapping it came from
+    private record Frontier(Mapping mapping, ExpansionState state, Mapping.Direction direction, Expansion expansion,
+                            double penalty) {
+        private Frontier(Mapping mapping, ExpansionState state, Mapping.Direction direction, Expansion expansion) {
+            this(mapping, state, direction, expansion, Math.abs(mapping.totalPenalty()));
+        }
+    }
 }
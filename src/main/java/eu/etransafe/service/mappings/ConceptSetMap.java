@@ -0,0 +1,108 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptSet;
+import eu.etransafe.util.LongKeyMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Map keyed by a set of concept ids. Single concepts and pairs, which are nearly all of the keys, are packed in a
+ * primitive long, larger sets use their sorted ids with a cached hash. Keys are built from the concept ids directly,
+ * no sorting and joining of codes into a string for every lookup.
+ */
+final class ConceptSetMap<V> {
+
+    private final LongKeyMap<V> small;
+    private final Map<IdSet, V> large;
+
+    ConceptSetMap() {
+        this(new LongKeyMap<>(), new HashMap<>());
+    }
+
+    private ConceptSetMap(LongKeyMap<V> small, Map<IdSet, V> large) {
+        this.small = small;
+        this.large = large;
+    }
+
+    // Sorted and without duplicates, as expected by all other methods taking an int[]
+    static int[] ids(Collection<Concept> concepts) {
+        return ConceptSet.sortedIds(concepts);
+    }
+
+    V get(int id) {
+        return small.get(id);
+    }
+
+    V get(int[] ids) {
+        return switch (ids.length) {
+            case 0 -> null;
+            case 1, 2 -> small.get(pack(ids));
+            default -> large.get(new IdSet(ids));
+        };
+    }
+
+    V get(Collection<Concept> concepts) {
+        if (concepts.size() == 1) {
+            return get(concepts.iterator().next().id());
+        }
+        return get(ids(concepts));
+    }
+
+    boolean containsKey(int id) {
+        return small.containsKey(id);
+    }
+
+    V computeIfAbsent(int[] ids, Supplier<V> value) {
+        if (ids.length <= 2) {
+            return small.computeIfAbsent(pack(ids), key -> value.get());
+        }
+        return large.computeIfAbsent(new IdSet(ids), key -> value.get());
+    }
+
+    int size() {
+        return small.size() + large.size();
+    }
+
+    // New map with the same keys, entries for which the mapping returns null are left out
+    <W> ConceptSetMap<W> mapValues(Function<V, W> mapping) {
+        Map<IdSet, W> mappedLarge = new HashMap<>(large.size() * 4 / 3 + 1);
+        large.forEach((key, value) -> {
+            W mapped = mapping.apply(value);
+            if (mapped != null) {
+                mappedLarge.put(key, mapped);
+            }
+        });
+        return new ConceptSetMap<>(small.mapValues(mapping), mappedLarge);
+    }
+
+    // Concept ids are positive ints, a pair always has a non-zero upper half so it can never clash with a single id
+    private static long pack(int[] ids) {
+        return ids.length == 1 ? ids[0] : ((long) ids[0] << 32) | (ids[1] & 0xFFFFFFFFL);
+    }
+
+    private static final class IdSet {
+        private final int[] ids;
+        private final int hash;
+
+        private IdSet(int[] ids) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof IdSet other && hash == other.hash && Arrays.equals(ids, other.ids));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
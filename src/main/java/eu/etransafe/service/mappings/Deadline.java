@@ -0,0 +1,45 @@
+package eu.etransafe.service.mappings;
+
+/**
+ * The time a mapping request may take. The mapping algorithms check it between expansion steps and, once it has
+ * passed, stop searching and return what they found so far. Whether that happened is remembered so the response can be
+ * flagged as partial. A deadline belongs to one request and can be checked from the threads of its branches.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(0, false);
+
+    private final long end;
+    private final boolean bounded;
+    private volatile boolean passed;
+
+    private Deadline(long end, boolean bounded) {
+        this.end = end;
+        this.bounded = bounded;
+    }
+
+    // No deadline at all, the search runs until it is done
+    public static Deadline none() {
+        return NONE;
+    }
+
+    // A deadline the given number of milliseconds from now, zero or less is no deadline
+    public static Deadline in(long millis) {
+        return millis <= 0 ? NONE : new Deadline(System.nanoTime() + millis * 1_000_000, true);
+    }
+
+    public boolean expired() {
+        if (passed) {
+            return true;
+        }
+        if (bounded && System.nanoTime() - end >= 0) {
+            passed = true;
+        }
+        return passed;
+    }
+
+    // True when the deadline expired while it was checked, i.e. the results are not complete
+    public boolean passed() {
+        return passed;
+    }
+}
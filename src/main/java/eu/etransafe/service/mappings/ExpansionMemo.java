@@ -0,0 +1,159 @@
+package eu.etransafe.service.mappings;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import eu.etransafe.domain.Mapping;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Results of expanding a SNOMED mapping through the hierarchy, shared between requests. Popular MedDRA terms map to the
+ * same SNOMED concepts, so the same expansions come back all the time.
+ * <p>
+ * Results are stored relative to the mapping that was expanded and put behind the mapping of the next request with the
+ * same state. Results only answer requests with the same penalty budget: what a search finds, and which expansions it
+ * leaves to other branches, depends on the budget as a whole, so a larger one is not a superset that can be cut back
+ * to a smaller one. Results of a search without explanation only
+ * have the penalty of their steps, they only answer requests that do not ask for an explanation either. Results only
+ * answer requests on the vocabulary data they were computed from, a request that started before a reload can not leave
+ * outdated results behind.
+ */
+@Component
+public class ExpansionMemo {
+
+    private final Cache<ExpansionState, Entry> cache;
+    private final VocabularyHolder vocabulary;
+
+    public ExpansionMemo(@Value("${rosetta.expansion.memo.size:10000}") int size, MeterRegistry meterRegistry,
+                         VocabularyHolder vocabulary) {
+        this.vocabulary = vocabulary;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(size)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "expansionMemo");
+    }
+
+    /*
+     * The stored results for the state behind the given mapping, or null when they are not known for this budget. The
+     * budget is the penalty that can still be added to the mapping. Without explanation the results are detached, their
+     * steps are not copied.
+     */
+    Set<Mapping> get(ExpansionState state, Mapping mapping, double budget, boolean explain) {
+        var entry = cache.getIfPresent(state);
+        if (entry == null || entry.vocabulary() != vocabulary.current() || entry.budget() != budget
+                || (explain && !entry.explained())) {
+            return null;
+        }
+        Map<Mapping, Mapping> copies = new IdentityHashMap<>();
+        Set<Mapping> results = new HashSet<>();
+        for (Result result : entry.results()) {
+            if (result.gate() < budget) {
+                results.add(explain ? rebase(result.mapping(), entry.anchor(), mapping, copies)
+                        : detach(result.mapping(), entry.anchor(), mapping));
+            }
+        }
+        return results;
+    }
+
+    /*
+     * Stores the results of expanding the mapping. The gates are the absolute penalties of the mappings that had to be
+     * under the maximum penalty for an expansion step to be taken, keyed by that step. Explained results have all their
+     * steps, the others only the penalty of them.
+     */
+    void put(ExpansionState state, Mapping mapping, double budget, Collection<Mapping> results, Map<Mapping, Double> gates,
+             boolean explained) {
+        var current = vocabulary.current();
+        var existing = cache.getIfPresent(state);
+        if (existing != null && existing.vocabulary() == current && existing.budget() == budget
+                && (existing.explained() || !explained)) {
+            return;
+        }
+        double base = Math.abs(mapping.totalPenalty());
+        var anchor = Mapping.builder().to(mapping.to()).build();
+        Map<Mapping, Mapping> copies = new IdentityHashMap<>();
+        List<Result> relative = new ArrayList<>(results.size());
+        for (Mapping result : results) {
+            Double gate = gate(result, mapping, gates);
+            if (gate == null) {
+                // Not derived from the expanded mapping, the results are not a function of the state alone
+                return;
+            }
+            relative.add(new Result(rebase(result, mapping, anchor, copies), gate - base));
+        }
+        cache.put(state, new Entry(current, budget, anchor, relative, explained));
+    }
+
+    // After a vocabulary reload the stored expansions are outdated
+    public void invalidate() {
+        cache.invalidateAll();
+    }
+
+    // The gate of the expansion step closest to the result, null when the result does not descend from the mapping
+    private static Double gate(Mapping result, Mapping mapping, Map<Mapping, Double> gates) {
+        Double gate = null;
+        for (Mapping step = result; step != null; step = step.precedingMapping()) {
+            if (step == mapping) {
+                return gate == null ? Double.NEGATIVE_INFINITY : gate;
+            }
+            if (gate == null) {
+                gate = gates.get(step);
+            }
+        }
+        return null;
+    }
+
+    // Copies the steps from the result back to the old root, and puts them behind the new root
+    private static Mapping rebase(Mapping step, Mapping oldRoot, Mapping newRoot, Map<Mapping, Mapping> copies) {
+        if (step == oldRoot) {
+            return newRoot;
+        }
+        var copy = copies.get(step);
+        if (copy == null) {
+            var preceding = step.precedingMapping();
+            var builder = Mapping.builder()
+                    .precedingMapping(rebase(preceding, oldRoot, newRoot, copies))
+                    .to(step.to())
+                    .description(step.describedAs())
+                    .penalty(step.penalty());
+            if (preceding != oldRoot && step.from() != preceding.to()) {
+                builder.from(step.from());
+            }
+            copy = builder.build();
+            copies.put(step, copy);
+        }
+        return copy;
+    }
+
+    // The result behind the new root, with only its total penalty in between
+    private static Mapping detach(Mapping result, Mapping oldRoot, Mapping newRoot) {
+        var preceding = result.precedingMapping();
+        if (preceding == oldRoot) {
+            return rebase(result, oldRoot, newRoot, new IdentityHashMap<>());
+        }
+        return result.after(preceding.to(), total(preceding, oldRoot, newRoot));
+    }
+
+    private static double total(Mapping step, Mapping oldRoot, Mapping newRoot) {
+        if (step == oldRoot) {
+            return newRoot.totalPenalty();
+        }
+        return Mapping.totalPenalty(total(step.precedingMapping(), oldRoot, newRoot), step.penalty());
+    }
+
+    private record Entry(LoadedVocabulary vocabulary, double budget, Mapping anchor, List<Result> results, boolean explained) {
+    }
+
+    private record Result(Mapping mapping, double gate) {
+    }
+}
@@ -0,0 +1,83 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Mapping;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+
+/**
+ * The state of a hierarchy expansion: the concepts of the mapping being expanded, the direction it is expanded in and
+ * whatever else the outcome depends on (the context, e.g. the target vocabularies). The hash is the XOR of a random
+ * looking value per concept, so expanding one concept into a relative updates it with two XORs instead of hashing the
+ * whole set again.
+ */
+final class ExpansionState {
+
+    private final long hash;
+    private final int[] ids;
+    private final Mapping.Direction direction;
+    private final Object context;
+
+    private ExpansionState(long hash, int[] ids, Mapping.Direction direction, Object context) {
+        this.hash = hash;
+        this.ids = ids;
+        this.direction = direction;
+        this.context = context;
+    }
+
+    static ExpansionState of(Collection<Concept> concepts, Mapping.Direction direction, Object context) {
+        int[] ids = ConceptSetMap.ids(concepts);
+        long hash = mix(Objects.hashCode(context)) ^ direction(direction);
+        for (int id : ids) {
+            hash ^= mix(id);
+        }
+        return new ExpansionState(hash, ids, direction, context);
+    }
+
+    // The state after replacing a concept by its parent or child, the relative can already be one of the concepts
+    ExpansionState expand(Concept concept, Concept relative, Mapping.Direction newDirection) {
+        int removed = Arrays.binarySearch(ids, concept.id());
+        if (removed < 0) {
+            throw new IllegalArgumentException("Concept " + concept.id() + " is not part of the expansion state");
+        }
+        long newHash = hash ^ direction(direction) ^ direction(newDirection) ^ mix(concept.id());
+        int[] without = new int[ids.length - 1];
+        System.arraycopy(ids, 0, without, 0, removed);
+        System.arraycopy(ids, removed + 1, without, removed, ids.length - removed - 1);
+        int inserted = Arrays.binarySearch(without, relative.id());
+        if (inserted >= 0) {
+            return new ExpansionState(newHash, without, newDirection, context);
+        }
+        inserted = -inserted - 1;
+        int[] with = new int[without.length + 1];
+        System.arraycopy(without, 0, with, 0, inserted);
+        with[inserted] = relative.id();
+        System.arraycopy(without, inserted, with, inserted + 1, without.length - inserted);
+        return new ExpansionState(newHash ^ mix(relative.id()), with, newDirection, context);
+    }
+
+    private static long direction(Mapping.Direction direction) {
+        return direction == null ? 0 : mix(-1 - direction.ordinal());
+    }
+
+    // SplitMix64 finalizer, spreads consecutive concept ids over all 64 bits
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ExpansionState other && hash == other.hash && direction == other.direction
+                && Arrays.equals(ids, other.ids) && Objects.equals(context, other.context));
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+}
@@ -0,0 +1,13 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.repo.VocabularySnapshot;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+
+/**
+ * One consistent set of the in-memory vocabulary data, published by the {@link VocabularyHolder} as a whole. The
+ * distances are computed from this hierarchy and these tables, they are null when pruning is disabled or the hierarchy
+ * is not kept in memory. The lookups are the vocabulary data read from files, null when concepts are looked up in the db.
+ */
+record LoadedVocabulary(ConceptHierarchy hierarchy, MappingTables tables, MappableDistances.Index distances,
+                        VocabularySnapshot lookups) {
+}
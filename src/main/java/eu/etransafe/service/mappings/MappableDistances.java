@@ -0,0 +1,101 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Mapping;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import static eu.etransafe.domain.Mapping.Direction.DOWNHILL;
+import static eu.etransafe.domain.Mapping.Direction.UPHILL;
+import static eu.etransafe.domain.Vocabularies.CLINICAL;
+import static eu.etransafe.domain.Vocabularies.ETOX;
+import static eu.etransafe.domain.Vocabularies.SEND;
+
+/**
+ * The least penalty from every concept in the hierarchy to the nearest concept the mapping algorithms look for, going
+ * only uphill or only downhill: a concept with a mapping to ETOX, one with a mapping to SEND or one with a link to
+ * MedDRA. Each is a single walk backwards from all of those concepts at once, per direction and target. The engines use
+ * it to leave out expansions that can not reach such a concept within the maximum penalty.
+ * <p>
+ * Steps between structures and their parts cost only a fraction, they are counted as free, so the penalty is never
+ * overestimated. The walks are done whenever the vocabulary data is (re)loaded, before it is published, so they always
+ * belong to the hierarchy and the tables in use. When pruning is disabled, without an in-memory hierarchy and for
+ * concepts that are not in the hierarchy, the penalty left is 0 and nothing is left out.
+ */
+@Slf4j
+@Component
+public class MappableDistances {
+
+    // Penalties above it are not told apart, the SNOMED hierarchy is nowhere near this deep
+    private static final int LIMIT = 100;
+
+    private final VocabularyHolder vocabulary;
+    private final boolean enabled;
+
+    public MappableDistances(VocabularyHolder vocabulary, @Value("${rosetta.mapping.prune:true}") boolean enabled) {
+        this.vocabulary = vocabulary;
+        this.enabled = enabled;
+    }
+
+    /*
+     * The least penalty still needed from the concept to one that is mapped to the target vocabularies (ETOX, SEND or
+     * the clinical ones), only going in the direction. The concept itself counts, when it is mapped this is 0.
+     */
+    public int penaltyLeft(Concept concept, Mapping.Direction direction, Set<Vocabulary.Identifier> targets) {
+        var current = vocabulary.current();
+        var walks = current == null || current.distances() == null ? null : current.distances().walks().get(targets);
+        if (walks == null) {
+            return 0;
+        }
+        int ordinal = current.hierarchy().ordinal(concept.id());
+        return ordinal < 0 ? 0 : (UPHILL.equals(direction) ? walks.up() : walks.down())[ordinal];
+    }
+
+    // The least penalty in either direction
+    public int penaltyLeft(Concept concept, Set<Vocabulary.Identifier> targets) {
+        return Math.min(penaltyLeft(concept, UPHILL, targets), penaltyLeft(concept, DOWNHILL, targets));
+    }
+
+    // The walks for newly loaded data, null when there is nothing to prune with
+    Index index(ConceptHierarchy hierarchy, MappingTables tables) {
+        if (!enabled || hierarchy.isEmpty()) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        int[] meddra = tables.snomedToMedDRA();
+        var index = new Index(Map.of(
+                ETOX, walks(hierarchy, id -> tables.snomedToETOX().containsKey(id) || tables.snomedToETOXPartial().containsKey(id)),
+                SEND, walks(hierarchy, id -> tables.snomedToSEND().containsKey(id) || tables.snomedToSENDPartial().containsKey(id)),
+                CLINICAL, walks(hierarchy, id -> Arrays.binarySearch(meddra, id) >= 0)));
+        log.info("Computed the distances to mapped concepts in {} milliseconds", System.currentTimeMillis() - start);
+        return index;
+    }
+
+    // Relatives outside the hierarchy are not known, anything may be reached through them
+    private static Walks walks(ConceptHierarchy hierarchy, IntPredicate mapped) {
+        return new Walks(hierarchy.costsTo(mapped.or(id -> !hierarchy.hasAllParents(id)), true, cost(hierarchy, UPHILL), LIMIT),
+                hierarchy.costsTo(mapped.or(id -> !hierarchy.hasAllChildren(id)), false, cost(hierarchy, DOWNHILL), LIMIT));
+    }
+
+    private static ConceptHierarchy.StepCost cost(ConceptHierarchy hierarchy, Mapping.Direction direction) {
+        return (from, to) -> {
+            var fromName = hierarchy.name(from);
+            var toName = hierarchy.name(to);
+            return fromName == null || toName == null || Mapping.stepPenalty(fromName, toName, direction) >= 1 ? 1 : 0;
+        };
+    }
+
+    record Index(Map<Set<Vocabulary.Identifier>, Walks> walks) {
+    }
+
+    private record Walks(byte[] up, byte[] down) {
+    }
+}
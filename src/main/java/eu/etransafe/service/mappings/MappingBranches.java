@@ -0,0 +1,88 @@
+package eu.etransafe.service.mappings;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Maps the independent branches of one mapping request, e.g. the SNOMED alternatives of a MedDRA term, in parallel.
+ * A request never uses more than the configured number of workers, the calling thread being one of them, so a large
+ * batch can not take all cores from the other requests. The workers are virtual threads, their carriers are bounded by
+ * the number of cores.
+ */
+@Slf4j
+@Component
+public class MappingBranches {
+
+    private final int parallelism;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("mapping-branch-", 0).factory());
+
+    public MappingBranches(@Value("${rosetta.mapping.parallelism:1}") int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /*
+     * Maps every branch and returns all results, in the order of the branches. Anything the mapper shares between the
+     * branches has to be thread safe when the parallelism is above one.
+     */
+    public <T, R> List<R> map(List<T> branches, Function<T, ? extends Collection<R>> mapper) {
+        int workers = Math.min(parallelism, branches.size());
+        if (workers <= 1) {
+            return branches.stream().map(mapper).flatMap(Collection::stream).toList();
+        }
+        List<Collection<R>> results = new ArrayList<>(branches.size());
+        branches.forEach(branch -> results.add(null));
+        var next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < branches.size(); i = next.getAndIncrement()) {
+                var mapped = mapper.apply(branches.get(i));
+                synchronized (results) {
+                    results.set(i, mapped);
+                }
+            }
+        };
+        List<CompletableFuture<Void>> forked = new ArrayList<>(workers - 1);
+        for (int i = 1; i < workers; i++) {
+            forked.add(CompletableFuture.runAsync(worker, executor));
+        }
+        try {
+            worker.run();
+        } catch (RuntimeException | Error e) {
+            // Stop handing out branches and wait for the ones being mapped, the caller's failure is the one reported
+            next.set(branches.size());
+            CompletableFuture.allOf(forked.toArray(CompletableFuture[]::new)).exceptionally(t -> null).join();
+            throw e;
+        }
+        join(forked);
+        synchronized (results) {
+            return results.stream().flatMap(Collection::stream).toList();
+        }
+    }
+
+    private static void join(List<CompletableFuture<Void>> forked) {
+        try {
+            CompletableFuture.allOf(forked.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,36 +1,47 @@
 package eu.etransafe.service.mappings;
 
 import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Description;
 import eu.etransafe.domain.ConceptRelationship;
 import eu.etransafe.domain.ManualMapping;
 import eu.etransafe.domain.Mapping;
 import eu.etransafe.domain.MappingItem;
 import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
 import eu.etransafe.repo.ConceptRelationshipRepo;
-import eu.etransafe.service.concepts.ConceptService;
+import eu.etransafe.repo.VocabularySource;
+import eu.etransafe.service.concepts.HierarchyCache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumMap;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static eu.etransafe.domain.ConceptRelationship.Identifier.EXACT;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPPED_FROM;
 import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.SNOMED_MED_DRA_EQ;
 import static eu.etransafe.domain.Vocabularies.CLINICAL;
 import static eu.etransafe.domain.Vocabularies.ETOX;
 import static eu.etransafe.domain.Vocabularies.INTERMEDIARY;
 import static eu.etransafe.domain.Vocabularies.PRECLINICAL;
 import static eu.etransafe.domain.Vocabularies.SEND;
+import static eu.etransafe.domain.Vocabularies.SUPPORTED;
 import static eu.etransafe.domain.Vocabulary.Identifier.SNOMED;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
@@ -42,79 +53,148 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 @Slf4j
 public class MappingCache {
 
-    private static final Map<String, List<ManualMapping>> snomedToPreclinicalMap = new HashMap<>(2900);
-    private static final Map<String, List<List<String>>> snomedToETOXPartialMap = new HashMap<>(140);
-    private static final Map<String, List<List<String>>> snomedToSENDPartialMap = new HashMap<>(140);
-    private static final Map<Concept, Set<Mapping>> preclincalToSnomedMap = new HashMap<>(3600);
-    private static final Map<String, List<ManualMapping>> meddraToSnomedMap = new HashMap<>(39200);
-
     private final ConceptRelationshipRepo relationshipRepo;
-    private final ConceptService conceptService;
+    private final VocabularySource vocabularySource;
+    private final MeterRegistry meterRegistry;
+    private final HierarchyCache hierarchyCache;
+    private final MappableDistances distances;
+    private final VocabularyHolder vocabulary;
+    private CompletableFuture<Void> loading;
 
-    public MappingCache(ConceptRelationshipRepo relationshipRepo, ConceptService conceptService) {
+    public MappingCache(@Nullable ConceptRelationshipRepo relationshipRepo, VocabularySource vocabularySource, MeterRegistry meterRegistry,
+                        HierarchyCache hierarchyCache, MappableDistances distances, VocabularyHolder vocabulary) {
         this.relationshipRepo = relationshipRepo;
-        this.conceptService = conceptService;
+        this.vocabularySource = vocabularySource;
+        this.meterRegistry = meterRegistry;
+        this.hierarchyCache = hierarchyCache;
+        this.distances = distances;
+        this.vocabulary = vocabulary;
+        entriesGauge("snomedToPreclinical", t -> t.snomedToPreclinical().size());
+        entriesGauge("snomedToETOXPartial", t -> t.snomedToETOXPartial().size());
+        entriesGauge("snomedToSENDPartial", t -> t.snomedToSENDPartial().size());
+        entriesGauge("preclinicalToSnomed", t -> t.preclinicalToSnomed().size());
+        entriesGauge("meddraToSnomed", t -> t.meddraToSnomed().size());
+        entriesGauge("snomedToMedDRA", t -> t.snomedToMedDRA().length);
     }
 
+    // Loads everything in the background, the application starts right away and the readiness probe waits for this
     @PostConstruct
-    private synchronized void loadSnomedToPreclinical() {
-        relationshipRepo.findAllMappingsTo(PRECLINICAL).stream()
+    private void startLoading() {
+        reload();
+    }
+
+    /*
+     * Loads the hierarchy and a complete new set of tables next to the current ones, computes the distances between
+     * them and publishes all of it at once. Requests keep using the data they started with, a reload that is already
+     * running is joined instead of starting another one.
+     */
+    public synchronized CompletableFuture<Void> reload() {
+        if (loading != null && !loading.isDone()) {
+            return loading;
+        }
+        long start = System.currentTimeMillis();
+        var builder = new MappingTables.Builder();
+        Executor executor = task -> Thread.ofPlatform().name("mapping-cache-loader").daemon().start(task);
+        var hierarchy = hierarchyCache.load();
+        var tables = CompletableFuture.allOf(
+                        load("snomedToPreclinical", () -> loadSnomedToPreclinical(builder), executor),
+                        load("preclinicalToSnomed", () -> loadPreclinicalToSnomed(builder), executor),
+                        load("meddraToSnomed", () -> loadMedDRAToSnomed(builder), executor),
+                        load("snomedToMedDRA", () -> loadSnomedToMedDRA(builder), executor))
+                .thenApply(done -> builder.build());
+        loading = hierarchy.thenCombineAsync(tables, (h, t) -> new LoadedVocabulary(h, t, distances.index(h, t), vocabularySource.lookups()), executor)
+                .handle((loaded, e) -> {
+                    if (e != null) {
+                        log.error("Failed to load the mapping cache", e);
+                        vocabulary.failed(e);
+                        throw new RosettaException("The mapping cache could not be loaded");
+                    }
+                    vocabulary.publish(loaded);
+                    log.info("Mapping cache loaded in {} milliseconds", System.currentTimeMillis() - start);
+                    return null;
+                });
+        return loading;
+    }
+
+    private CompletableFuture<Void> load(String loader, Runnable task, Executor executor) {
+        var timer = Timer.builder("rosetta.mapping.cache.load")
+                .description("Time it took to load a mapping cache table")
+                .tag("loader", loader)
+                .register(meterRegistry);
+        return CompletableFuture.runAsync(() -> timer.record(task), executor);
+    }
+
+    private void entriesGauge(String table, ToIntFunction<MappingTables> size) {
+        Gauge.builder("rosetta.mapping.cache.entries", vocabulary, holder -> holder.current() == null ? 0 : size.applyAsInt(holder.current().tables()))
+                .description("Number of entries in a mapping cache table")
+                .tag("table", table)
+                .register(meterRegistry);
+    }
+
+    public boolean isLoaded() {
+        return vocabulary.isLoaded();
+    }
+
+    public boolean hasFailed() {
+        return vocabulary.hasFailed();
+    }
+
+    // The tables the request pinned, requests that come in before the initial load is done wait for it
+    private MappingTables tables() {
+        return vocabulary.awaitCurrent().tables();
+    }
+
+    private void loadSnomedToPreclinical(MappingTables.Builder tables) {
+        vocabularySource.mappingsTo(PRECLINICAL).stream()
                 .collect(groupingBy(ConceptRelationship::invalidReason))
                 .forEach((group, mappings) -> {
                     var description = mappings.get(0).relationshipId();
-                    String key = key(mappings);
+                    int[] key = ConceptSetMap.ids(mappings.stream().map(ConceptRelationship::conceptOne).toList());
                     var items = new MappingItem(mappings.stream().map(ConceptRelationship::conceptTwo).collect(toSet()));
                     var mm = new ManualMapping(items, description);
-                    var maps = snomedToPreclinicalMap.getOrDefault(key, new ArrayList<>());
-                    maps.add(mm);
-                    snomedToPreclinicalMap.put(key, maps);
-                    if (key.contains("-")) {
+                    tables.snomedToPreclinical.computeIfAbsent(key, ArrayList::new).add(mm);
+                    if (key.length > 1) {
                         mappings.forEach(part -> {
                             if (items.concepts().stream().anyMatch(c -> ETOX.contains(c.vocabulary()))) {
-                                var repeat = snomedToETOXPartialMap.getOrDefault(part.conceptOne().code(), new ArrayList<>());
-                                repeat.add(mappings.stream().map(ConceptRelationship::conceptOne).map(Concept::code).toList());
-                                snomedToETOXPartialMap.put(part.conceptOne().code(), repeat);
+                                tables.snomedToETOXPartial.computeIfAbsent(part.conceptOne().id(), id -> new ArrayList<>()).add(key);
                             }
                             if (items.concepts().stream().anyMatch(c -> SEND.contains(c.vocabulary()))) {
-                                var repeat = snomedToSENDPartialMap.getOrDefault(part.conceptOne().code(), new ArrayList<>());
-                                repeat.add(mappings.stream().map(ConceptRelationship::conceptOne).map(Concept::code).toList());
-                                snomedToSENDPartialMap.put(part.conceptOne().code(), repeat);
+                                tables.snomedToSENDPartial.computeIfAbsent(part.conceptOne().id(), id -> new ArrayList<>()).add(key);
                             }
                         });
                     }
 
                 });
-        log.info("{} items in the snomed to preclinical mapping map", snomedToPreclinicalMap.size());
-        log.info("{} items in the SEND partial mapping map", snomedToSENDPartialMap.size());
-        log.info("{} items in the ETOX partial mapping map", snomedToETOXPartialMap.size());
+        log.info("{} items in the snomed to preclinical mapping map", tables.snomedToPreclinical.size());
+        log.info("{} items in the SEND partial mapping map", tables.snomedToSENDPartial.size());
+        log.info("{} items in the ETOX partial mapping map", tables.snomedToETOXPartial.size());
 
     }
 
-    @PostConstruct
-    private synchronized void loadPreclinicalToSnomed() {
-        PRECLINICAL.forEach(voc -> {
-            var concepts = conceptService.byVocabularyAndDomain(voc, null, true);
-            concepts.forEach(concept -> {
-                // Not per se efficient but we will let it be for now as it only takes 5 seconds to load everything
-                var mapping = preclinicalToSnomedFromDB(concept);
-                preclincalToSnomedMap.put(concept, mapping);
-            });
-        });
-        log.info("Added {} items in the preclinical to SNOMED map", preclincalToSnomedMap.size());
+    private void loadPreclinicalToSnomed(MappingTables.Builder tables) {
+        // A single query for all preclinical vocabularies instead of one per concept
+        vocabularySource.eTransafeMappingsFromTo(PRECLINICAL, EnumSet.of(SNOMED)).stream()
+                .collect(groupingBy(ConceptRelationship::conceptOne))
+                .forEach((concept, relationships) -> tables.preclinicalToSnomed.put(concept, toSnomedMappings(concept, relationships)));
+        log.info("Added {} items in the preclinical to SNOMED map", tables.preclinicalToSnomed.size());
     }
 
     public Set<Mapping> preclinicalToSnomed(Concept concept) {
-        return preclincalToSnomedMap.getOrDefault(concept, emptySet());
+        var tables = tables();
+        return tables.preclinicalToSnomed().getOrDefault(concept, emptySet());
     }
 
     public Set<Mapping> preclinicalToSnomedFromDB(Concept concept) {
         if (concept == null) {
             return emptySet();
         }
+        return toSnomedMappings(concept, relationshipRepo.findMappings(List.of(concept), EnumSet.of(SNOMED)));
+    }
+
+    private Set<Mapping> toSnomedMappings(Concept concept, List<ConceptRelationship> relationships) {
         Set<Mapping> result = new HashSet<>();
         EnumMap<ConceptRelationship.Identifier, Set<MappingItem>> items = new EnumMap<>(ConceptRelationship.Identifier.class);
-        relationshipRepo.findMappings(List.of(concept), EnumSet.of(SNOMED))
-                .stream()
+        relationships.stream()
                 .collect(groupingBy(ConceptRelationship::invalidReason))
                 .forEach((group, mappings) -> {
                     var rel = mappings.get(0).relationshipId();
@@ -125,62 +205,64 @@ public class MappingCache {
                 });
         items.forEach((pred, mappingItems) -> {
             var penalty = pred.equals(EXACT) ? 0 : 0.1;
-            var description = concept.name() + " " + pred.value() + " to " + mappingItems.stream().map(MappingItem::humanReadableSimple).distinct().collect(Collectors.joining(" OR "));
-            var m = new Mapping().from(concept).to(mappingItems).description(description).penalty(penalty);
+            var description = Description.of("%s %s to %s", concept, pred, Description.joining(" OR ", mappingItems));
+            var m = Mapping.builder().from(concept).to(mappingItems).description(description).penalty(penalty).build();
             result.add(m);
         });
         return result;
     }
 
 
-    @PostConstruct
-    private synchronized void loadMedDRAToSnomed() {
-        relationshipRepo.findAllMappingsFromTo(CLINICAL, INTERMEDIARY, MAPS_TO)
+    private void loadMedDRAToSnomed(MappingTables.Builder tables) {
+        vocabularySource.mappingsFromTo(CLINICAL, INTERMEDIARY, MAPS_TO)
                 .forEach(mapping -> {
                     var source = mapping.source() == null || mapping.source().isBlank() ? "Athena" : mapping.source();
-                    var key = mapping.conceptOne().code();
                     var items = new MappingItem(mapping.conceptTwo());
                     var mm = new ManualMapping(items, mapping.relationshipId(), source);
-                    var maps = meddraToSnomedMap.getOrDefault(key, new ArrayList<>());
-                    if (!maps.isEmpty()) {
-                        var optionalDupe = maps.stream().filter(manualMapping -> manualMapping.items().equals(items)).findAny();
-                        if (optionalDupe.isPresent()) {
-                            var firstSource = optionalDupe.get().source().replace(" and", ",");
-                            optionalDupe.get().source(firstSource + " and " + source);
-                        } else {
-                            maps.add(mm);
-                            meddraToSnomedMap.put(key, maps);
-                        }
+                    var maps = tables.meddraToSnomed.computeIfAbsent(mapping.conceptOne().id(), id -> new ArrayList<>());
+                    var optionalDupe = maps.stream().filter(manualMapping -> manualMapping.items().equals(items)).findAny();
+                    if (optionalDupe.isPresent()) {
+                        var firstSource = optionalDupe.get().source().replace(" and", ",");
+                        optionalDupe.get().source(firstSource + " and " + source);
                     } else {
                         maps.add(mm);
-                        meddraToSnomedMap.put(key, maps);
                     }
                 });
-        log.info("Loaded {} MedDRA terms for which we have a mapping to SNOMED", meddraToSnomedMap.size());
+        log.info("Loaded {} MedDRA terms for which we have a mapping to SNOMED", tables.meddraToSnomed.size());
+    }
+
+    // The concepts preclinical to clinical mappings look for, the links themselves are still queried when found
+    private void loadSnomedToMedDRA(MappingTables.Builder tables) {
+        for (var relationship : List.of(MAPS_TO, SNOMED_MED_DRA_EQ, MAPPED_FROM)) {
+            vocabularySource.mappingsFromTo(SUPPORTED, CLINICAL, relationship)
+                    .forEach(mapping -> tables.snomedToMedDRA.add(mapping.conceptOne().id()));
+        }
+        log.info("Loaded {} concepts with a mapping to MedDRA", tables.snomedToMedDRA.size());
     }
 
     public List<Mapping> meddraToSNOMED(Concept meddra) {
-        return meddraToSnomedMap.getOrDefault(meddra.code(), emptyList())
+        var tables = tables();
+        return tables.meddraToSnomed().getOrDefault(meddra.id(), emptyList())
                 .stream()
-                .map(m -> new Mapping()
+                .map(m -> Mapping.builder()
                         .from(meddra)
                         .to(m.items())
-                        .description(m.predicate().value() + " (" + m.source() + ")"))
+                        .description("%s (%s)", m.predicate(), m.source())
+                        .build())
                 .toList();
     }
 
 
     public List<Mapping> snomedToPreclinical(Set<Concept> snomed, Mapping preceding, Set<Vocabulary.Identifier> vocabularies) {
-        String key = key(snomed);
-        return snomedToPreclinicalMap.getOrDefault(key, emptyList())
+        return tables().snomedToPreclinical(ConceptSetMap.ids(snomed), vocabularies)
                 .stream()
-                .filter(m -> m.items().concepts().stream().anyMatch(c -> vocabularies.contains(c.vocabulary())))
                 .map(m ->
-                        new Mapping()
+                        Mapping.builder()
                                 .to(m.items())
                                 .precedingMapping(preceding)
-                                .description(snomed.stream().map(Concept::name).collect(Collectors.joining(" AND ")) + " " + m.predicate().value() + " to " + m.items().humanReadableSimple())
-                                .penalty(!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0))
+                                .description("%s %s to %s", Description.joining(" AND ", snomed), m.predicate(), m.items())
+                                .penalty(!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0)
+                                .build())
                 .toList();
     }
 
@@ -190,51 +272,49 @@ public class MappingCache {
     }
 
     public Set<Mapping> snomedToPreclinicalItems(Concept snomed, Vocabulary.Identifier vocabulary) {
-        return snomedToPreclinicalMap.getOrDefault(snomed.code(), emptyList()).stream()
-                .filter(m -> m.items().concepts().stream().anyMatch(c -> c.vocabulary().equals(vocabulary)))
+        return tables().snomedToPreclinical(new int[]{snomed.id()}, EnumSet.of(vocabulary)).stream()
                 .map(m ->
-                        new Mapping()
+                        Mapping.builder()
                                 .to(m.items())
                                 .from(snomed)
-                                .description(snomed.name() + " " + m.predicate().value() + " to " + m.items().humanReadableSimple())
-                                .penalty(!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0))
+                                .description("%s %s to %s", snomed, m.predicate(), m.items())
+                                .penalty(!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0)
+                                .build())
                 .collect(toSet());
     }
 
 
     public boolean isMappedToPreclinical(Concept c, Set<Vocabulary.Identifier> vocabularies) {
-        return (snomedToPreclinicalMap.containsKey(c.code()) &&
-                snomedToPreclinicalMap.get(c.code()).stream()
-                        .anyMatch(m -> m.items().concepts().stream()
-                                .anyMatch(preclin -> vocabularies.contains(preclin.vocabulary())))) ||
-                (vocabularies.equals(ETOX) ? snomedToETOXPartialMap.containsKey(c.code()) : snomedToSENDPartialMap.containsKey(c.code()));
+        var tables = tables();
+        return !tables.snomedToPreclinical(new int[]{c.id()}, vocabularies).isEmpty() ||
+                tables.partial(vocabularies).containsKey(c.id());
     }
 
 
     // This is some mind-blowing stuff, tread with care
     public List<List<List<Mapping>>> partial(Collection<Concept> concepts, Mapping preceding, Set<Vocabulary.Identifier> vocabularies) {
+        var tables = tables();
         List<List<List<Mapping>>> result = new ArrayList<>();
-        var partialMap = vocabularies.equals(ETOX) ? snomedToETOXPartialMap : snomedToSENDPartialMap;
+        var partialMap = tables.partial(vocabularies);
         for (Concept c : concepts) {
-            var hits = partialMap.get(c.code());
+            var hits = partialMap.get(c.id());
             if (hits != null) {
                 hits.forEach(hit -> {
                     List<List<Mapping>> one = new ArrayList<>();
-                    var grouped = concepts.stream().collect(groupingBy(cncpt -> hit.contains(cncpt.code())));
+                    var grouped = concepts.stream().collect(groupingBy(cncpt -> Arrays.binarySearch(hit, cncpt.id()) >= 0));
                     var matches = grouped.get(true);
                     var misses = grouped.get(false);
-                    String key = key(hit.stream());
-                    var deviation = hit.size() - matches.size();
-                    one.add(snomedToPreclinicalMap.get(key)
+                    var deviation = hit.length - matches.size();
+                    one.add(tables.snomedToPreclinical(hit, vocabularies)
                             .stream()
-                            .filter(m -> m.items().concepts().stream().anyMatch(preclin -> vocabularies.contains(preclin.vocabulary())))
                             .filter(mm -> !(mm.items().size() == 1 && !mm.items().getSingleConcept().domain().equals(c.domain())))
                             .map(m ->
-                                    new Mapping()
+                                    Mapping.builder()
                                             .to(m.items())
                                             .precedingMapping(preceding)
-                                            .description(c.name() + " " + m.predicate().value() + " to " + m.items().humanReadableSimple() + " neglecting " + deviation + " terms")
-                                            .penalty((!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0) + deviation))
+                                            .description("%s %s to %s neglecting %s terms", c, m.predicate(), m.items(), deviation)
+                                            .penalty((!m.predicate().equals(ConceptRelationship.Identifier.EXACT) ? 0.1 : 0) + deviation)
+                                            .build())
                             .toList());
                     result.add(one);
                 });
@@ -243,23 +323,9 @@ public class MappingCache {
         return result;
     }
 
-    private String key(List<ConceptRelationship> mappings) {
-        return key(mappings.stream()
-                .map(ConceptRelationship::conceptOne)
-                .map(Concept::code));
-    }
-
-    private String key(Set<Concept> snomed) {
-        return key(snomed.stream().map(Concept::code));
-    }
-
-    private String key(Stream<String> stream) {
-        return stream.sorted().collect(Collectors.joining("-"));
-    }
-
     public List<List<Mapping>> singleConcepts(Collection<Concept> concepts, Mapping preceding, Set<Vocabulary.Identifier> vocabularies) {
         return concepts.stream()
-                .map(miss -> preceding.isToSingleConcept() ? preceding : new Mapping().precedingMapping(preceding).to(miss).description("Get single concept"))
+                .map(miss -> preceding.isToSingleConcept() ? preceding : Mapping.builder().precedingMapping(preceding).to(miss).description("Get single concept").build())
                 .map(c -> snomedToPreclinical(c, vocabularies))
                 .filter(l -> !isEmpty(l))
                 .toList();
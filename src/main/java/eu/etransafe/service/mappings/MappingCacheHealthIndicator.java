@@ -0,0 +1,26 @@
+package eu.etransafe.service.mappings;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// Part of the readiness group, keeps traffic away from a pod until the mapping cache is loaded
+@Component
+public class MappingCacheHealthIndicator implements HealthIndicator {
+
+    private final MappingCache mappingCache;
+
+    public MappingCacheHealthIndicator(MappingCache mappingCache) {
+        this.mappingCache = mappingCache;
+    }
+
+    @Override
+    public Health health() {
+        if (mappingCache.isLoaded()) {
+            return Health.up().build();
+        } else if (mappingCache.hasFailed()) {
+            return Health.down().withDetail("reason", "Mapping cache failed to load").build();
+        }
+        return Health.outOfService().withDetail("reason", "Mapping cache is loading").build();
+    }
+}
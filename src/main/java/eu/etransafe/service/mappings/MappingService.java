@@ -9,8 +9,10 @@ import eu.etransafe.domain.Vocabulary;
 import eu.etransafe.exception.RosettaException;
 import eu.etransafe.repo.ConceptRelationshipRepo;
 import eu.etransafe.repo.ConceptRepo;
+import eu.etransafe.repo.VocabularySnapshot;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
@@ -53,23 +55,32 @@ public class MappingService {
     public static final String VOCABULARY_ID = "vocabulary_id";
     public static final String DOMAIN_ID = "domain_id";
     public static final String CONCEPT_CLASS_ID = "concept_class_id";
+    // Penalty above the maximum that is still returned when there are only a few mappings
+    public static final double SQUASH_TOLERANCE = 0.9;
 
 
     private final ConceptRelationshipRepo relationshipRepo;
     private final DataSource dataSource;
     private final MappingCache mappingCache;
     private final ConceptRepo conceptRepo;
+    private final VocabularyHolder vocabulary;
 
-    public MappingService(ConceptRelationshipRepo relationshipRepo, DataSource dataSource, MappingCache mappingCache, ConceptRepo conceptRepo) {
+    public MappingService(@Nullable ConceptRelationshipRepo relationshipRepo, @Nullable DataSource dataSource,
+                          MappingCache mappingCache, @Nullable ConceptRepo conceptRepo, VocabularyHolder vocabulary) {
         this.relationshipRepo = relationshipRepo;
         this.dataSource = dataSource;
         this.mappingCache = mappingCache;
         this.conceptRepo = conceptRepo;
+        this.vocabulary = vocabulary;
     }
 
     public Set<Concept> map(Concept concept, Set<ConceptRelationship.Identifier> relations, Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
         var rel = relations == null ? EnumSet.allOf(ConceptRelationship.Identifier.class) : relations;
         if (concept != null) {
+            var lookups = vocabulary.lookups();
+            if (lookups != null) {
+                return concepts(mappings(lookups, List.of(concept), rel, vocabularies, domains));
+            }
             if (domains != null) {
                 return conceptRepo.map(concept.id(), rel, domains, vocabularies);
             } else {
@@ -81,9 +92,23 @@ public class MappingService {
 
 
     private List<ConceptRelationship> getConceptRelationships(Set<Concept> concepts, Set<ConceptRelationship.Identifier> relations, Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return mappings(lookups, concepts, relations, vocabularies, domains);
+        }
         return relationshipRepo.findMappings(concepts, relations, domains, vocabularies);
     }
 
+    // The relationships from the concepts to the vocabularies, and the domains when given, in the vocabulary files
+    private static List<ConceptRelationship> mappings(VocabularySnapshot lookups, Collection<Concept> concepts,
+                                                      Set<ConceptRelationship.Identifier> relations,
+                                                      Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
+        return lookups.relationshipsFrom(concepts, relations).stream()
+                .filter(cr -> vocabularies.contains(cr.conceptTwo().vocabulary()))
+                .filter(cr -> domains == null || domains.contains(cr.conceptTwo().domain()))
+                .toList();
+    }
+
     public Map<Concept, Set<Concept>> mapMultipleInSingleQuery(Set<Concept> concepts, Set<ConceptRelationship.Identifier> relations, Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
         if (!isEmpty(concepts)) {
             Map<Concept, Set<Concept>> result = new HashMap<>();
@@ -96,28 +121,34 @@ public class MappingService {
         return Collections.emptyMap();
     }
 
+    // Concepts that all the given concepts map to, intersected by the db in a single grouped query
     public Set<Concept> map(Set<Concept> concepts, Set<ConceptRelationship.Identifier> relations,
                             Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
-        List<Set<Concept>> hits = new ArrayList<>();
-        for (Concept concept : concepts) {
-            var mapped = map(concept, relations, vocabularies, domains);
-            hits.add(mapped);
-        }
-        return intersection(hits);
-    }
-
-    private Set<Concept> intersection(List<Set<Concept>> hits) {
-        if (hits == null || hits.isEmpty()) {
+        if (isEmpty(concepts)) {
             return emptySet();
         }
-        var shared = hits.stream().flatMap(Collection::stream).collect(toSet());
-        for (Set<Concept> set : hits) {
-            shared.retainAll(set);
+        if (concepts.size() == 1) {
+            return map(concepts.iterator().next(), relations, vocabularies, domains);
+        }
+        var rel = relations == null ? EnumSet.allOf(ConceptRelationship.Identifier.class) : relations;
+        var ids = concepts.stream().map(Concept::id).collect(toSet());
+        var lookups = vocabulary.lookups();
+        if (lookups != null) {
+            return mappings(lookups, concepts, rel, vocabularies, domains).stream()
+                    .collect(groupingBy(ConceptRelationship::conceptTwo, Collectors.mapping(cr -> cr.conceptOne().id(), toSet())))
+                    .entrySet().stream()
+                    .filter(e -> e.getValue().size() == ids.size())
+                    .map(Map.Entry::getKey)
+                    .collect(toSet());
+        }
+        if (domains != null) {
+            return conceptRepo.mapShared(ids, ids.size(), rel, domains, vocabularies);
+        } else {
+            return conceptRepo.mapShared(ids, ids.size(), rel, vocabularies);
         }
-        return shared;
     }
 
-    private Set<Concept> concepts(List<ConceptRelationship> mapping) {
+    private static Set<Concept> concepts(List<ConceptRelationship> mapping) {
         return mapping.stream()
                 .map(ConceptRelationship::conceptTwo)
                 .collect(toSet());
@@ -136,13 +167,14 @@ public class MappingService {
     }
 
     private Concept createConcept(ResultSet resultSet) throws SQLException {
-        return new Concept()
+        return Concept.builder()
                 .id(resultSet.getInt(CONCEPT_ID))
                 .code(resultSet.getString(CONCEPT_CODE))
                 .name(resultSet.getString(CONCEPT_NAME))
                 .vocabulary(valueOfFromDb(resultSet.getString(VOCABULARY_ID), Vocabulary.Identifier.class))
                 .domain(valueOfFromDb(resultSet.getString(DOMAIN_ID), Domain.class))
-                .conceptClass(resultSet.getString(CONCEPT_CLASS_ID));
+                .conceptClass(resultSet.getString(CONCEPT_CLASS_ID))
+                .build();
     }
 
 
@@ -214,20 +246,21 @@ public class MappingService {
                                 .filter(Objects::nonNull)
                                 .flatMap(Collection::stream)
                                 .collect(toSet());
-                        var c = new Mapping()
+                        var c = Mapping.builder()
                                 .from(source)
                                 .to(m)
                                 .penalty(totalPenalty)
-                                .description(MAPS_TO.value());
+                                .description(MAPS_TO.value())
+                                .build();
                         resp.add(c);
                     }
                 });
         return resp;
     }
 
-    public Set<Mapping> splitSnomed(Mapping mapping, Set<Vocabulary.Identifier> target) {
-        Set<Mapping> mappings = new HashSet<>();
-        mappings.add(mapping);
+    // Looks up the parts of the SNOMED concepts a mapping leads to, they do not depend on the target vocabularies
+    public SnomedParts decomposeSnomed(Mapping mapping) {
+        List<SnomedParts.Item> items = new ArrayList<>();
         mapping.to().forEach(mi -> {
             var req = map(mi.concepts(), EnumSet.of(HAS_FINDING_SITE, HAS_DIR_PROC_SITE, HAS_ASSO_MORPH), INTERMEDIARY, null);
             Set<Concept> concepts;
@@ -236,14 +269,28 @@ public class MappingService {
             } else {
                 concepts = req;
             }
-            var m = new Mapping()
+            var optional = map(mi.concepts(), EnumSet.of(HAS_OCCURRENCE, HAS_CAUSATIVE_AGENT, HAS_COMPONENT,
+                    HAS_DISPOSITION, HAS_PATHOLOGY, HAS_INTERPRETS), INTERMEDIARY, null);
+            items.add(new SnomedParts.Item(concepts, optional));
+        });
+        return new SnomedParts(mapping, items);
+    }
+
+    // The mapping with its SNOMED concepts split in parts, optional parts are only added when mapped to the target
+    public Set<Mapping> splitSnomed(SnomedParts parts, Set<Vocabulary.Identifier> target) {
+        var mapping = parts.mapping();
+        Set<Mapping> mappings = new HashSet<>();
+        mappings.add(mapping);
+        parts.items().forEach(item -> {
+            var concepts = item.required();
+            var m = Mapping.builder()
                     .precedingMapping(mapping)
                     .to(new MappingItem(concepts))
-                    .description("SPLIT SNOMED");
+                    .description("SPLIT SNOMED")
+                    .build();
             mappings.add(m);
 
-            var optional = map(mi.concepts(), EnumSet.of(HAS_OCCURRENCE, HAS_CAUSATIVE_AGENT, HAS_COMPONENT,
-                    HAS_DISPOSITION, HAS_PATHOLOGY, HAS_INTERPRETS), INTERMEDIARY, null)
+            var optional = item.optional()
                     .stream()
                     .filter(c -> mappingCache.isMappedToPreclinical(c, target))
                     .toList();
@@ -251,10 +298,11 @@ public class MappingService {
                 Set<Concept> temp = new HashSet<>();
                 temp.addAll(concepts);
                 temp.addAll(optional);
-                var extraM = new Mapping()
+                var extraM = Mapping.builder()
                         .precedingMapping(mapping)
                         .to(new MappingItem(temp))
-                        .description("SPLIT SNOMED");
+                        .description("SPLIT SNOMED")
+                        .build();
                 mappings.add(extraM);
             }
 
@@ -262,6 +310,17 @@ public class MappingService {
         return mappings;
     }
 
+    // The SNOMED concepts of a mapping split in parts, per mapping item the required and optional ones
+    public record SnomedParts(Mapping mapping, List<Item> items) {
+        public record Item(Set<Concept> required, Set<Concept> optional) {
+        }
+    }
+
+    // No mapping over this penalty is returned, in either sign, see the filter of the mappings controller
+    public static double penaltyLimit(int maxPenalty) {
+        return maxPenalty + 1.0;
+    }
+
     public Mapping findOneBestMapping(Collection<Mapping> mappings) {
         if (mappings == null || mappings.isEmpty()) {
             throw new RosettaException("No mappings in list when looking for best mapping");
@@ -271,7 +330,10 @@ public class MappingService {
     }
 
     public Concept mapPrimaryParent(Concept concept) {
-        var parents = relationshipRepo.primaryParent(concept, IS_A_PRIMARY);
+        var lookups = vocabulary.lookups();
+        var parents = lookups != null
+                ? List.copyOf(concepts(lookups.relationshipsFrom(List.of(concept), EnumSet.of(IS_A_PRIMARY))))
+                : relationshipRepo.primaryParent(concept, IS_A_PRIMARY);
         if (parents.size() == 1) {
             return parents.get(0);
         } else {
@@ -297,13 +359,28 @@ public class MappingService {
 
     @Cacheable(value = "snomedOptions")
     public Set<Integer> findMappingOptionsSnomed(int id) {
-        var options = relationshipRepo.findPotentialCombinationPartners(id,
-                EnumSet.of(ASSO_MORPH_OF, FINDING_SITE_OF, DIR_PROC_SITE_OF, HAS_ASSO_MORPH, HAS_DIR_PROC_SITE,
-                        HAS_FINDING_SITE, HAS_CAUSATIVE_AGENT, CAUSATIVE_AGENT_OF, PATHOLOGY_OF, OCCURRENCE_OF,
-                        INTERPRETS_OF, COMPONENT_OF, DISPOSITION_OF));
+        var relations = EnumSet.of(ASSO_MORPH_OF, FINDING_SITE_OF, DIR_PROC_SITE_OF, HAS_ASSO_MORPH, HAS_DIR_PROC_SITE,
+                HAS_FINDING_SITE, HAS_CAUSATIVE_AGENT, CAUSATIVE_AGENT_OF, PATHOLOGY_OF, OCCURRENCE_OF,
+                INTERPRETS_OF, COMPONENT_OF, DISPOSITION_OF);
+        var lookups = vocabulary.lookups();
+        var options = lookups != null ? combinationPartners(lookups, id, relations)
+                : relationshipRepo.findPotentialCombinationPartners(id, relations);
         // Adding self to do a simple contains all further down
         options.add(id);
         return options;
     }
 
+    // The concepts sharing the other end of one of the relationships with the concept
+    private static Set<Integer> combinationPartners(VocabularySnapshot lookups, int id,
+                                                    Set<ConceptRelationship.Identifier> relations) {
+        var concept = lookups.concept(id);
+        if (concept == null) {
+            return new HashSet<>();
+        }
+        var shared = concepts(lookups.relationshipsFrom(List.of(concept), relations));
+        return lookups.relationshipsTo(shared, relations).stream()
+                .map(cr -> cr.conceptOne().id())
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
 }
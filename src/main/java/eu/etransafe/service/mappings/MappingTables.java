@@ -0,0 +1,85 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ManualMapping;
+import eu.etransafe.domain.Mapping;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.util.LongKeyMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static eu.etransafe.domain.Vocabularies.ETOX;
+import static eu.etransafe.domain.Vocabularies.SEND;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Immutable snapshot of the lookup tables behind the {@link MappingCache}. A snapshot is only published once all
+ * tables are loaded, readers never see a half filled table.
+ * <p>
+ * All tables are keyed by concept id. The SNOMED to preclinical table also has a view per target (ETOX and SEND) that
+ * only holds the mappings to that target, so the hot lookups do not have to filter on vocabulary every time. The
+ * concepts with a link to MedDRA are only kept as their sorted ids.
+ */
+record MappingTables(ConceptSetMap<List<ManualMapping>> snomedToPreclinical,
+                     ConceptSetMap<List<ManualMapping>> snomedToETOX,
+                     ConceptSetMap<List<ManualMapping>> snomedToSEND,
+                     LongKeyMap<List<int[]>> snomedToETOXPartial,
+                     LongKeyMap<List<int[]>> snomedToSENDPartial,
+                     Map<Concept, Set<Mapping>> preclinicalToSnomed,
+                     LongKeyMap<List<ManualMapping>> meddraToSnomed,
+                     int[] snomedToMedDRA) {
+
+    // Mappings of exactly this set of SNOMED concepts (sorted ids) to at least one concept in the vocabularies
+    List<ManualMapping> snomedToPreclinical(int[] ids, Set<Vocabulary.Identifier> vocabularies) {
+        List<ManualMapping> mappings;
+        if (ETOX.equals(vocabularies)) {
+            mappings = snomedToETOX.get(ids);
+        } else if (SEND.equals(vocabularies)) {
+            mappings = snomedToSEND.get(ids);
+        } else {
+            var all = snomedToPreclinical.get(ids);
+            mappings = all == null ? null : all.stream().filter(m -> mapsTo(m, vocabularies)).toList();
+        }
+        return mappings == null ? emptyList() : mappings;
+    }
+
+    LongKeyMap<List<int[]>> partial(Set<Vocabulary.Identifier> vocabularies) {
+        return ETOX.equals(vocabularies) ? snomedToETOXPartial : snomedToSENDPartial;
+    }
+
+    static boolean mapsTo(ManualMapping mapping, Set<Vocabulary.Identifier> vocabularies) {
+        return mapping.items().concepts().stream().anyMatch(c -> vocabularies.contains(c.vocabulary()));
+    }
+
+    // The loaders run in parallel, each of them only writes to its own maps
+    static final class Builder {
+        final ConceptSetMap<List<ManualMapping>> snomedToPreclinical = new ConceptSetMap<>();
+        final LongKeyMap<List<int[]>> snomedToETOXPartial = new LongKeyMap<>(140);
+        final LongKeyMap<List<int[]>> snomedToSENDPartial = new LongKeyMap<>(140);
+        final Map<Concept, Set<Mapping>> preclinicalToSnomed = new HashMap<>(3600);
+        final LongKeyMap<List<ManualMapping>> meddraToSnomed = new LongKeyMap<>(39200);
+        final Set<Integer> snomedToMedDRA = new HashSet<>(60000);
+
+        MappingTables build() {
+            var all = snomedToPreclinical.mapValues(List::copyOf);
+            return new MappingTables(all, all.mapValues(view(ETOX)), all.mapValues(view(SEND)),
+                    snomedToETOXPartial.mapValues(List::copyOf), snomedToSENDPartial.mapValues(List::copyOf),
+                    unmodifiableMap(preclinicalToSnomed), meddraToSnomed.mapValues(List::copyOf),
+                    snomedToMedDRA.stream().mapToInt(Integer::intValue).sorted().toArray());
+        }
+
+        // Keys without any mapping to the vocabularies are left out of the view
+        private static Function<List<ManualMapping>, List<ManualMapping>> view(Set<Vocabulary.Identifier> vocabularies) {
+            return mappings -> {
+                var filtered = mappings.stream().filter(m -> mapsTo(m, vocabularies)).toList();
+                return filtered.isEmpty() ? null : filtered;
+            };
+        }
+    }
+}
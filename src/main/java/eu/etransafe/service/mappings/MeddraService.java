@@ -41,8 +41,12 @@ public class MeddraService {
     }
 
     public List<Mapping> mouseAnatomyToSystemOrganClass(Concept concept, int maxPenalty) {
+        return mouseAnatomyToSystemOrganClass(concept, maxPenalty, Deadline.none());
+    }
+
+    public List<Mapping> mouseAnatomyToSystemOrganClass(Concept concept, int maxPenalty, Deadline deadline) {
         List<Mapping> resp = new ArrayList<>();
-        var maToSnomed = organService.map(concept, SNOMED, maxPenalty);
+        var maToSnomed = organService.map(concept, SNOMED, maxPenalty, deadline);
         maToSnomed.stream()
                 .filter(mts -> mts.to() != null)
                 .forEach(mts -> mts.to().stream()
@@ -63,7 +67,7 @@ public class MeddraService {
                                     .orElse(null);
                             if (winner != null) {
                                 var explanation = " The most frequent SOC for these MedDRA terms occurred " + winner.getValue() + " times";
-                                var res = new Mapping().from(mts).to(winner.getKey()).description(findingsExplanation + meddraExplanation + explanation);
+                                var res = Mapping.builder().from(mts).to(winner.getKey()).description(findingsExplanation + meddraExplanation + explanation).build();
                                 resp.add(res);
                             }
                         }));
@@ -118,7 +122,7 @@ public class MeddraService {
             var mi = concepts.stream()
                     .map(MappingItem::new)
                     .collect(Collectors.toSet());
-            return new Mapping().from(source).to(mi);
+            return Mapping.builder().from(source).to(mi).build();
         }
     }
 }
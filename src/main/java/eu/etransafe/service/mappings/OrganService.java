@@ -40,9 +40,14 @@ public class OrganService {
     }
 
     public Set<Mapping> map(Concept source, Vocabulary.Identifier targetVocabulary, int maxPenalty) {
+        return map(source, targetVocabulary, maxPenalty, Deadline.none());
+    }
+
+    // Stops going up the hierarchy once the deadline has passed, the mappings found until then are returned
+    public Set<Mapping> map(Concept source, Vocabulary.Identifier targetVocabulary, int maxPenalty, Deadline deadline) {
         var mappings = map(source, targetVocabulary);
         if (mappings.isEmpty()) {
-            var result = orMappingsToSeparateMappings(expandAndMap(source, targetVocabulary, null, maxPenalty));
+            var result = orMappingsToSeparateMappings(expandAndMap(source, targetVocabulary, null, maxPenalty, deadline));
             if (result.isEmpty()) {
                 return Set.of(Mapping.noMapping(source));
             }
@@ -56,10 +61,11 @@ public class OrganService {
                             return conceptService.parents(concept).stream()
                                     .filter(c -> c.domain().equals(Domain.SPEC_ANATOMIC_SITE))
                                     .filter(c -> !isUnwantedConceptType(c))
-                                    .map(p -> new Mapping()
+                                    .map(p -> Mapping.builder()
                                             .to(p)
                                             .precedingMapping(m)
-                                            .description("Standardized to 'structure' concept"))
+                                            .description("Standardized to 'structure' concept")
+                                            .build())
                                     .collect(Collectors.toSet());
                         } else {
                             return Set.of(m);
@@ -96,11 +102,12 @@ public class OrganService {
                 .map(m -> {
                     if (m.to().size() > 1) {
                         return m.to().stream()
-                                .map(t -> new Mapping()
+                                .map(t -> Mapping.builder()
                                         .precedingMapping(m)
                                         .to(t)
                                         .description(Mapping.DESCR_TO_SINGLE_OR)
-                                        .penalty(0.1))
+                                        .penalty(0.1)
+                                        .build())
                                 .collect(Collectors.toSet());
                     } else {
                         return Set.of(m);
@@ -118,14 +125,15 @@ public class OrganService {
                 .collect(Collectors.toSet());
     }
 
-    private Set<Mapping> expandAndMap(Concept source, Vocabulary.Identifier targetVocabulary, Mapping previous, int maxPenalty) {
+    private Set<Mapping> expandAndMap(Concept source, Vocabulary.Identifier targetVocabulary, Mapping previous, int maxPenalty,
+                                      Deadline deadline) {
         var parents = conceptService.parents(source);
-        if (parents.contains(source)) {
+        if (parents.contains(source) || deadline.expired()) {
             return emptySet();
         }
         Set<Mapping> mappings = new HashSet<>();
         for (Concept p : parents) {
-            mappings.addAll(processParent(p, source, targetVocabulary, previous, maxPenalty));
+            mappings.addAll(processParent(p, source, targetVocabulary, previous, maxPenalty, deadline));
         }
         // Figure out why empty mappings arrive here
         return mappings.stream()
@@ -133,19 +141,19 @@ public class OrganService {
                 .collect(Collectors.toSet());
     }
 
-    private Set<Mapping> processParent(Concept parent, Concept source, Vocabulary.Identifier targetVocabulary, Mapping preceding, int maxPenalty) {
+    private Set<Mapping> processParent(Concept parent, Concept source, Vocabulary.Identifier targetVocabulary, Mapping preceding,
+                                       int maxPenalty, Deadline deadline) {
         if (preceding == null) {
-            preceding = new Mapping().from(source).to(parent).expanded(source, parent, UPHILL);
+            preceding = Mapping.builder().from(source).to(parent).expanded(source, parent, UPHILL).build();
         } else {
-            preceding = new Mapping().precedingMapping(preceding).to(parent).expanded(source, parent, UPHILL);
+            preceding = Mapping.builder().precedingMapping(preceding).to(parent).expanded(source, parent, UPHILL).build();
         }
         var res = map(parent, targetVocabulary);
         if (!res.isEmpty()) {
             Mapping finalPreceding = preceding;
-            res.forEach(m -> m.precedingMapping(finalPreceding));
-            return res;
+            return res.stream().map(m -> m.copy().precedingMapping(finalPreceding).build()).collect(Collectors.toSet());
         } else if (preceding.totalPenalty() < maxPenalty) {
-            return expandAndMap(parent, targetVocabulary, preceding, maxPenalty);
+            return expandAndMap(parent, targetVocabulary, preceding, maxPenalty, deadline);
         }
         return emptySet();
     }
@@ -180,7 +188,7 @@ public class OrganService {
         if (stringMatch != null) {
             if (!results.isEmpty()) {
                 // Prefer SNOMED traversal
-                stringMatch.penalty(0.1);
+                stringMatch = stringMatch.copy().penalty(0.1).build();
             }
             results.add(stringMatch);
         }
@@ -190,8 +198,8 @@ public class OrganService {
             conceptService.parents(concept).forEach(parent -> {
                 var parentString = stringMatch(parent, organs);
                 if (parentString != null) {
-                    var prev = new Mapping().from(concept).to(parent).expanded(concept, parent, UPHILL);
-                    results.add(parentString.precedingMapping(prev));
+                    var prev = Mapping.builder().from(concept).to(parent).expanded(concept, parent, UPHILL).build();
+                    results.add(parentString.copy().precedingMapping(prev).build());
                 }
                 mappingCache.meddraToSNOMED(parent).forEach(prev -> results.addAll(getOrgansForSnomed(prev)));
             });
@@ -207,10 +215,10 @@ public class OrganService {
             var socs = mappingService.getSocsForMEDDRAs(List.of(concept.id()), false).get(concept.id());
             if (socs != null) {
                 socs.forEach(soc -> {
-                    var prev = new Mapping().from(concept).to(soc).expanded(concept, soc, UPHILL);
+                    var prev = Mapping.builder().from(concept).to(soc).expanded(concept, soc, UPHILL).build();
                     var organ = organForSoc(soc);
                     if (organ != null) {
-                        var end = new Mapping().precedingMapping(prev).to(organ);
+                        var end = Mapping.builder().precedingMapping(prev).to(organ).build();
                         results.add(end);
                     }
                 });
@@ -226,16 +234,18 @@ public class OrganService {
                                                         return conceptService.parents(concept).stream()
                                                                 .filter(p -> !isUnwantedConceptType(p))
                                                                 .filter(p -> p.domain().equals(Domain.SPEC_ANATOMIC_SITE))
-                                                                .map(p -> new Mapping()
+                                                                .map(p -> Mapping.builder()
                                                                         .to(p)
                                                                         .precedingMapping(r)
-                                                                        .description("Standardized to 'structure' concept"))
+                                                                        .description("Standardized to 'structure' concept")
+                                                                        .build())
                                                                 .collect(Collectors.toSet());
                                                     } else {
-                                                        return Set.of(new Mapping()
+                                                        return Set.of(Mapping.builder()
                                                                 .to(c)
                                                                 .precedingMapping(r)
-                                                                .description("Removed non-'structure' concepts"));
+                                                                .description("Removed non-'structure' concepts")
+                                                                .build());
                                                     }
                                                 }).flatMap(Collection::stream)
                                                 .collect(Collectors.toSet());
@@ -262,7 +272,7 @@ public class OrganService {
                 .orElse(null);
 
         if (match != null) {
-            return new Mapping().from(concept).to(match).description("MedDRA term has Anatomic Structure in its name").penalty(0.1);
+            return Mapping.builder().from(concept).to(match).description("MedDRA term has Anatomic Structure in its name").penalty(0.1).build();
         }
         return null;
     }
@@ -287,7 +297,7 @@ public class OrganService {
                 var findingSites = items.concepts().stream().map(conceptService::findingSites).filter(fs -> !fs.isEmpty()).map(MappingItem::new).collect(Collectors.toSet());
                 if (!findingSites.isEmpty()) {
                     findingSites.forEach(s -> log.debug(s.humanReadable()));
-                    var m = new Mapping().from(sourceToSnomed).to(findingSites).description("Has finding site");
+                    var m = Mapping.builder().from(sourceToSnomed).to(findingSites).description("Has finding site").build();
                     results.add(m);
                 }
             });
@@ -3,21 +3,28 @@ package eu.etransafe.service.mappings;
 
 import com.google.common.collect.Sets;
 import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptSet;
+import eu.etransafe.domain.Description;
 import eu.etransafe.domain.Domain;
 import eu.etransafe.domain.Mapping;
 import eu.etransafe.domain.MappingItem;
 import eu.etransafe.domain.Vocabulary;
 import eu.etransafe.service.concepts.ConceptService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -32,6 +39,7 @@ import static eu.etransafe.domain.Mapping.Direction.DOWNHILL;
 import static eu.etransafe.domain.Mapping.Direction.UPHILL;
 import static eu.etransafe.domain.Vocabularies.CLINICAL;
 import static eu.etransafe.domain.Vocabularies.INTERMEDIARY;
+import static eu.etransafe.service.mappings.MappingService.penaltyLimit;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
 import static java.util.stream.Collectors.groupingBy;
@@ -43,17 +51,41 @@ import static org.springframework.util.CollectionUtils.isEmpty;
 @Service
 public class Preclinical2Clinical {
 
-    public static final Set<Concept> BODY_STRUCTURE = Set.of(new Concept().id(40481827), new Concept().id(4034052), new Concept().id(4237366), new Concept().id(70002975), new Concept().id(70000004));
+    public static final Set<Concept> BODY_STRUCTURE = Set.of(new Concept(40481827), new Concept(4034052), new Concept(4237366), new Concept(70002975), new Concept(70000004));
     private final ConceptService conceptService;
     private final MappingService mappingService;
+    private final ExpansionMemo expansionMemo;
+    private final SearchStrategy search;
+    private final MappingBranches branches;
+    private final MappableDistances distances;
+    private final VocabularyHolder vocabulary;
 
 
-    public Preclinical2Clinical(ConceptService conceptService, MappingService mappingService) {
+    public Preclinical2Clinical(ConceptService conceptService, MappingService mappingService, ExpansionMemo expansionMemo,
+                                @Value("${rosetta.mapping.search:exhaustive}") SearchStrategy search, MappingBranches branches,
+                                MappableDistances distances, VocabularyHolder vocabulary) {
         this.conceptService = conceptService;
         this.mappingService = mappingService;
+        this.expansionMemo = expansionMemo;
+        this.search = search;
+        this.branches = branches;
+        this.distances = distances;
+        this.vocabulary = vocabulary;
     }
 
     public Set<Mapping> map(Concept sourceFinding, Concept sourceOrgan, int maxPenalty) {
+        return map(sourceFinding, sourceOrgan, true, maxPenalty, Deadline.none());
+    }
+
+    /*
+     * Stops expanding once the deadline has passed, the mappings found until then are returned. Without explanation
+     * the steps before a mapping may be replaced by their result and total penalty.
+     */
+    public Set<Mapping> map(Concept sourceFinding, Concept sourceOrgan, boolean explain, int maxPenalty, Deadline deadline) {
+        return vocabulary.pinned(() -> mapPinned(sourceFinding, sourceOrgan, explain, maxPenalty, deadline));
+    }
+
+    private Set<Mapping> mapPinned(Concept sourceFinding, Concept sourceOrgan, boolean explain, int maxPenalty, Deadline deadline) {
         var source = getSource(sourceFinding, sourceOrgan);
         var sendOrgans = mappingService.preclinicalToSnomed(sourceOrgan);
         var sendFindings = mappingService.preclinicalToSnomed(sourceFinding);
@@ -65,7 +97,9 @@ public class Preclinical2Clinical {
             return emptySet();
         }
         var isLab = sourceFinding.vocabulary().equals(Vocabulary.Identifier.LABORATORY_TEST_NAME);
-        var mappings = snomed.stream().map(s -> mapSnomedToMeddra(s, maxPenalty, isLab)).flatMap(Collection::stream).toList();
+        var mappings = search == SearchStrategy.BEST_FIRST
+                ? bestFirst(snomed, maxPenalty, isLab, deadline, explain)
+                : branches.map(List.copyOf(snomed), vocabulary.pinning(s -> mapSnomedToMeddra(s, maxPenalty, isLab, deadline, explain)));
         return cleanUp(snomed, mappings);
     }
 
@@ -86,10 +120,12 @@ public class Preclinical2Clinical {
             return emptySet();
         } else if (organs.isEmpty()) {
             if (source.concepts().size() != 1) {
-                findings.forEach(f -> {
-                    f.penalty(-Math.abs(f.penalty()) - 1);
-                    f.description(f.description() + ". Could not map provided organ");
-                });
+                return findings.stream()
+                        .map(f -> f.copy()
+                                .penalty(-Math.abs(f.penalty()) - 1)
+                                .description("%s. Could not map provided organ", f.describedAs())
+                                .build())
+                        .collect(toSet());
             }
             return findings;
         } else {
@@ -100,14 +136,15 @@ public class Preclinical2Clinical {
     private Set<Mapping> doMerge(Collection<Mapping> one, Collection<Mapping> two, MappingItem preceding) {
         Set<Mapping> result = new HashSet<>();
         one.forEach(o -> two.forEach(t -> {
-            var description = o.penalty() == 0 && t.penalty() == 0 ? "Exact match" : o.description() + " | " + t.description();
+            var description = o.penalty() == 0 && t.penalty() == 0 ? Description.of("Exact match")
+                    : Description.of("%s | %s", o.describedAs(), t.describedAs());
             var combinedToMapping = new HashSet<MappingItem>();
             o.to().forEach(oi -> t.to().forEach(ti -> {
                 var combinedConcepts = new HashSet<>(oi.concepts());
                 combinedConcepts.addAll(ti.concepts());
                 combinedToMapping.add(new MappingItem(combinedConcepts));
             }));
-            var map = new Mapping().to(combinedToMapping).from(preceding).description(description).penalty(o.penalty() + t.penalty());
+            var map = Mapping.builder().to(combinedToMapping).from(preceding).description(description).penalty(o.penalty() + t.penalty()).build();
             result.add(map);
         }));
         return result;
@@ -128,13 +165,14 @@ public class Preclinical2Clinical {
         if (mappingsToPt.isEmpty()) {
             var any = fromSourceToSnomed.stream().findAny().get();
             var reached = fromSourceToSnomed.stream().map(Mapping::to).flatMap(Collection::stream).map(MappingItem::humanReadableSimple).collect(Collectors.joining());
-            var deadEnd = new Mapping().from(any.from()).description("Mapped source concepts to " + reached + " but failed to find MedDRA terms");
+            var deadEnd = Mapping.builder().from(any.from()).description("Mapped source concepts to " + reached + " but failed to find MedDRA terms").build();
             return Set.of(deadEnd);
         }
         return mappingsToPt;
     }
 
-    private Set<Mapping> mapSnomedToMeddra(Mapping fromSourceToSnomed, int maxPenalty, boolean isLab) {
+    private Set<Mapping> mapSnomedToMeddra(Mapping fromSourceToSnomed, int maxPenalty, boolean isLab, Deadline deadline,
+                                           boolean explain) {
         Set<Mapping> mappings = new HashSet<>();
         Map<Integer, Set<Integer>> options = new HashMap<>();
 
@@ -144,48 +182,205 @@ public class Preclinical2Clinical {
         var mappingsWithSnomedTraversal = templateMapping(fromSourceToSnomed, options, isLab);
         mappings.addAll(mappingsWithSnomedTraversal);
 
-        Map<Set<MappingItem>, Double> alreadyDone = new HashMap<>();
-        var expandedResults = expandAndMap(fromSourceToSnomed, new HashSet<>(), null, maxPenalty, alreadyDone, options, isLab);
+        Map<ConceptSet, Double> alreadyDone = new HashMap<>();
+        var expandedResults = expandAndMap(fromSourceToSnomed, maxPenalty, alreadyDone, options, isLab, deadline, explain);
         mappings.addAll(expandedResults);
-        fromSourceToSnomed.to().forEach(item -> reducedSet(fromSourceToSnomed, maxPenalty, mappings, options, alreadyDone, item, isLab));
+        fromSourceToSnomed.to().forEach(item -> reducedSet(fromSourceToSnomed, maxPenalty, mappings, options, alreadyDone, item, isLab, deadline, explain));
 
         return mappings;
     }
 
+    /*
+     * Removes concepts from an AND mapping of more than two concepts one at a time, as long as the concepts left are of
+     * two domains, and maps what is left. A subset is reached by removing its missing concepts in any order, so the
+     * subsets are walked level by level as bitmasks over the concepts of the item and each one is mapped once. Every
+     * removal costs the same, the first path to a subset is as cheap as any other. Subsets that already cost more than
+     * a response can include are not mapped, nor is anything reduced from them.
+     */
     private void reducedSet(Mapping fromSourceToSnomed, int maxPenalty, Set<Mapping> mappings,
-                            Map<Integer, Set<Integer>> options, Map<Set<MappingItem>, Double> alreadyDone, MappingItem item, boolean isLab) {
+                            Map<Integer, Set<Integer>> options, Map<ConceptSet, Double> alreadyDone, MappingItem item, boolean isLab,
+                            Deadline deadline, boolean explain) {
+        if (item.size() <= 2 || !item.moreThanOneDomain()) {
+            return;
+        }
+        if (item.size() >= Long.SIZE) {
+            log.warn("Not reducing an AND mapping of {} concepts", item.size());
+            return;
+        }
+        List<Concept> concepts = List.copyOf(item.concepts());
+        Map<Long, Mapping> level = Map.of((1L << concepts.size()) - 1, fromSourceToSnomed);
+        for (int size = concepts.size(); size > 2 && !level.isEmpty() && !deadline.expired(); size--) {
+            Map<Long, Mapping> reduced = new LinkedHashMap<>();
+            level.forEach((mask, preceding) -> {
+                for (long left = mask; left != 0; left &= left - 1) {
+                    long subset = mask & ~Long.lowestOneBit(left);
+                    if (!reduced.containsKey(subset) && domains(concepts, subset) == 2) {
+                        var n = Mapping.builder().to(new MappingItem(subset(concepts, subset)))
+                                .precedingMapping(preceding)
+                                .description("Removed AND mapping")
+                                .penalty(1)
+                                .build();
+                        if (Math.abs(n.totalPenalty()) < maxPenalty + 1.0) {
+                            reduced.put(subset, n);
+                        }
+                    }
+                }
+            });
+            for (var n : reduced.values()) {
+                if (deadline.expired()) {
+                    return;
+                }
+                mappings.addAll(templateMapping(n, options, isLab));
+                mappings.addAll(expandAndMap(n, maxPenalty, alreadyDone, options, isLab, deadline, explain));
+            }
+            level = reduced;
+        }
+    }
+
+    private static Set<Concept> subset(List<Concept> concepts, long mask) {
+        Set<Concept> subset = new HashSet<>();
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            subset.add(concepts.get(Long.numberOfTrailingZeros(bits)));
+        }
+        return subset;
+    }
+
+    private static long domains(List<Concept> concepts, long mask) {
+        return subset(concepts, mask).stream().map(Concept::domain).distinct().count();
+    }
+
+    /*
+     * Visits the SNOMED mappings, their reduced sets and their expansions cheapest first and only maps what is visited.
+     * Every step only adds penalty, so once the cheapest mapping left reaches the penalty limit of what is returned
+     * nothing that would be returned can be found anymore. Like in the exhaustive search every SNOMED mapping and
+     * reduced set is expanded on its own, what the expansions of one left out or already reached does not prune
+     * another. Only the concepts an expansion leaves out once they have been expanded to depend on the order they are
+     * reached in, which can make either search miss a result the other finds. Without explanation the expansions only
+     * keep the penalty since their SNOMED mapping or reduced set, as in expandAndMap.
+     */
+    private Set<Mapping> bestFirst(Set<Mapping> fromSourceToSnomed, int maxPenalty, boolean isLab, Deadline deadline,
+                                   boolean explain) {
+        Set<Mapping> mappings = new HashSet<>();
+        Map<Integer, Set<Integer>> options = new HashMap<>();
+        PriorityQueue<Frontier> frontier = new PriorityQueue<>(Comparator.comparingDouble(Frontier::penalty));
+        fromSourceToSnomed.forEach(m -> frontier.add(new Frontier(m, Step.SOURCE, null, null, Root.of(m, new HashSet<>(), explain))));
+        int visited = 0;
+        while (!frontier.isEmpty() && frontier.peek().penalty() < penaltyLimit(maxPenalty) && !deadline.expired()) {
+            var next = frontier.poll();
+            var mapping = next.mapping();
+            visited++;
+            var results = templateMapping(mapping, options, isLab);
+            switch (next.step()) {
+                case SOURCE -> {
+                    results.addAll(mapToMedDRA(mapping));
+                    mapping.to().forEach(item -> reduce(mapping, item, maxPenalty, next.root(), explain, frontier));
+                }
+                case REDUCED -> mapping.to().forEach(item -> reduce(mapping, item, maxPenalty, next.root(), explain, frontier));
+                case EXPANDED -> {
+                    if (!next.relative().domain().equals(SPEC_ANATOMIC_SITE)) {
+                        results.addAll(mapToMedDRA(mapping));
+                    }
+                }
+            }
+            mappings.addAll(next.root().scoredFrom() == null || next.step() != Step.EXPANDED ? results
+                    : results.stream().map(Mapping::detached).toList());
+            if (next.step() != Step.EXPANDED || next.penalty() < maxPenalty) {
+                expand(next, maxPenalty, isLab, frontier);
+            }
+        }
+        log.debug("Visited {} SNOMED mappings best first, {} left in the frontier", visited, frontier.size());
+        return mappings;
+    }
+
+    private void reduce(Mapping mapping, MappingItem item, int maxPenalty, Root root, boolean explain,
+                        PriorityQueue<Frontier> frontier) {
         if (item.size() > 2 && item.moreThanOneDomain()) {
-            Set<Set<Concept>> combinations = Sets.combinations(item.concepts(), item.size() - 1);
-            combinations.stream()
+            Sets.combinations(item.concepts(), item.size() - 1).stream()
                     .filter(c -> c.stream().map(Concept::domain).distinct().count() == 2)
-                    .forEach(reducedMapping -> {
-                        var newItem = new MappingItem(reducedMapping);
-                        var n = new Mapping().to(newItem)
-                                .precedingMapping(fromSourceToSnomed)
-                                .description("Removed AND mapping")
-                                .penalty(1);
-                        var tm = templateMapping(n, options, isLab);
-                        mappings.addAll(tm);
-                        var exp = expandAndMap(n, new HashSet<>(), null, maxPenalty, alreadyDone, options, isLab);
-                        mappings.addAll(exp);
-                        reducedSet(n, maxPenalty, mappings, options, alreadyDone, newItem, isLab);
-                    });
+                    .map(reducedMapping -> Mapping.builder().to(new MappingItem(reducedMapping))
+                            .precedingMapping(mapping)
+                            .description("Removed AND mapping")
+                            .penalty(1)
+                            .build())
+                    .filter(n -> Math.abs(n.totalPenalty()) < penaltyLimit(maxPenalty) && root.reduced().add(n.singleToMappingItem().ids()))
+                    .forEach(n -> frontier.add(new Frontier(n, Step.REDUCED, null, null, Root.of(n, root.reduced(), explain))));
+        }
+    }
+
+    private void expand(Frontier from, int maxPenalty, boolean isLab, PriorityQueue<Frontier> frontier) {
+        var direction = from.direction();
+        var exclude = from.root().exclude();
+        from.mapping().to().forEach(to -> to.concepts().forEach(snomed -> {
+            if (!(DOWNHILL.equals(direction) && exclude.contains(snomed))) {
+                conceptService.parents(snomed).forEach(p -> reach(from, to, snomed, p, UPHILL, maxPenalty, isLab, frontier));
+            }
+            if (!(UPHILL.equals(direction) && exclude.contains(snomed))) {
+                conceptService.children(snomed).forEach(c -> reach(from, to, snomed, c, DOWNHILL, maxPenalty, isLab, frontier));
+            }
+        }));
+    }
+
+    private void reach(Frontier from, MappingItem to, Concept snomed, Concept relative, Mapping.Direction direction,
+                       int maxPenalty, boolean isLab, PriorityQueue<Frontier> frontier) {
+        var root = from.root();
+        var expanded = root.scoredFrom() == null
+                ? createHierarchicTraversalMappingItem(from.mapping(), to, snomed, relative, direction)
+                : Mapping.expandedSince(root.scoredFrom(), from.mapping(), to.replace(snomed, relative), snomed, relative, direction);
+        if (outOfReach(expanded, to, relative, direction, maxPenalty, isLab)) {
+            return;
+        }
+        var reached = expanded.singleToMappingItem().ids();
+        if (root.alreadyDone().getOrDefault(reached, maxPenalty + 1.0) > expanded.totalPenalty()) {
+            root.alreadyDone().put(reached, expanded.totalPenalty());
+            root.exclude().add(relative);
+            frontier.add(new Frontier(expanded, Step.EXPANDED, direction, relative, root));
         }
     }
 
+    // Expanding a SNOMED mapping only depends on its concepts, the kind of finding and the penalty budget left, so the
+    // results are shared between requests. Without explanation the expansion steps only keep their result and penalty,
+    // and only the result and total penalty of the steps before a result are returned.
+    private Set<Mapping> expandAndMap(Mapping mapping, int maxPenalty, Map<ConceptSet, Double> alreadyDone,
+                                      Map<Integer, Set<Integer>> options, boolean isLab, Deadline deadline, boolean explain) {
+        var scoredFrom = explain ? null : mapping;
+        if (mapping.to().size() != 1) {
+            return expandAndMap(mapping, new HashSet<>(), null, maxPenalty, alreadyDone, options, isLab, new IdentityHashMap<>(), scoredFrom, deadline);
+        }
+        var state = ExpansionState.of(mapping.toConcepts(), null, isLab);
+        double budget = maxPenalty - Math.abs(mapping.totalPenalty());
+        var memoized = expansionMemo.get(state, mapping, budget, explain);
+        if (memoized != null) {
+            return memoized;
+        }
+        // What this request already mapped elsewhere must not prune the shared results
+        Map<ConceptSet, Double> done = new HashMap<>();
+        Map<Mapping, Double> gates = new IdentityHashMap<>();
+        var mappings = expandAndMap(mapping, new HashSet<>(), null, maxPenalty, done, options, isLab, gates, scoredFrom, deadline);
+        // An expansion cut short by the deadline is not the complete answer for this state
+        if (!deadline.passed()) {
+            expansionMemo.put(state, mapping, budget, mappings, gates, explain);
+        }
+        done.forEach((items, penalty) -> alreadyDone.merge(items, penalty, Math::min));
+        return explain ? mappings : mappings.stream().map(Mapping::detached).collect(toSet());
+    }
 
+    // The steps only keep the penalty since the scored from mapping when it is given, the search is not explained
     private Set<Mapping> expandAndMap(Mapping mapping, Set<Concept> exclude, Mapping.Direction direction,
-                                      int maxPenalty, Map<Set<MappingItem>, Double> alreadyDone, Map<Integer, Set<Integer>> options, boolean isLab) {
+                                      int maxPenalty, Map<ConceptSet, Double> alreadyDone, Map<Integer, Set<Integer>> options,
+                                      boolean isLab, Map<Mapping, Double> gates, Mapping scoredFrom, Deadline deadline) {
         Set<Mapping> mappings = new HashSet<>();
+        if (deadline.expired()) {
+            return mappings;
+        }
         mapping.to().forEach(to -> to.concepts()
                 .forEach(snomed -> {
                     if (!(DOWNHILL.equals(direction) && exclude.contains(snomed))) {
                         var parents = conceptService.parents(snomed);
-                        mappings.addAll(mapExpansion(mapping, to, snomed, parents, UPHILL, maxPenalty, exclude, alreadyDone, options, isLab));
+                        mappings.addAll(mapExpansion(mapping, to, snomed, parents, UPHILL, maxPenalty, exclude, alreadyDone, options, isLab, gates, scoredFrom, deadline));
                     }
                     if (!(UPHILL.equals(direction) && exclude.contains(snomed))) {
                         var children = conceptService.children(snomed);
-                        mappings.addAll(mapExpansion(mapping, to, snomed, children, DOWNHILL, maxPenalty, exclude, alreadyDone, options, isLab));
+                        mappings.addAll(mapExpansion(mapping, to, snomed, children, DOWNHILL, maxPenalty, exclude, alreadyDone, options, isLab, gates, scoredFrom, deadline));
                     }
                 }));
         return mappings;
@@ -193,37 +388,54 @@ public class Preclinical2Clinical {
 
     private Set<Mapping> mapExpansion(Mapping inputMapping, MappingItem mappingItem, Concept snomed,
                                       List<Concept> relatives, Mapping.Direction direction, int maxPenalty,
-                                      Set<Concept> exclude, Map<Set<MappingItem>, Double> alreadyDone, Map<Integer, Set<Integer>> options, boolean isLab) {
+                                      Set<Concept> exclude, Map<ConceptSet, Double> alreadyDone, Map<Integer, Set<Integer>> options,
+                                      boolean isLab, Map<Mapping, Double> gates, Mapping scoredFrom, Deadline deadline) {
         Set<Mapping> mappings = new HashSet<>();
+        // Only expansions of an expanded mapping had to stay under the maximum penalty, the first ones are always made
+        double gate = gates.containsKey(inputMapping)
+                ? Math.abs(inputMapping.totalPenalty()) : Double.NEGATIVE_INFINITY;
         relatives.forEach(p -> {
-            Mapping expanded = createHierarchicTraversalMappingItem(inputMapping, mappingItem, snomed, p, direction);
-            if (alreadyDone.getOrDefault(expanded.to(), maxPenalty + 1.0) > expanded.totalPenalty()) {
-                alreadyDone.put(expanded.to(), expanded.totalPenalty());
+            Mapping expanded = scoredFrom == null
+                    ? createHierarchicTraversalMappingItem(inputMapping, mappingItem, snomed, p, direction)
+                    : Mapping.expandedSince(scoredFrom, inputMapping, mappingItem.replace(snomed, p), snomed, p, direction);
+            if (outOfReach(expanded, mappingItem, p, direction, maxPenalty, isLab)) {
+                return;
+            }
+            gates.put(expanded, gate);
+            var reached = expanded.singleToMappingItem().ids();
+            if (alreadyDone.getOrDefault(reached, maxPenalty + 1.0) > expanded.totalPenalty()) {
+                alreadyDone.put(reached, expanded.totalPenalty());
                 mappings.addAll(templateMapping(expanded, options, isLab));
                 if (!p.domain().equals(SPEC_ANATOMIC_SITE)) {
                     mappings.addAll(mapToMedDRA(expanded));
                 }
                 if (Math.abs(expanded.totalPenalty()) < maxPenalty) {
                     exclude.add(p);
-                    mappings.addAll(expandAndMap(expanded, exclude, direction, maxPenalty, alreadyDone, options, isLab));
+                    mappings.addAll(expandAndMap(expanded, exclude, direction, maxPenalty, alreadyDone, options, isLab, gates, scoredFrom, deadline));
                 }
             }
         });
         return mappings;
     }
 
+    /*
+     * Whether this expansion can not reach a concept with a MedDRA link within the maximum penalty, so there is no need
+     * to go on. Only for a single concept, a link is all it can lead to. Combinations of concepts and lab tests may also
+     * be mapped by a template, the distances know nothing about those.
+     */
+    private boolean outOfReach(Mapping expanded, MappingItem item, Concept relative, Mapping.Direction direction,
+                               int maxPenalty, boolean isLab) {
+        return !isLab && item.size() == 1
+                && Math.abs(expanded.totalPenalty()) + distances.penaltyLeft(relative, direction, CLINICAL) >= maxPenalty + 1.0;
+    }
+
     private Mapping createHierarchicTraversalMappingItem(Mapping previous, MappingItem mappingItem, Concept
             snomed, Concept ancestor, Mapping.Direction direction) {
-        Set<Concept> concepts = new HashSet<>();
-        var remaining = mappingItem.concepts().stream()
-                .filter(concept -> !concept.equals(snomed))
-                .collect(toSet());
-        concepts.addAll(remaining);
-        concepts.add(ancestor);
-        return new Mapping()
-                .to(new MappingItem(concepts))
+        return Mapping.builder()
+                .to(mappingItem.replace(snomed, ancestor))
                 .from(previous)
-                .expanded(snomed, ancestor, direction);
+                .expanded(snomed, ancestor, direction)
+                .build();
     }
 
     private Set<Mapping> lltToPt(Mapping mapping) {
@@ -231,11 +443,12 @@ public class Preclinical2Clinical {
         if (result.conceptClass().equals("LLT")) {
             var parents = conceptService.parents(result);
             return parents.stream()
-                    .map(parent -> new Mapping()
+                    .map(parent -> Mapping.builder()
                             .from(mapping)
                             .to(parent)
                             .expanded(result, parent, UPHILL)
-                            .penalty(0.1))
+                            .penalty(0.1)
+                            .build())
                     .collect(toSet());
 
         } else if (!result.conceptClass().equals("PT")) {
@@ -265,9 +478,10 @@ public class Preclinical2Clinical {
                         .toList();
                 imperfectMeddra.stream().map(meddra -> meddraConceptToMapping(toSnomed, penalty, f, meddra)).forEach(m -> {
                     var increased = m.penalty() + 0.1;
-                    m.penalty(increased);
-                    m.description("Inverted MedDRA -> SNOMED mapping, may be imprecise");
-                    results.add(m);
+                    results.add(m.copy()
+                            .penalty(increased)
+                            .description("Inverted MedDRA -> SNOMED mapping, may be imprecise")
+                            .build());
                 });
             });
         });
@@ -289,12 +503,13 @@ public class Preclinical2Clinical {
         if (penalty == 0) {
             preceding = toSnomed;
         } else {
-            preceding = new Mapping().precedingMapping(toSnomed).to(f).description("Remove AND mappings").penalty(penalty);
+            preceding = Mapping.builder().precedingMapping(toSnomed).to(f).description("Remove AND mappings").penalty(penalty).build();
         }
-        return new Mapping()
+        return Mapping.builder()
                 .to(meddra)
                 .precedingMapping(preceding)
-                .description(MAPS_TO.value());
+                .description(MAPS_TO.value())
+                .build();
     }
 
     private Set<Mapping> templateMapping(Mapping fromSourceToSnomed, Map<Integer, Set<Integer>> options, boolean isLab) {
@@ -305,26 +520,23 @@ public class Preclinical2Clinical {
                 Set<Concept> snomedCombinationConcepts = mapFromMultiple(initialSnomed, options, isLab);
                 Mapping preceding = precedingMapping(fromSourceToSnomed, initialSnomed);
                 var isBodyStructureMapping = initialSnomed.concepts().stream().anyMatch(BODY_STRUCTURE::contains);
+                var domains = Description.joining(" AND ", initialSnomed.concepts().stream()
+                        .map(Concept::domain)
+                        .distinct()
+                        .sorted(Comparator.comparing(Domain::value))
+                        .toList());
                 for (Concept c : snomedCombinationConcepts) {
                     var extraSites = extraFindingSites(fromSourceToSnomed.toConcepts(), c);
                     var penalty = extraSites.size();
-                    var extraSitesExplanation = penalty == 0 ? "" :
-                            ". Penalty for extra finding sites: " + extraSites.stream()
-                                    .map(Concept::name)
-                                    .collect(Collectors.joining(", "));
+                    Object extraSitesExplanation = penalty == 0 ? "" : Description.of(". Penalty for extra finding sites: %s", extraSites);
                     penalty = isBodyStructureMapping ? (-1 * penalty) - 1 : penalty;
                     var bodyStructureExplanation = penalty < 0 ? ". Negative score because entire body is not an organ" : "";
-                    var cm = new Mapping()
+                    var cm = Mapping.builder()
                             .to(c)
                             .from(preceding)
                             .penalty(penalty)
-                            .description(initialSnomed.concepts().stream()
-                                    .map(Concept::domain)
-                                    .distinct()
-                                    .map(Domain::value)
-                                    .sorted()
-                                    .collect(Collectors.joining(" AND ")) + " TO " + c.domain().value() +
-                                    extraSitesExplanation + bodyStructureExplanation);
+                            .description("%s TO %s%s%s", domains, c.domain(), extraSitesExplanation, bodyStructureExplanation)
+                            .build();
                     results.addAll(mapToMedDRA(cm));
                 }
             }
@@ -377,12 +589,41 @@ public class Preclinical2Clinical {
 
     private Mapping precedingMapping(Mapping from, MappingItem to) {
         if (from.to().size() > 1) {
-            return new Mapping()
+            return Mapping.builder()
                     .to(to)
                     .description(DESCR_TO_SINGLE_OR)
-                    .from(from);
+                    .from(from)
+                    .build();
         }
         return from;
     }
 
+    private enum Step {
+        // A mapping from the source to SNOMED
+        SOURCE,
+        // A SNOMED mapping with one of the concepts of an AND mapping removed
+        REDUCED,
+        // A SNOMED mapping with one concept replaced by a parent or child
+        EXPANDED
+    }
+
+    // The relative is the concept an expanded mapping was expanded to
+    private record Frontier(Mapping mapping, Step step, Mapping.Direction direction, Concept relative, Root root,
+                            double penalty) {
+        private Frontier(Mapping mapping, Step step, Mapping.Direction direction, Concept relative, Root root) {
+            this(mapping, step, direction, relative, root, Math.abs(mapping.totalPenalty()));
+        }
+    }
+
+    /*
+     * What the expansions of a SNOMED mapping or reduced set excluded and reached, and the mapping itself when they are
+     * not explained. Reduced sets are reached through every order of removing concepts, only the first and cheapest one
+     * of a SNOMED mapping is visited.
+     */
+    private record Root(Set<ConceptSet> reduced, Set<Concept> exclude, Map<ConceptSet, Double> alreadyDone,
+                        Mapping scoredFrom) {
+        private static Root of(Mapping mapping, Set<ConceptSet> reduced, boolean explain) {
+            return new Root(reduced, new HashSet<>(), new HashMap<>(), explain ? null : mapping);
+        }
+    }
 }
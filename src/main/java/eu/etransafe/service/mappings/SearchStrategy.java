@@ -0,0 +1,13 @@
+package eu.etransafe.service.mappings;
+
+/**
+ * How the mapping algorithms search through the SNOMED hierarchy for a translation.
+ */
+public enum SearchStrategy {
+
+    // Follows every split and expansion depth first, bounded by the maximum penalty and a few cut offs
+    EXHAUSTIVE,
+
+    // Expands the cheapest mapping first and stops once the cheapest one left reaches the penalty limit of what is returned
+    BEST_FIRST
+}
@@ -91,7 +91,7 @@ public class SironaService {
         var finding = findFinding(from.finding());
         Set<Mapping> res = new HashSet<>();
         if (finding != null) {
-            res = mapping.map(finding, organ, MAX_PENALTY);
+            res = mapping.map(finding, organ, false, MAX_PENALTY, Deadline.none());
         }
 
         if (finding == null || res.isEmpty()) {
@@ -177,9 +177,11 @@ public class SironaService {
             return null;
         }
         List<Mapping> result = emptyList();
+        // Every penalty level continues from the previous one instead of mapping from scratch
+        var deepening = eToxMapping.deepening(meddra, ETOX, false, MAX_PENALTY);
         int i = 1;
         while (result.isEmpty() && i <= MAX_PENALTY) {
-            var m = eToxMapping.map(meddra, ETOX, false, i);
+            var m = deepening.map(i, Deadline.none());
             if (m.size() == 1 && m.stream().findAny().get().description().startsWith("No mappings available for ")) {
                 break;
             }
@@ -0,0 +1,107 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.exception.RosettaException;
+import eu.etransafe.repo.VocabularySnapshot;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds the in-memory vocabulary data the requests are served from: the concept hierarchy, the mapping tables and the
+ * distances between them. A (re)load publishes all of them at once with a single write, nobody sees a new hierarchy
+ * with old tables.
+ * <p>
+ * A mapping request pins the data that is current when it starts and uses it until it is done, also on the threads
+ * mapping its branches. Data published in the meantime is picked up by the next request. When the data is read from
+ * files it also answers the concept lookups, those then wait for the initial load like the mapping tables do.
+ */
+@Component
+public class VocabularyHolder {
+
+    private final CompletableFuture<LoadedVocabulary> initialLoad = new CompletableFuture<>();
+    private final ThreadLocal<LoadedVocabulary> pinned = new ThreadLocal<>();
+    private final boolean lookupsInMemory;
+    private volatile LoadedVocabulary latest;
+
+    public VocabularyHolder(@Value("${rosetta.source:db}") String source) {
+        this.lookupsInMemory = !"db".equals(source);
+    }
+
+    // The data pinned by the request on this thread, otherwise the latest. Null before the initial load is done.
+    LoadedVocabulary current() {
+        var data = pinned.get();
+        return data != null ? data : latest;
+    }
+
+    // Requests that come in before the initial load is done simply wait for it instead of seeing empty tables
+    LoadedVocabulary awaitCurrent() {
+        var data = current();
+        if (data != null) {
+            return data;
+        }
+        try {
+            return initialLoad.join();
+        } catch (CompletionException e) {
+            throw new RosettaException("The mapping cache could not be loaded");
+        }
+    }
+
+    // Empty until the initial load is done, concepts that are not in it should be looked up in the db
+    public ConceptHierarchy hierarchy() {
+        var data = current();
+        return data == null ? ConceptHierarchy.EMPTY : data.hierarchy();
+    }
+
+    // The data to look up concepts and relationships in, null when they are looked up in the db
+    public VocabularySnapshot lookups() {
+        return lookupsInMemory ? awaitCurrent().lookups() : null;
+    }
+
+    void publish(LoadedVocabulary data) {
+        latest = data;
+        initialLoad.complete(data);
+    }
+
+    // Only matters for the initial load, after a failed reload the previous data stays in use
+    void failed(Throwable e) {
+        initialLoad.completeExceptionally(e);
+    }
+
+    public boolean isLoaded() {
+        return latest != null;
+    }
+
+    public boolean hasFailed() {
+        return latest == null && initialLoad.isCompletedExceptionally();
+    }
+
+    // Runs the request with the current data, a request that already pinned its data keeps it
+    <T> T pinned(Supplier<T> request) {
+        return pinned(current(), request);
+    }
+
+    <T> T pinned(LoadedVocabulary data, Supplier<T> request) {
+        var previous = pinned.get();
+        pinned.set(data);
+        try {
+            return request.get();
+        } finally {
+            if (previous == null) {
+                pinned.remove();
+            } else {
+                pinned.set(previous);
+            }
+        }
+    }
+
+    // The function runs with the data that is current here, for the branches of a request that run on other threads
+    <T, R> Function<T, R> pinning(Function<T, R> function) {
+        var data = current();
+        return t -> pinned(data, () -> function.apply(t));
+    }
+}
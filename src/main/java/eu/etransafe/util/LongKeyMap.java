@@ -0,0 +1,137 @@
+package eu.etransafe.util;
+
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+/**
+ * Open addressing hash map with primitive long keys, lookups do not box or allocate anything. Meant to be filled once
+ * and read many times, there is no remove.
+ */
+public final class LongKeyMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongKeyMap() {
+        this(16);
+    }
+
+    public LongKeyMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return values[slot(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[slot(key)];
+    }
+
+    public V getOrDefault(long key, V defaultValue) {
+        V value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    // Null values are not supported, a null value means the slot is empty
+    public void put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("LongKeyMap does not support null values");
+        }
+        int slot = slot(key);
+        if (values[slot] == null) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    public V computeIfAbsent(long key, LongFunction<V> mapping) {
+        V value = get(key);
+        if (value == null) {
+            value = mapping.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    public void forEach(Entry<V> consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                consumer.accept(keys[i], get(i));
+            }
+        }
+    }
+
+    // New map with the same keys, entries for which the mapping returns null are left out
+    public <W> LongKeyMap<W> mapValues(Function<V, W> mapping) {
+        LongKeyMap<W> result = new LongKeyMap<>(size);
+        forEach((key, value) -> {
+            W mapped = mapping.apply(value);
+            if (mapped != null) {
+                result.put(key, mapped);
+            }
+        });
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V get(int slot) {
+        return (V) values[slot];
+    }
+
+    // Linear probing, returns the slot of the key or the empty slot where it should go
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Concept ids are sequential, spread them out so neighbouring ids do not end up in one long probe chain
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "LongKeyMap{size=" + size + ", capacity=" + keys.length + "}";
+    }
+
+    @FunctionalInterface
+    public interface Entry<V> {
+        void accept(long key, V value);
+    }
+}
@@ -0,0 +1,89 @@
+package eu.etransafe.config;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.service.concepts.ConceptService;
+import eu.etransafe.service.mappings.MappingService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// With the vocabulary data read from files the app starts, and looks up concepts, without a db
+@SpringBootTest(properties = {
+        "rosetta.source=athena",
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration,"
+                + "org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration"})
+class AthenaSourceTest {
+
+    @Autowired
+    ApplicationContext context;
+
+    @Autowired
+    ConceptService conceptService;
+
+    @Autowired
+    MappingService mappingService;
+
+    // Created before the context, which reads it
+    @TempDir
+    static Path dir;
+
+    @DynamicPropertySource
+    static void athena(DynamicPropertyRegistry registry) throws IOException {
+        Files.writeString(dir.resolve("CONCEPT.csv"), """
+                concept_id\tconcept_name\tdomain_id\tvocabulary_id\tconcept_class_id\tstandard_concept\tconcept_code\tvalid_start_date\tvalid_end_date\tinvalid_reason
+                1\tLiver\tSpec Anatomic Site\tSNOMED\tBody Structure\tS\t10200000\t20020131\t20991231\t
+                2\tDisorder of liver\tCondition\tSNOMED\tClinical Finding\tS\t235856003\t20020131\t20991231\t
+                3\tLiver disorder\tCondition\tMedDRA\tPT\tC\t10024670\t20020131\t20991231\t
+                """);
+        Files.writeString(dir.resolve("CONCEPT_RELATIONSHIP.csv"), """
+                concept_id_1\tconcept_id_2\trelationship_id\tvalid_start_date\tvalid_end_date\tinvalid_reason\tsource
+                2\t1\tHas finding site\t20020131\t20991231\t\t
+                3\t2\tMaps to\t20020131\t20991231\t\t
+                """);
+        Files.writeString(dir.resolve("CONCEPT_ANCESTOR.csv"), """
+                ancestor_concept_id\tdescendant_concept_id\tmin_levels_of_separation\tmax_levels_of_separation
+                """);
+        Files.writeString(dir.resolve("CONCEPT_SYNONYM.csv"), """
+                concept_id\tconcept_synonym_name\tlanguage_concept_id
+                3\tHepatic disorder\t4180186
+                """);
+        registry.add("rosetta.athena.dir", dir::toString);
+    }
+
+    @Test
+    void testStartsWithoutDataSource() {
+        assertTrue(context.getBeansOfType(DataSource.class).isEmpty());
+    }
+
+    @Test
+    void testLooksUpConcepts() {
+        var disorder = conceptService.byCode("235856003", EnumSet.of(Vocabulary.Identifier.SNOMED));
+        assertEquals("Disorder of liver", disorder.name());
+        assertEquals(Set.of(1), ids(conceptService.findingSites(disorder)));
+        assertEquals(Set.of(3), ids(conceptService.normalize("Hepatic disorder", EnumSet.of(Vocabulary.Identifier.MEDDRA), true)));
+
+        var meddra = conceptService.meddraByName("Liver disorder");
+        assertEquals(Set.of(2), ids(mappingService.map(meddra, EnumSet.of(MAPS_TO), EnumSet.of(Vocabulary.Identifier.SNOMED), null)));
+    }
+
+    private static Set<Integer> ids(Set<Concept> concepts) {
+        return concepts.stream().map(Concept::id).collect(Collectors.toSet());
+    }
+}
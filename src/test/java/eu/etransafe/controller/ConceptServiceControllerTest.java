@@ -36,7 +36,7 @@ class ConceptServiceControllerTest {
     @Test
     void testCachexiaSNOMEDExpandHasChild() {
         var resp = controller.getConceptExpand(134765, 2, 0);
-        assertNotNull(resp.concepts().get(0).children().get(0).domain());
+        assertNotNull(resp.concepts().get(0).children().get(0).concept().domain());
     }
 
     @Test
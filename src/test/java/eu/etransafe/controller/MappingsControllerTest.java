@@ -5,10 +5,15 @@ import eu.etransafe.domain.MappingAlgorithm;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.util.List;
+import java.util.Set;
 
+import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2ETOX;
+import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2SEND;
+import static eu.etransafe.domain.MappingAlgorithm.MEDDRAPT2SNOMED;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -21,7 +26,7 @@ class MappingsControllerTest {
 
     @Test
     void mapETOX2MEDDRA() {
-        var resp = controller.map(List.of("MC:0000421", "MA:0000340"), MappingAlgorithm.ETOX2MEDDRAPT, false, 2);
+        var resp = controller.map(List.of("MC:0000421", "MA:0000340"), MappingAlgorithm.ETOX2MEDDRAPT, false, 2, null, new MockHttpServletResponse());
         System.out.println(resp);
         assertFalse(resp.isEmpty());
     }
@@ -29,14 +34,22 @@ class MappingsControllerTest {
     @Test
     void mapBulk() {
         var list = List.of("MA:0000404", "MA:0000333");
-        var resp = controller.bulk(new BulkRequest(MappingAlgorithm.MA2MEDDRASOC, list));
+        var resp = controller.bulk(new BulkRequest(MappingAlgorithm.MA2MEDDRASOC, list), new MockHttpServletResponse());
         System.out.println(resp);
         assertEquals(resp.size(), list.size());
     }
 
+    @Test
+    void mapMulti() {
+        var codes = List.of("10019717");
+        var resp = controller.multi(codes, Set.of(MEDDRAPT2ETOX, MEDDRAPT2SEND, MEDDRAPT2SNOMED), false, 2, 0L, new MockHttpServletResponse());
+        assertEquals(Set.of(MEDDRAPT2ETOX, MEDDRAPT2SEND, MEDDRAPT2SNOMED), resp.keySet());
+        assertEquals(Set.copyOf(controller.map(codes, MEDDRAPT2SEND, false, 2, 0L, new MockHttpServletResponse())), Set.copyOf(resp.get(MEDDRAPT2SEND)));
+    }
+
     @Test
     void mapBadRequest() {
-        assertThrows(ResponseStatusException.class, () -> controller.map(List.of("this is not valid"), MappingAlgorithm.MEDDRAPT2SNOMED, false, 2));
+        assertThrows(ResponseStatusException.class, () -> controller.map(List.of("this is not valid"), MappingAlgorithm.MEDDRAPT2SNOMED, false, 2, null, new MockHttpServletResponse()));
     }
 
 }
@@ -0,0 +1,38 @@
+package eu.etransafe.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConceptNodeTest {
+
+    private static Concept concept(int id, String name) {
+        return Concept.builder().id(id).name(name).vocabulary(Vocabulary.Identifier.MEDDRA).conceptClass("PT").build();
+    }
+
+    @Test
+    void testSerializesAsConceptWithChildren() throws Exception {
+        var tree = new ConceptNode(concept(1, "Headache"), 1, List.of(new ConceptNode(concept(2, "Migraine"), 2)));
+        var json = new ObjectMapper().readTree(new ObjectMapper().writeValueAsString(tree));
+        assertEquals(1, json.get("id").asInt());
+        assertEquals("Headache", json.get("name").asText());
+        assertEquals(1, json.get("level").asInt());
+        assertEquals("Migraine", json.get("children").get(0).get("name").asText());
+        assertEquals(0, json.get("children").get(0).get("children").size());
+    }
+
+    @Test
+    void testSharedSubtrees() {
+        var leaf = new ConceptNode(concept(3, "Cluster headache"), 3);
+        var left = new ConceptNode(concept(1, "Headache"), 1, List.of(leaf));
+        var right = new ConceptNode(concept(2, "Pain"), 1, List.of(leaf));
+        assertSame(left.children().get(0), right.children().get(0));
+        assertEquals(4, left.size() + right.size());
+        assertThrows(UnsupportedOperationException.class, () -> left.children().add(leaf));
+    }
+}
@@ -0,0 +1,47 @@
+package eu.etransafe.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConceptSetTest {
+
+    @Test
+    void testEqualSetsAreInterned() {
+        var set = ConceptSet.of(List.of(new Concept(9), new Concept(3), new Concept(9)));
+        assertArrayEquals(new int[]{3, 9}, set.toArray());
+        assertSame(set, ConceptSet.of(9, 3));
+        assertSame(set, ConceptSet.of(3, 5).replace(5, 9));
+        assertSame(ConceptSet.of(3), ConceptSet.of(3, 9).replace(9, 3));
+    }
+
+    @Test
+    void testContainsAll() {
+        var set = ConceptSet.of(1, 4, 7, 12);
+        assertTrue(set.containsAll(ConceptSet.of(4, 12)));
+        assertTrue(set.containsAll(ConceptSet.of()));
+        assertFalse(set.containsAll(ConceptSet.of(4, 5)));
+        assertFalse(ConceptSet.of(4).containsAll(set));
+        assertTrue(set.contains(7));
+        assertFalse(set.contains(8));
+    }
+
+    @Test
+    void testMappingItemsAreComparedByTheirIds() {
+        var liver = Concept.builder().id(1).name("Liver").build();
+        var necrosis = Concept.builder().id(2).name("Necrosis").build();
+        var item = new MappingItem(Set.of(liver, necrosis));
+        assertEquals(item, new MappingItem(Set.of(new Concept(2), new Concept(1))));
+        assertEquals(item.hashCode(), new MappingItem(Set.of(new Concept(1), new Concept(2))).hashCode());
+        var replaced = item.replace(necrosis, new Concept(3));
+        assertSame(ConceptSet.of(1, 3), replaced.ids());
+        assertEquals(Set.of(liver, new Concept(3)), replaced.concepts());
+    }
+}
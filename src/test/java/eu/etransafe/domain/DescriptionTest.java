@@ -0,0 +1,48 @@
+package eu.etransafe.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class DescriptionTest {
+
+    private static Concept concept(int id, String name) {
+        return Concept.builder().id(id).name(name).vocabulary(Vocabulary.Identifier.SNOMED).conceptClass("Body Structure").build();
+    }
+
+    @Test
+    void testRendersConceptsAndTerms() {
+        var liver = concept(1, "Liver");
+        var necrosis = concept(2, "Necrosis");
+        var description = Description.of("%s %s to %s neglecting %s terms", liver, MAPS_TO, new MappingItem(necrosis), 2);
+        assertEquals("Liver " + MAPS_TO.value() + " to Necrosis neglecting 2 terms", description.render());
+        assertEquals("Removed AND mappings Liver, Necrosis", Description.of("Removed AND mappings %s", List.of(liver, necrosis)).render());
+        assertEquals("Liver | Exact match", Description.joining(" | ", List.of(Description.of("%s", liver), Description.of("Exact match"))).render());
+        assertEquals("100% match", Description.of("100% match").render());
+    }
+
+    @Test
+    void testEqualWithoutRendering() {
+        var liver = concept(1, "Liver");
+        assertEquals(Description.of("Uphill mapping of %s", liver), Description.of("Uphill mapping of %s", new Concept(1)));
+        assertNotEquals(Description.of("Uphill mapping of %s", liver), Description.of("Downhill mapping of %s", liver));
+    }
+
+    @Test
+    void testMappingRendersOnRequest() throws Exception {
+        var liver = concept(1, "Liver");
+        var lobe = concept(2, "Hepatic lobe");
+        var mapping = Mapping.builder().from(lobe).to(liver).expanded(lobe, liver, Mapping.Direction.UPHILL).build();
+        assertEquals(Description.of("Uphill mapping of %s", lobe), mapping.describedAs());
+        assertEquals("Uphill mapping of Hepatic lobe", mapping.description());
+        assertEquals(Set.of(new MappingItem(liver)), mapping.to());
+        var json = new ObjectMapper().readTree(new ObjectMapper().writeValueAsString(mapping));
+        assertEquals("Uphill mapping of Hepatic lobe", json.get("description").asText());
+    }
+}
@@ -0,0 +1,65 @@
+package eu.etransafe.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MappingTest {
+
+    private static Mapping step(Mapping preceding, int concept, double penalty) {
+        return Mapping.builder().precedingMapping(preceding).to(new Concept(concept)).description("Step to " + concept).penalty(penalty).build();
+    }
+
+    @Test
+    void testTotalPenalty() {
+        var root = Mapping.builder().from(new Concept(1)).to(new Concept(2)).penalty(1).build();
+        var positive = step(step(root, 3, 0.1), 4, 1);
+        assertEquals(2.1, positive.totalPenalty(), 1e-9);
+        var negative = step(step(root, 3, -1), 4, 1);
+        assertEquals(-3, negative.totalPenalty(), 1e-9);
+    }
+
+    @Test
+    void testCopyBuildsANewMapping() {
+        var root = Mapping.builder().from(new Concept(1)).to(new Concept(2)).build();
+        var next = step(root, 3, 1);
+        var copy = next.copy().penalty(2).build();
+        assertSame(root, copy.precedingMapping());
+        assertEquals(2, copy.totalPenalty());
+        assertEquals(1, next.totalPenalty());
+        assertNotEquals(next, copy);
+        assertEquals(next, next.copy().build());
+    }
+
+    @Test
+    void testExpandedSinceKeepsTheTotalPenalty() {
+        var liver = Concept.builder().id(3).name("Liver").build();
+        var organ = Concept.builder().id(4).name("Abdominal organ").build();
+        var region = Concept.builder().id(5).name("Abdomen").build();
+        var root = Mapping.builder().from(new Concept(1)).to(new Concept(2)).penalty(1).build();
+        var negative = step(root, 3, -1);
+        var first = Mapping.expandedSince(root, negative, new MappingItem(organ), liver, organ, Mapping.Direction.UPHILL);
+        var second = Mapping.expandedSince(root, first, new MappingItem(region), organ, region, Mapping.Direction.UPHILL);
+        var explained = Mapping.builder().precedingMapping(Mapping.builder().precedingMapping(negative).to(organ).expanded(liver, organ, Mapping.Direction.UPHILL).build())
+                .to(region).expanded(organ, region, Mapping.Direction.UPHILL)
+                .build();
+        assertEquals(explained.totalPenalty(), second.totalPenalty(), 1e-9);
+        assertEquals(-4, second.totalPenalty(), 1e-9);
+        assertSame(root, second.precedingMapping());
+    }
+
+    @Test
+    void testEqualChainsDeduplicate() {
+        var root = Mapping.builder().from(new Concept(1)).to(new Concept(2)).build();
+        Set<Mapping> mappings = new HashSet<>();
+        mappings.add(step(step(root, 3, 1), 4, 0));
+        mappings.add(step(step(root, 3, 1), 4, 0));
+        assertEquals(1, mappings.size());
+        assertNotEquals(step(step(root, 3, 1), 4, 0), step(step(root, 5, 1), 4, 0));
+    }
+}
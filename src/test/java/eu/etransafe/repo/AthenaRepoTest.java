@@ -0,0 +1,134 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.EXACT;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.HAS_FINDING_SITE;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static eu.etransafe.domain.Vocabularies.PRECLINICAL;
+import static eu.etransafe.domain.Vocabularies.SUPPORTED;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AthenaRepoTest {
+
+    private final AthenaRepo athenaRepo = new AthenaRepo();
+
+    @TempDir
+    Path dir;
+
+    private void liver() throws IOException {
+        Files.writeString(dir.resolve(AthenaRepo.CONCEPT), """
+                concept_id\tconcept_name\tdomain_id\tvocabulary_id\tconcept_class_id\tstandard_concept\tconcept_code\tvalid_start_date\tvalid_end_date\tinvalid_reason
+                1\tLiver\tSpec Anatomic Site\tSNOMED\tBody Structure\tS\t10200000\t20020131\t20991231\t
+                2\tHepatic lobe\tSpec Anatomic Site\tSNOMED\tBody Structure\tS\t10300000\t20020131\t20991231\t
+                3\tLIVER\tSpec Anatomic Site\tMA\tMA\t\tC12392\t20020131\t20991231\tU
+                4\tLiver disorder\tCondition\tMedDRA\tPT\tC\t10024670\t20020131\t20991231\t
+                5\tLiver\tSpec Anatomic Site\tUBERON\tBody Structure\t\tUBERON:0002107\t20020131\t20991231\t
+                6\tDisorder of liver\tCondition\tSNOMED\tClinical Finding\tS\t235856003\t20020131\t20991231\t
+                """);
+        Files.writeString(dir.resolve(AthenaRepo.CONCEPT_RELATIONSHIP), """
+                concept_id_1\tconcept_id_2\trelationship_id\tvalid_start_date\tvalid_end_date\tinvalid_reason\tsource
+                2\t1\tIs a\t20020131\t20991231\t\t
+                1\t3\tExact match\t20020131\t20991231\t\teTRANSAFE
+                4\t1\tMaps to\t20020131\t20991231\t\t
+                2\t1\tPart of\t20020131\t20991231\t\t
+                5\t1\tMaps to\t20020131\t20991231\t\t
+                6\t1\tHas finding site\t20020131\t20991231\t\t
+                """);
+        Files.writeString(dir.resolve(AthenaRepo.CONCEPT_ANCESTOR), """
+                ancestor_concept_id\tdescendant_concept_id\tmin_levels_of_separation\tmax_levels_of_separation
+                1\t1\t0\t0
+                1\t2\t1\t1
+                5\t1\t1\t1
+                """);
+        Files.writeString(dir.resolve(AthenaRepo.CONCEPT_SYNONYM), """
+                concept_id\tconcept_synonym_name\tlanguage_concept_id
+                4\tHepatic disorder\t4180186
+                5\tLiver organ\t4180186
+                """);
+    }
+
+    @Test
+    void testReadsTheSupportedVocabularies() throws IOException {
+        liver();
+        var snapshot = athenaRepo.read(dir, SUPPORTED, PRECLINICAL);
+        assertEquals(5, snapshot.concepts());
+        assertEquals(3, snapshot.relationships());
+
+        var hierarchy = snapshot.hierarchy(SUPPORTED);
+        assertArrayEquals(new int[]{1}, hierarchy.parentIds(2));
+        assertArrayEquals(new int[]{2}, hierarchy.childIds(1));
+        assertFalse(hierarchy.contains(5));
+        assertEquals("U", hierarchy.concept(3).invalidReason());
+        assertNull(hierarchy.concept(1).invalidReason());
+        assertEquals(Domain.CONDITION, hierarchy.concept(4).domain());
+
+        var toMa = snapshot.mappingsTo(EnumSet.of(Vocabulary.Identifier.MA));
+        assertEquals(1, toMa.size());
+        assertEquals(EXACT, toMa.get(0).relationshipId());
+        assertEquals("eTRANSAFE", toMa.get(0).source());
+
+        var mapsTo = snapshot.mappingsFromTo(EnumSet.of(Vocabulary.Identifier.MEDDRA), EnumSet.of(Vocabulary.Identifier.SNOMED), MAPS_TO);
+        assertEquals(1, mapsTo.size());
+        assertEquals(1, mapsTo.get(0).conceptTwo().id());
+    }
+
+    @Test
+    void testReadsTheLookups() throws IOException {
+        liver();
+        var snapshot = athenaRepo.read(dir, SUPPORTED, PRECLINICAL).lookups();
+        assertEquals(1, snapshot.synonyms());
+        assertEquals(Set.of(4), snapshot.bySynonym("Hepatic disorder").stream().map(Concept::id).collect(Collectors.toSet()));
+        assertEquals(6, snapshot.byCode("235856003", EnumSet.of(Vocabulary.Identifier.SNOMED)).get(0).id());
+
+        var sites = snapshot.relationshipsFrom(List.of(snapshot.concept(6)), EnumSet.of(HAS_FINDING_SITE));
+        assertEquals(1, sites.size());
+        assertEquals(1, sites.get(0).conceptTwo().id());
+        assertTrue(snapshot.relationshipsFrom(List.of(snapshot.concept(2)), EnumSet.allOf(ConceptRelationship.Identifier.class)).isEmpty());
+    }
+
+    @Test
+    void testWithoutSynonyms() throws IOException {
+        liver();
+        Files.delete(dir.resolve(AthenaRepo.CONCEPT_SYNONYM));
+        var snapshot = athenaRepo.read(dir, SUPPORTED, PRECLINICAL);
+        assertEquals(0, snapshot.synonyms());
+        assertEquals(5, snapshot.concepts());
+    }
+
+    @Test
+    void testRelationshipsWithoutSource() throws IOException {
+        liver();
+        Files.writeString(dir.resolve(AthenaRepo.CONCEPT_RELATIONSHIP), """
+                concept_id_1\tconcept_id_2\trelationship_id\tvalid_start_date\tvalid_end_date\tinvalid_reason
+                1\t3\tExact match\t20020131\t20991231\t
+                """);
+        assertThrows(RosettaException.class, () -> athenaRepo.read(dir, SUPPORTED, PRECLINICAL));
+    }
+
+    @Test
+    void testMissingFile() throws IOException {
+        liver();
+        Files.delete(dir.resolve(AthenaRepo.CONCEPT_ANCESTOR));
+        assertThrows(RosettaException.class, () -> athenaRepo.read(dir, SUPPORTED, PRECLINICAL));
+    }
+}
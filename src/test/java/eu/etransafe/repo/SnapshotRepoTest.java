@@ -0,0 +1,111 @@
+package eu.etransafe.repo;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.exception.RosettaException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.EXACT;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.HAS_FINDING_SITE;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SnapshotRepoTest {
+
+    private final SnapshotRepo snapshotRepo = new SnapshotRepo(null, null);
+
+    @TempDir
+    Path dir;
+
+    private Path liver() {
+        Path file = dir.resolve("vocabulary.snapshot");
+        snapshotRepo.write(file, writer -> {
+            writer.concept(1, "Liver", "10200000", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE);
+            writer.concept(2, "Hepatic lobe", "10300000", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE);
+            writer.concept(3, "LIVER", "C12392", "MA", "U", Vocabulary.Identifier.MA, Domain.SPEC_ANATOMIC_SITE);
+            writer.concept(4, "Liver disorder", "10024670", "PT", null, Vocabulary.Identifier.MEDDRA, Domain.CONDITION);
+            writer.concept(5, "Disorder of liver", "235856003", "Clinical Finding", null, Vocabulary.Identifier.SNOMED, Domain.CONDITION);
+            writer.isA(2, 1);
+            writer.ancestor(1, 2);
+            writer.isA(2, 99);
+            writer.relationship(1, 3, "Exact match", "1", "eTRANSAFE");
+            writer.relationship(4, 1, "Maps to", null, null);
+            writer.relationship(4, 99, "Maps to", null, null);
+            writer.relationship(5, 1, "Has finding site", null, null);
+            writer.synonym(4, "Hepatic disorder");
+            writer.synonym(99, "Unknown disorder");
+        });
+        return file;
+    }
+
+    @Test
+    void testRoundTrip() {
+        var snapshot = snapshotRepo.read(liver());
+        assertEquals(5, snapshot.concepts());
+        assertEquals(3, snapshot.relationships());
+        assertEquals(1, snapshot.synonyms());
+
+        var hierarchy = snapshot.hierarchy(EnumSet.of(Vocabulary.Identifier.SNOMED));
+        assertArrayEquals(new int[]{1}, hierarchy.parentIds(2));
+        assertArrayEquals(new int[]{2}, hierarchy.childIds(1));
+        assertEquals("U", hierarchy.concept(3).invalidReason());
+        assertEquals(Domain.CONDITION, hierarchy.concept(4).domain());
+
+        var toMa = snapshot.mappingsTo(EnumSet.of(Vocabulary.Identifier.MA));
+        assertEquals(1, toMa.size());
+        assertEquals(EXACT, toMa.get(0).relationshipId());
+        assertEquals("LIVER", toMa.get(0).conceptTwo().name());
+
+        var mapsTo = snapshot.mappingsFromTo(EnumSet.of(Vocabulary.Identifier.MEDDRA), EnumSet.of(Vocabulary.Identifier.SNOMED), MAPS_TO);
+        assertEquals(1, mapsTo.size());
+        assertEquals(1, mapsTo.get(0).conceptTwo().id());
+    }
+
+    @Test
+    void testLookupsRoundTrip() {
+        var snapshot = snapshotRepo.read(liver()).lookups();
+        assertEquals("Hepatic lobe", snapshot.concept(2).name());
+        assertEquals(List.of(3), ids(snapshot.byCode("C12392", EnumSet.of(Vocabulary.Identifier.MA))));
+        assertEquals(List.of(), ids(snapshot.byCode("C12392", EnumSet.of(Vocabulary.Identifier.SNOMED))));
+        assertEquals(Set.of(1, 3), snapshot.byName("liver", null).stream().map(Concept::id).collect(Collectors.toSet()));
+        assertEquals(Set.of(4), snapshot.bySynonym("hepatic disorder").stream().map(Concept::id).collect(Collectors.toSet()));
+
+        var sites = snapshot.relationshipsFrom(List.of(snapshot.concept(5)), EnumSet.of(HAS_FINDING_SITE));
+        assertEquals(1, sites.size());
+        assertEquals("Liver", sites.get(0).conceptTwo().name());
+        var findings = snapshot.relationshipsTo(List.of(snapshot.concept(1)), EnumSet.of(HAS_FINDING_SITE, MAPS_TO));
+        assertEquals(Set.of(4, 5), findings.stream().map(cr -> cr.conceptOne().id()).collect(Collectors.toSet()));
+    }
+
+    private static List<Integer> ids(List<Concept> concepts) {
+        return concepts.stream().map(Concept::id).toList();
+    }
+
+    @Test
+    void testETransafeMappingsSkipInvalidConcepts() {
+        var snapshot = snapshotRepo.read(liver());
+        var fromMa = snapshot.eTransafeMappingsFromTo(EnumSet.of(Vocabulary.Identifier.MA), EnumSet.of(Vocabulary.Identifier.SNOMED));
+        assertEquals(0, fromMa.size());
+        var fromSnomed = snapshot.eTransafeMappingsFromTo(EnumSet.of(Vocabulary.Identifier.SNOMED), EnumSet.of(Vocabulary.Identifier.MA));
+        assertEquals(1, fromSnomed.size());
+    }
+
+    @Test
+    void testRejectsOtherFiles() throws IOException {
+        Path file = dir.resolve("not-a-snapshot");
+        Files.writeString(file, "concept_id\tconcept_name\tdomain_id\tvocabulary_id");
+        assertThrows(RosettaException.class, () -> snapshotRepo.read(file));
+    }
+}
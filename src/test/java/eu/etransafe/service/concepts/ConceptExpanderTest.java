@@ -20,7 +20,7 @@ class ConceptExpanderTest {
         var pt = conceptService.byId(35305453).orElseThrow();
         var soc = expander.expandMeddraPrimary(pt);
         System.out.println(soc.string());
-        Assertions.assertEquals(35300000, soc.id());
+        Assertions.assertEquals(35300000, soc.concept().id());
     }
 
     @Test
@@ -30,4 +30,14 @@ class ConceptExpanderTest {
         soc.forEach(s -> System.out.println(s.string()));
         Assertions.assertEquals(5, soc.size());
     }
+
+    @Test
+    void testExpandHeadacheChildren() {
+        var pt = conceptService.byId(35305453).orElseThrow();
+        var trees = expander.expand(pt, 1, 0);
+        Assertions.assertEquals(1, trees.size());
+        var children = trees.get(0).children();
+        Assertions.assertFalse(children.isEmpty());
+        Assertions.assertTrue(children.stream().allMatch(c -> c.level() == 2 && c.children().isEmpty()));
+    }
 }
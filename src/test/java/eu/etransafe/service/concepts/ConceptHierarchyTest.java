@@ -0,0 +1,89 @@
+package eu.etransafe.service.concepts;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Vocabulary;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConceptHierarchyTest {
+
+    private static ConceptHierarchy liver() {
+        return ConceptHierarchy.builder()
+                .concept(30, "Entire liver", "30", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(10, "Abdominal organ", "10", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(20, "Liver structure", "20", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(40, "Hepatic lobe", "40", "Body Structure", null, Vocabulary.Identifier.SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .ancestor(10, 20)
+                .ancestor(20, 30)
+                .ancestor(20, 30)
+                .ancestor(20, 20)
+                .ancestor(20, 99)
+                .isA(40, 20)
+                .isA(30, 20)
+                .build();
+    }
+
+    @Test
+    void testParentsIncludeIsA() {
+        var hierarchy = liver();
+        assertArrayEquals(new int[]{10}, hierarchy.parentIds(20));
+        assertArrayEquals(new int[]{20}, hierarchy.parentIds(30));
+        assertArrayEquals(new int[]{20}, hierarchy.parentIds(40));
+    }
+
+    @Test
+    void testChildrenOnlyFromAncestors() {
+        var hierarchy = liver();
+        assertArrayEquals(new int[]{30}, hierarchy.childIds(20));
+        assertArrayEquals(new int[]{20}, hierarchy.childIds(10));
+        assertEquals(0, hierarchy.childIds(30).length);
+    }
+
+    @Test
+    void testUnknownConcept() {
+        var hierarchy = liver();
+        assertFalse(hierarchy.contains(99));
+        assertTrue(hierarchy.parents(99).isEmpty());
+        assertEquals(4, hierarchy.size());
+    }
+
+    @Test
+    void testEdgesOutsideTheHierarchyMarkRelativesPartial() {
+        var hierarchy = liver();
+        assertFalse(hierarchy.hasAllChildren(20));
+        assertTrue(hierarchy.hasAllParents(20));
+        assertTrue(hierarchy.hasAllChildren(10));
+        assertFalse(hierarchy.hasAllParents(99));
+    }
+
+    @Test
+    void testMaterializedConceptsAreNotShared() {
+        var hierarchy = liver();
+        Concept first = hierarchy.parents(30).get(0);
+        Concept second = hierarchy.parents(30).get(0);
+        assertEquals("Liver structure", first.name());
+        assertEquals(Domain.SPEC_ANATOMIC_SITE, first.domain());
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void testCostsToTargets() {
+        var hierarchy = liver();
+        // From the entire liver to its structure is free, like the penalty of going up from an entire organ
+        ConceptHierarchy.StepCost cost = (from, to) -> hierarchy.id(from) == 30 && hierarchy.id(to) == 20 ? 0 : 1;
+        var up = hierarchy.costsTo(id -> id == 10, true, cost, 3);
+        assertArrayEquals(new byte[]{0, 1, 1, 2}, new byte[]{up[hierarchy.ordinal(10)], up[hierarchy.ordinal(20)],
+                up[hierarchy.ordinal(30)], up[hierarchy.ordinal(40)]});
+        var limited = hierarchy.costsTo(id -> id == 10, true, cost, 1);
+        assertEquals(2, limited[hierarchy.ordinal(40)]);
+        var down = hierarchy.costsTo(id -> id == 30, false, cost, 3);
+        assertEquals(2, down[hierarchy.ordinal(10)]);
+        assertEquals(4, down[hierarchy.ordinal(40)]);
+    }
+}
@@ -0,0 +1,209 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Mapping;
+import eu.etransafe.domain.MappingItem;
+import eu.etransafe.repo.HierarchyRepo;
+import eu.etransafe.repo.VocabularySnapshot;
+import eu.etransafe.service.concepts.ConceptService;
+import eu.etransafe.service.concepts.HierarchyCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.EXACT;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static eu.etransafe.domain.Vocabularies.ETOX;
+import static eu.etransafe.domain.Vocabulary.Identifier.HPATH;
+import static eu.etransafe.domain.Vocabulary.Identifier.MEDDRA;
+import static eu.etransafe.domain.Vocabulary.Identifier.SNOMED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/*
+ * Maps over a small snapshot instead of the db, so that the ways of searching can be compared with each other. The
+ * parts of a SNOMED concept are given by the fixture instead of being looked up.
+ */
+class Clinical2PreclinicalSearchTest {
+
+    private static final Concept HEPATITIS = new Concept(1);
+
+    /*
+     * Hepatitis maps to an inflammation, found in the liver. Only a narrower inflammation has another parent that is
+     * mapped. It is reached by going down to the narrower one, up from the liver and then up from the narrower one.
+     */
+    private static VocabularySnapshot flip() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Hepatitis", "1", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(10, "Inflammation", "10", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Acute inflammation", "11", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(12, "Inflammatory lesion", "12", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(20, "Liver", "20", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(21, "Abdominal organ", "21", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(100, "Inflammation", "100", "HPATH", null, HPATH, Domain.CONDITION)
+                .ancestor(10, 11)
+                .ancestor(12, 11)
+                .ancestor(21, 20)
+                .relationship(1, 10, MAPS_TO, null, "Athena")
+                .relationship(12, 100, EXACT, "1", "eTRANSAFE")
+                .build();
+    }
+
+    /*
+     * Hepatitis maps to a finding with one mapped grandchild and one mapped parent, and to a finding in the liver that
+     * is mapped as a whole. The results are spread over several penalties.
+     */
+    private static VocabularySnapshot spread() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Hepatitis", "1", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(10, "Hepatic inflammation", "10", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Acute hepatic inflammation", "11", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(12, "Acute viral hepatic inflammation", "12", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(13, "Hepatic disorder", "13", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(14, "Disorder", "14", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(20, "Liver", "20", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(100, "Inflammation", "100", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(101, "Necrosis", "101", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(102, "Hepatocellular alteration", "102", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(103, "Lesion", "103", "HPATH", null, HPATH, Domain.CONDITION)
+                .ancestor(10, 11)
+                .ancestor(11, 12)
+                .ancestor(13, 10)
+                .ancestor(14, 13)
+                .relationship(1, 10, MAPS_TO, null, "Athena")
+                .relationship(12, 100, EXACT, "1", "eTRANSAFE")
+                .relationship(13, 101, EXACT, "2", "eTRANSAFE")
+                .relationship(14, 103, EXACT, "3", "eTRANSAFE")
+                .relationship(10, 102, EXACT, "4", "eTRANSAFE")
+                .relationship(20, 102, EXACT, "4", "eTRANSAFE")
+                .build();
+    }
+
+    /*
+     * Hepatitis maps to a hepatic inflammation, split in the inflammation and the disorder it is a kind of, and to an
+     * acute hepatic inflammation. Going up from the acute one reaches the inflammation and the disorder as well, which
+     * must not keep the split alternative from expanding them itself.
+     */
+    private static VocabularySnapshot alternatives() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Hepatitis", "1", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(10, "Disorder", "10", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Necrosis", "11", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(12, "Inflammation", "12", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(13, "Hepatic inflammation", "13", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(14, "Acute hepatic inflammation", "14", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(100, "Inflammation", "100", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(101, "Necrosis", "101", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(102, "Lesion", "102", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(103, "Acute inflammation", "103", "HPATH", null, HPATH, Domain.CONDITION)
+                .ancestor(10, 11)
+                .ancestor(10, 12)
+                .ancestor(12, 13)
+                .ancestor(13, 14)
+                .relationship(1, 13, MAPS_TO, null, "Athena")
+                .relationship(1, 14, MAPS_TO, null, "Athena")
+                .relationship(10, 102, EXACT, "1", "eTRANSAFE")
+                .relationship(11, 101, EXACT, "2", "eTRANSAFE")
+                .relationship(12, 100, EXACT, "3", "eTRANSAFE")
+                .relationship(14, 103, EXACT, "4", "eTRANSAFE")
+                .build();
+    }
+
+    private static Clinical2Preclinical engine(VocabularySnapshot snapshot, Map<Integer, Set<Integer>> parts,
+                                               SearchStrategy search, boolean prune) {
+        var vocabulary = new VocabularyHolder("snapshot");
+        var hierarchyCache = new HierarchyCache(snapshot, true, vocabulary);
+        var distances = new MappableDistances(vocabulary, prune);
+        var mappingCache = new MappingCache(null, snapshot, new SimpleMeterRegistry(), hierarchyCache, distances, vocabulary);
+        mappingCache.reload().join();
+        var conceptService = new ConceptService(null, hierarchyCache, mock(HierarchyRepo.class), vocabulary);
+        var mappingService = new MappingService(null, null, mappingCache, null, vocabulary) {
+            @Override
+            public SnomedParts decomposeSnomed(Mapping mapping) {
+                List<SnomedParts.Item> items = new ArrayList<>();
+                mapping.to().forEach(mi -> {
+                    Set<Concept> required = new HashSet<>();
+                    mi.concepts().forEach(c -> parts.getOrDefault(c.id(), Set.of(c.id()))
+                            .forEach(id -> required.add(hierarchyCache.hierarchy().concept(id))));
+                    items.add(new SnomedParts.Item(required, Set.of()));
+                });
+                return new SnomedParts(mapping, items);
+            }
+        };
+        return new Clinical2Preclinical(conceptService, mappingService, mappingCache,
+                new ExpansionMemo(100, new SimpleMeterRegistry(), vocabulary), search, new MappingBranches(1), distances, vocabulary);
+    }
+
+    // The least penalty a result is found with per preclinical translation, which is what is kept of them
+    private static Map<Set<MappingItem>, Double> results(Clinical2Preclinical engine, int maxPenalty) {
+        Map<Set<MappingItem>, Double> results = new HashMap<>();
+        engine.map(HEPATITIS, ETOX, true, maxPenalty).stream()
+                .filter(m -> m.to() != null && !m.to().isEmpty())
+                .forEach(m -> results.merge(m.to(), Math.abs(m.totalPenalty()), Math::min));
+        return results;
+    }
+
+    @Test
+    void testPruningKeepsExpansionsThatChangeDirection() {
+        var parts = Map.of(10, Set.of(10, 20));
+        var pruned = results(engine(flip(), parts, SearchStrategy.EXHAUSTIVE, true), 3);
+        var unpruned = results(engine(flip(), parts, SearchStrategy.EXHAUSTIVE, false), 3);
+        assertEquals(unpruned, pruned);
+        assertTrue(pruned.keySet().stream().flatMap(Set::stream).flatMap(mi -> mi.concepts().stream())
+                .anyMatch(c -> c.id() == 100));
+    }
+
+    // The translations per total penalty, which is what a mapping without explanation is squashed to
+    private static Map<Double, Set<MappingItem>> squashed(Collection<Mapping> mappings) {
+        Map<Double, Set<MappingItem>> squashed = new HashMap<>();
+        mappings.forEach(m -> squashed.computeIfAbsent(Math.round(m.totalPenalty() * 1000) / 1000.0, p -> new HashSet<>())
+                .addAll(m.to()));
+        return squashed;
+    }
+
+    @Test
+    void testScoreOnlySearchScoresTheSame() {
+        var parts = Map.of(10, Set.of(10, 20));
+        for (var search : SearchStrategy.values()) {
+            var explained = engine(spread(), parts, search, true).map(HEPATITIS, ETOX, true, 3);
+            var scored = engine(spread(), parts, search, true).map(HEPATITIS, ETOX, false, 3);
+            assertEquals(squashed(explained), squashed(scored), search.name());
+            assertTrue(squashed(scored).values().stream().mapToInt(Set::size).sum() > 2);
+        }
+        var deepening = engine(spread(), parts, SearchStrategy.EXHAUSTIVE, true).deepening(HEPATITIS, ETOX, false, 3);
+        deepening.map(1, Deadline.none());
+        var explained = engine(spread(), parts, SearchStrategy.EXHAUSTIVE, true).map(HEPATITIS, ETOX, true, 3);
+        assertEquals(squashed(explained), squashed(deepening.map(3, Deadline.none())));
+    }
+
+    private static void assertBestFirstFindsWhatExhaustiveFinds(VocabularySnapshot snapshot, Map<Integer, Set<Integer>> parts) {
+        for (int maxPenalty = 1; maxPenalty <= 4; maxPenalty++) {
+            var exhaustive = results(engine(snapshot, parts, SearchStrategy.EXHAUSTIVE, false), maxPenalty);
+            var bestFirst = results(engine(snapshot, parts, SearchStrategy.BEST_FIRST, false), maxPenalty);
+            assertEquals(exhaustive, bestFirst, "Maximum penalty " + maxPenalty);
+        }
+    }
+
+    @Test
+    void testBestFirstFindsWhatExhaustiveFinds() {
+        var parts = Map.of(10, Set.of(10, 20));
+        assertBestFirstFindsWhatExhaustiveFinds(spread(), parts);
+        assertTrue(results(engine(spread(), parts, SearchStrategy.EXHAUSTIVE, false), 4).size() > 2);
+
+        var split = Map.of(13, Set.of(13, 10));
+        assertBestFirstFindsWhatExhaustiveFinds(alternatives(), split);
+        // Inflammation and necrosis, down from the disorder after going up from the hepatic inflammation
+        assertTrue(results(engine(alternatives(), split, SearchStrategy.EXHAUSTIVE, false), 2).keySet().stream()
+                .anyMatch(to -> to.stream().flatMap(mi -> mi.concepts().stream()).map(Concept::id).toList()
+                        .containsAll(List.of(100, 101))));
+    }
+}
@@ -2,6 +2,7 @@ package eu.etransafe.service.mappings;
 
 import eu.etransafe.domain.Concept;
 import eu.etransafe.domain.Mapping;
+import eu.etransafe.exception.RosettaException;
 import eu.etransafe.service.concepts.ConceptService;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
@@ -16,6 +17,7 @@ import static eu.etransafe.domain.Vocabularies.ETOX;
 import static eu.etransafe.domain.Vocabularies.SEND;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
@@ -40,6 +42,17 @@ class Clinical2PreclinicalTest {
         assertTrue(best.get(0).totalPenalty() < 1);
     }
 
+    @Test
+    void mapDeepening() {
+        var c = conceptService.byCode("10031233", CLINICAL);
+        var deepening = clinical2Preclinical.deepening(c, ETOX, false, 2);
+        var first = mappingService.bestMappings(deepening.map(1, Deadline.none()));
+        assertFalse(first.isEmpty());
+        assertEquals(mappingService.bestMappings(clinical2Preclinical.map(c, ETOX, false, 1)).get(0).totalPenalty(), first.get(0).totalPenalty());
+        assertFalse(deepening.map(2, Deadline.none()).isEmpty());
+        assertThrows(RosettaException.class, () -> deepening.map(1, Deadline.none()));
+    }
+
     @Test
     void mapWithNulls() {
         var c = conceptService.byCode("10067737", CLINICAL);
@@ -0,0 +1,60 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConceptSetMapTest {
+
+    private static Concept concept(int id) {
+        return new Concept(id);
+    }
+
+    @Test
+    void testKeysIgnoreOrder() {
+        ConceptSetMap<String> map = new ConceptSetMap<>();
+        map.computeIfAbsent(ConceptSetMap.ids(List.of(concept(3), concept(1))), () -> "pair");
+        map.computeIfAbsent(ConceptSetMap.ids(List.of(concept(7), concept(5), concept(6))), () -> "triple");
+        map.computeIfAbsent(new int[]{1}, () -> "single");
+
+        assertEquals("pair", map.get(Set.of(concept(1), concept(3))));
+        assertEquals("triple", map.get(Set.of(concept(5), concept(6), concept(7))));
+        assertEquals("single", map.get(1));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    void testPairDoesNotClashWithSingle() {
+        ConceptSetMap<String> map = new ConceptSetMap<>();
+        map.computeIfAbsent(new int[]{1, 2}, () -> "pair");
+        assertFalse(map.containsKey(1));
+        assertFalse(map.containsKey(2));
+        assertNull(map.get(Set.of(concept(1), concept(2), concept(3))));
+    }
+
+    @Test
+    void testIdsAreSortedAndUnique() {
+        assertArrayEquals(new int[]{1, 2, 5}, ConceptSetMap.ids(List.of(concept(5), concept(1), concept(2), concept(5))));
+    }
+
+    @Test
+    void testMapValuesDropsNulls() {
+        ConceptSetMap<List<Integer>> map = new ConceptSetMap<>();
+        for (int i = 1; i <= 1000; i++) {
+            map.computeIfAbsent(new int[]{i}, ArrayList::new).add(i);
+        }
+        var even = map.mapValues(values -> values.get(0) % 2 == 0 ? values : null);
+        assertEquals(500, even.size());
+        assertTrue(even.containsKey(500));
+        assertFalse(even.containsKey(501));
+    }
+}
@@ -0,0 +1,33 @@
+package eu.etransafe.service.mappings;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeadlineTest {
+
+    @Test
+    void testNoDeadline() {
+        assertSame(Deadline.none(), Deadline.in(0));
+        assertFalse(Deadline.none().expired());
+        assertFalse(Deadline.none().passed());
+    }
+
+    @Test
+    void testPassedOnlyOnceExpiredWasChecked() throws InterruptedException {
+        var deadline = Deadline.in(1);
+        Thread.sleep(5);
+        assertFalse(deadline.passed());
+        assertTrue(deadline.expired());
+        assertTrue(deadline.passed());
+    }
+
+    @Test
+    void testNotExpiredYet() {
+        var deadline = Deadline.in(60_000);
+        assertFalse(deadline.expired());
+        assertFalse(deadline.passed());
+    }
+}
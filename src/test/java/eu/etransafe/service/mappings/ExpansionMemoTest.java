@@ -0,0 +1,112 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.Mapping;
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static eu.etransafe.domain.Vocabulary.Identifier.MA;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ExpansionMemoTest {
+
+    private final VocabularyHolder vocabulary = new VocabularyHolder("db");
+    private final ExpansionMemo memo = new ExpansionMemo(100, new SimpleMeterRegistry(), vocabulary);
+    private final ExpansionState state = ExpansionState.of(List.of(new Concept(1)), null, EnumSet.of(MA));
+
+    private static Mapping step(Mapping preceding, int concept, double penalty) {
+        return Mapping.builder().precedingMapping(preceding).to(new Concept(concept)).description("Step to " + concept).penalty(penalty).build();
+    }
+
+    private void store(Mapping root, double budget) {
+        store(root, budget, true);
+    }
+
+    // Expands the root twice, the second expansion was only allowed because the first stayed under the budget
+    private void store(Mapping root, double budget, boolean explained) {
+        Map<Mapping, Double> gates = new IdentityHashMap<>();
+        var first = step(root, 2, 1);
+        gates.put(first, Math.abs(root.totalPenalty()));
+        var second = step(first, 3, 1);
+        gates.put(second, Math.abs(first.totalPenalty()));
+        memo.put(state, root, budget, Set.of(step(first, 10, 0), step(second, 11, 0.5)), gates, explained);
+    }
+
+    @Test
+    void testResultsAreRebasedOnTheNextRequest() {
+        store(Mapping.builder().to(new Concept(1)).penalty(1).build(), 3);
+
+        var other = Mapping.builder().to(new Concept(1)).penalty(0.5).build();
+        var results = memo.get(state, other, 3, true);
+        assertEquals(2, results.size());
+        var deepest = results.stream().filter(m -> m.singleToConcept().id() == 11).findAny().orElseThrow();
+        assertEquals(3, deepest.totalPenalty());
+        assertSame(other, deepest.precedingMapping().precedingMapping().precedingMapping());
+        assertNotSame(memo.get(state, other, 3, true).iterator().next(), memo.get(state, other, 3, true).iterator().next());
+    }
+
+    @Test
+    void testResultsWithoutExplanationOnlyKeepThePrecedingTotal() {
+        store(Mapping.builder().to(new Concept(1)).penalty(1).build(), 3);
+
+        var other = Mapping.builder().to(new Concept(1)).penalty(0.5).build();
+        var results = memo.get(state, other, 3, false);
+        assertEquals(2, results.size());
+        var deepest = results.stream().filter(m -> m.singleToConcept().id() == 11).findAny().orElseThrow();
+        assertEquals(3, deepest.totalPenalty());
+        assertEquals(Mapping.DESCR_PRECEDING_STEPS, deepest.precedingMapping().description());
+        assertNull(deepest.precedingMapping().precedingMapping());
+    }
+
+    @Test
+    void testResultsOfOtherVocabularyDataAreNotUsed() {
+        var root = Mapping.builder().to(new Concept(1)).build();
+        vocabulary.pinned(new LoadedVocabulary(ConceptHierarchy.EMPTY, null, null, null), () -> {
+            store(root, 3);
+            assertEquals(2, memo.get(state, root, 3, true).size());
+            return null;
+        });
+        assertNull(memo.get(state, root, 3, true));
+    }
+
+    @Test
+    void testOnlyTheSameBudgetReusesResults() {
+        store(Mapping.builder().to(new Concept(1)).build(), 3);
+        var root = Mapping.builder().to(new Concept(1)).build();
+        assertEquals(2, memo.get(state, root, 3, true).size());
+        assertNull(memo.get(state, root, 2, true));
+        assertNull(memo.get(state, root, 4, true));
+
+        store(root, 2);
+        assertEquals(2, memo.get(state, root, 2, true).size());
+        assertNull(memo.get(state, root, 3, true));
+    }
+
+    @Test
+    void testResultsWithoutExplanationOnlyAnswerRequestsWithoutExplanation() {
+        var root = Mapping.builder().to(new Concept(1)).build();
+        store(root, 3, false);
+        assertNull(memo.get(state, root, 3, true));
+        assertEquals(2, memo.get(state, root, 3, false).size());
+
+        store(root, 3, true);
+        assertEquals(2, memo.get(state, root, 3, true).size());
+    }
+
+    @Test
+    void testInvalidate() {
+        store(Mapping.builder().to(new Concept(1)).build(), 3);
+        memo.invalidate();
+        assertNull(memo.get(state, Mapping.builder().to(new Concept(1)).build(), 3, true));
+    }
+}
@@ -0,0 +1,55 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.domain.Concept;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static eu.etransafe.domain.Mapping.Direction.DOWNHILL;
+import static eu.etransafe.domain.Mapping.Direction.UPHILL;
+import static eu.etransafe.domain.Vocabulary.Identifier.MA;
+import static eu.etransafe.domain.Vocabulary.Identifier.SNOMED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExpansionStateTest {
+
+    private static final Object TARGET = EnumSet.of(MA);
+
+    private static Concept concept(int id) {
+        return new Concept(id);
+    }
+
+    @Test
+    void testExpandMatchesFreshState() {
+        var state = ExpansionState.of(List.of(concept(5), concept(3), concept(9)), null, TARGET);
+        var expanded = state.expand(concept(3), concept(7), UPHILL);
+        var fresh = ExpansionState.of(List.of(concept(9), concept(7), concept(5)), UPHILL, TARGET);
+        assertEquals(fresh, expanded);
+        assertEquals(fresh.hashCode(), expanded.hashCode());
+    }
+
+    @Test
+    void testExpandIntoConceptAlreadyInTheSet() {
+        var state = ExpansionState.of(List.of(concept(1), concept(2)), DOWNHILL, TARGET);
+        var merged = state.expand(concept(1), concept(2), DOWNHILL);
+        assertEquals(ExpansionState.of(List.of(concept(2)), DOWNHILL, TARGET), merged);
+    }
+
+    @Test
+    void testDirectionAndContextAreSeparateStates() {
+        var concepts = List.of(concept(1), concept(2));
+        var state = ExpansionState.of(concepts, UPHILL, TARGET);
+        assertNotEquals(ExpansionState.of(concepts, DOWNHILL, TARGET), state);
+        assertNotEquals(ExpansionState.of(concepts, null, TARGET), state);
+        assertNotEquals(ExpansionState.of(concepts, UPHILL, EnumSet.of(SNOMED)), state);
+    }
+
+    @Test
+    void testExpandUnknownConcept() {
+        var state = ExpansionState.of(List.of(concept(1)), null, TARGET);
+        assertThrows(IllegalArgumentException.class, () -> state.expand(concept(2), concept(3), UPHILL));
+    }
+}
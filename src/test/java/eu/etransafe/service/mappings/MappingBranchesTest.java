@@ -0,0 +1,47 @@
+package eu.etransafe.service.mappings;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappingBranchesTest {
+
+    private final List<Integer> branches = IntStream.range(0, 50).boxed().toList();
+
+    @Test
+    void testResultsInTheOrderOfTheBranches() {
+        var expected = branches.stream().flatMap(b -> List.of(b, -b).stream()).toList();
+        assertEquals(expected, new MappingBranches(1).map(branches, b -> List.of(b, -b)));
+        assertEquals(expected, new MappingBranches(4).map(branches, b -> List.of(b, -b)));
+    }
+
+    @Test
+    void testParallelismIsBounded() {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        var mapped = new MappingBranches(3).map(branches, b -> {
+            threads.add(Thread.currentThread());
+            return List.of(b);
+        });
+        assertEquals(branches, mapped);
+        assertTrue(threads.size() <= 3);
+    }
+
+    @Test
+    void testFailureOfABranch() {
+        var parallel = new MappingBranches(4);
+        var e = assertThrows(IllegalStateException.class, () -> parallel.map(branches, b -> {
+            if (b == 25) {
+                throw new IllegalStateException("Branch " + b);
+            }
+            return List.of(b);
+        }));
+        assertEquals("Branch 25", e.getMessage());
+    }
+}
@@ -0,0 +1,285 @@
+package eu.etransafe.service.mappings;
+
+import com.google.common.collect.Sets;
+import eu.etransafe.domain.Concept;
+import eu.etransafe.domain.ConceptRelationship;
+import eu.etransafe.domain.Domain;
+import eu.etransafe.domain.Mapping;
+import eu.etransafe.domain.MappingItem;
+import eu.etransafe.domain.Vocabulary;
+import eu.etransafe.repo.HierarchyRepo;
+import eu.etransafe.repo.VocabularySnapshot;
+import eu.etransafe.service.concepts.ConceptService;
+import eu.etransafe.service.concepts.HierarchyCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static eu.etransafe.domain.ConceptRelationship.Identifier.ASSO_MORPH_OF;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.EXACT;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.FINDING_SITE_OF;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.MAPS_TO;
+import static eu.etransafe.domain.ConceptRelationship.Identifier.NARROW;
+import static eu.etransafe.domain.Vocabulary.Identifier.HPATH;
+import static eu.etransafe.domain.Vocabulary.Identifier.MA;
+import static eu.etransafe.domain.Vocabulary.Identifier.MEDDRA;
+import static eu.etransafe.domain.Vocabulary.Identifier.SNOMED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/*
+ * Maps over a small snapshot instead of the db, so that the ways of searching can be compared with each other.
+ */
+class Preclinical2ClinicalSearchTest {
+
+    /*
+     * Hepatocellular necrosis in the liver maps to necrosis, a hepatocellular change and the liver, which only maps to
+     * MedDRA once one of the morphologies is removed. The morphologies and the liver each have a parent that is part of
+     * another finding.
+     */
+    private static VocabularySnapshot reduced() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Necrosis, hepatocellular", "1", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(2, "Liver", "2", "MA", null, MA, Domain.SPEC_ANATOMIC_SITE)
+                .concept(10, "Necrosis", "10", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Hepatocellular change", "11", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(12, "Cell death", "12", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(13, "Cellular change", "13", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(20, "Liver structure", "20", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(21, "Abdominal organ", "21", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(30, "Hepatic necrosis", "30", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(31, "Hepatic cell death", "31", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(32, "Abdominal necrosis", "32", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(33, "Hepatocellular injury", "33", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(200, "Hepatic necrosis", "200", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(201, "Hepatic cell death", "201", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(202, "Necrosis", "202", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(203, "Hepatocellular injury", "203", "PT", null, MEDDRA, Domain.CONDITION)
+                .ancestor(12, 10)
+                .ancestor(13, 11)
+                .ancestor(21, 20)
+                .relationship(1, 10, NARROW, "1", "eTRANSAFE")
+                .relationship(1, 11, NARROW, "1", "eTRANSAFE")
+                .relationship(2, 20, EXACT, "2", "eTRANSAFE")
+                .relationship(10, 30, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 30, FINDING_SITE_OF, null, "Athena")
+                .relationship(12, 31, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 31, FINDING_SITE_OF, null, "Athena")
+                .relationship(10, 32, ASSO_MORPH_OF, null, "Athena")
+                .relationship(21, 32, FINDING_SITE_OF, null, "Athena")
+                .relationship(13, 33, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 33, FINDING_SITE_OF, null, "Athena")
+                .relationship(30, 200, MAPS_TO, null, "Athena")
+                .relationship(31, 201, MAPS_TO, null, "Athena")
+                .relationship(10, 202, MAPS_TO, null, "Athena")
+                .relationship(33, 203, MAPS_TO, null, "Athena")
+                .build();
+    }
+
+    /*
+     * Necrosis in the liver maps to necrosis and coagulative necrosis, reduced to either of them in the liver, and to
+     * a narrower coagulative necrosis. Going up from the narrower one reaches the same morphologies in the liver, which
+     * must not keep the reduced sets from expanding them themselves.
+     */
+    private static VocabularySnapshot alternatives() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Necrosis", "1", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(2, "Liver", "2", "MA", null, MA, Domain.SPEC_ANATOMIC_SITE)
+                .concept(10, "Degenerative change", "10", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Necrosis", "11", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(12, "Atrophy", "12", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(13, "Coagulative necrosis", "13", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(14, "Focal coagulative necrosis", "14", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(20, "Liver structure", "20", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(21, "Hepatic lobule", "21", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(30, "Degeneration of hepatic lobule", "30", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(32, "Focal coagulative hepatic necrosis", "32", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(33, "Coagulative hepatic necrosis", "33", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(35, "Hepatic necrosis", "35", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(200, "Hepatic degeneration", "200", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(202, "Focal hepatic necrosis", "202", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(203, "Coagulative hepatic necrosis", "203", "PT", null, MEDDRA, Domain.CONDITION)
+                .concept(205, "Hepatic necrosis", "205", "PT", null, MEDDRA, Domain.CONDITION)
+                .ancestor(10, 11)
+                .ancestor(10, 12)
+                .ancestor(11, 13)
+                .ancestor(13, 14)
+                .ancestor(20, 21)
+                .relationship(1, 11, NARROW, "1", "eTRANSAFE")
+                .relationship(1, 13, NARROW, "1", "eTRANSAFE")
+                .relationship(1, 14, EXACT, "3", "eTRANSAFE")
+                .relationship(2, 20, EXACT, "2", "eTRANSAFE")
+                .relationship(10, 30, ASSO_MORPH_OF, null, "Athena")
+                .relationship(21, 30, FINDING_SITE_OF, null, "Athena")
+                .relationship(14, 32, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 32, FINDING_SITE_OF, null, "Athena")
+                .relationship(13, 33, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 33, FINDING_SITE_OF, null, "Athena")
+                .relationship(11, 35, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 35, FINDING_SITE_OF, null, "Athena")
+                .relationship(30, 200, MAPS_TO, null, "Athena")
+                .relationship(32, 202, MAPS_TO, null, "Athena")
+                .relationship(33, 203, MAPS_TO, null, "Athena")
+                .relationship(35, 205, MAPS_TO, null, "Athena")
+                .build();
+    }
+
+    /*
+     * Necrosis and inflammation of the liver and bile duct are all part of one hepatobiliary disorder, so every set of
+     * them that is left after removing concepts is mapped by a template. A concept without parents is its own parent,
+     * so each of them gets one of its own that no expansion comes back down from.
+     */
+    private static VocabularySnapshot lattice() {
+        return VocabularySnapshot.builder()
+                .concept(1, "Necrosis, inflammatory", "1", "HPATH", null, HPATH, Domain.CONDITION)
+                .concept(2, "Liver and bile duct", "2", "MA", null, MA, Domain.SPEC_ANATOMIC_SITE)
+                .concept(10, "Necrosis", "10", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(11, "Inflammation", "11", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(20, "Liver structure", "20", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(21, "Bile duct structure", "21", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(12, "Cell death", "12", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(13, "Inflammatory morphology", "13", "Morph Abnormality", null, SNOMED, Domain.CONDITION)
+                .concept(22, "Abdominal organ", "22", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(23, "Biliary tract structure", "23", "Body Structure", null, SNOMED, Domain.SPEC_ANATOMIC_SITE)
+                .concept(30, "Hepatobiliary disorder", "30", "Clinical Finding", null, SNOMED, Domain.CONDITION)
+                .concept(200, "Hepatobiliary disorder", "200", "PT", null, MEDDRA, Domain.CONDITION)
+                .ancestor(12, 10)
+                .ancestor(13, 11)
+                .ancestor(22, 20)
+                .ancestor(23, 21)
+                .relationship(1, 10, EXACT, "1", "eTRANSAFE")
+                .relationship(1, 11, EXACT, "1", "eTRANSAFE")
+                .relationship(2, 20, EXACT, "2", "eTRANSAFE")
+                .relationship(2, 21, EXACT, "2", "eTRANSAFE")
+                .relationship(10, 30, ASSO_MORPH_OF, null, "Athena")
+                .relationship(11, 30, ASSO_MORPH_OF, null, "Athena")
+                .relationship(20, 30, FINDING_SITE_OF, null, "Athena")
+                .relationship(21, 30, FINDING_SITE_OF, null, "Athena")
+                .relationship(30, 200, MAPS_TO, null, "Athena")
+                .build();
+    }
+
+    private static Preclinical2Clinical engine(VocabularySnapshot snapshot, SearchStrategy search) {
+        return engine(snapshot, search, new ArrayList<>());
+    }
+
+    // The sets of concepts a template is looked up for are added to the combined ones
+    private static Preclinical2Clinical engine(VocabularySnapshot snapshot, SearchStrategy search, List<Set<Concept>> combined) {
+        var vocabulary = new VocabularyHolder("snapshot");
+        var hierarchyCache = new HierarchyCache(snapshot, true, vocabulary);
+        var distances = new MappableDistances(vocabulary, false);
+        var mappingCache = new MappingCache(null, snapshot, new SimpleMeterRegistry(), hierarchyCache, distances, vocabulary);
+        mappingCache.reload().join();
+        var conceptService = new ConceptService(null, hierarchyCache, mock(HierarchyRepo.class), vocabulary);
+        var mappingService = new MappingService(null, null, mappingCache, null, vocabulary) {
+            @Override
+            public Set<Concept> map(Set<Concept> concepts, Set<ConceptRelationship.Identifier> relations,
+                                    Set<Vocabulary.Identifier> vocabularies, Set<Domain> domains) {
+                combined.add(concepts);
+                return super.map(concepts, relations, vocabularies, domains);
+            }
+        };
+        return new Preclinical2Clinical(conceptService, mappingService,
+                new ExpansionMemo(100, new SimpleMeterRegistry(), vocabulary), search, new MappingBranches(1), distances, vocabulary);
+    }
+
+    // The least penalty a result is found with per clinical translation, which is what is kept of them
+    private static Map<Set<MappingItem>, Double> results(VocabularySnapshot snapshot, SearchStrategy search, int maxPenalty) {
+        return results(snapshot, search, true, maxPenalty);
+    }
+
+    private static Map<Set<MappingItem>, Double> results(VocabularySnapshot snapshot, SearchStrategy search, boolean explain,
+                                                         int maxPenalty) {
+        Map<Set<MappingItem>, Double> results = new HashMap<>();
+        engine(snapshot, search).map(snapshot.concept(1), snapshot.concept(2), explain, maxPenalty, Deadline.none()).stream()
+                .filter(m -> m.to() != null && !m.to().isEmpty())
+                .forEach(m -> results.merge(m.to(), Math.round(Math.abs(m.totalPenalty()) * 1000) / 1000.0, Math::min));
+        return results;
+    }
+
+    private static boolean reaches(Map<Set<MappingItem>, Double> results, int id) {
+        return results.keySet().stream().flatMap(Set::stream).flatMap(mi -> mi.concepts().stream())
+                .anyMatch(c -> c.id() == id);
+    }
+
+    private static void assertBestFirstFindsWhatExhaustiveFinds(VocabularySnapshot snapshot) {
+        for (int maxPenalty = 1; maxPenalty <= 4; maxPenalty++) {
+            var exhaustive = results(snapshot, SearchStrategy.EXHAUSTIVE, maxPenalty);
+            var bestFirst = results(snapshot, SearchStrategy.BEST_FIRST, maxPenalty);
+            assertEquals(exhaustive, bestFirst, "Maximum penalty " + maxPenalty);
+        }
+    }
+
+    @Test
+    void testBestFirstFindsWhatExhaustiveFinds() {
+        assertBestFirstFindsWhatExhaustiveFinds(reduced());
+        // The reduced set costs a little more than the maximum penalty of one, which is still within its limit
+        assertTrue(reaches(results(reduced(), SearchStrategy.BEST_FIRST, 1), 200));
+        var expanded = results(reduced(), SearchStrategy.BEST_FIRST, 3);
+        assertTrue(reaches(expanded, 201) && reaches(expanded, 203));
+
+        assertBestFirstFindsWhatExhaustiveFinds(alternatives());
+        // Up from necrosis in the liver to the degenerative change and down from the liver to the lobule
+        assertTrue(reaches(results(alternatives(), SearchStrategy.BEST_FIRST, 3), 200));
+    }
+
+    private static int steps(Mapping mapping) {
+        return mapping == null ? 0 : 1 + steps(mapping.precedingMapping());
+    }
+
+    private static int mostSteps(SearchStrategy search, boolean explain) {
+        var snapshot = alternatives();
+        return engine(snapshot, search).map(snapshot.concept(1), snapshot.concept(2), explain, 3, Deadline.none()).stream()
+                .mapToInt(Preclinical2ClinicalSearchTest::steps)
+                .max().orElse(0);
+    }
+
+    @Test
+    void testScoreOnlySearchScoresTheSame() {
+        for (var search : SearchStrategy.values()) {
+            var explained = results(alternatives(), search, true, 3);
+            var scored = results(alternatives(), search, false, 3);
+            assertEquals(explained, scored, search.name());
+            assertTrue(scored.size() > 2);
+            // Only the result and total penalty of the steps before an expanded result are kept
+            assertTrue(mostSteps(search, false) < mostSteps(search, true), search.name());
+        }
+    }
+
+    // The sets the recursive walk over the AND mapping used to map, removing one concept at a time
+    private static void walk(Set<Concept> concepts, List<Set<Concept>> reduced) {
+        if (concepts.size() > 2 && concepts.stream().map(Concept::domain).distinct().count() > 1) {
+            Sets.combinations(concepts, concepts.size() - 1).stream()
+                    .filter(c -> c.stream().map(Concept::domain).distinct().count() == 2)
+                    .forEach(c -> {
+                        reduced.add(c);
+                        walk(c, reduced);
+                    });
+        }
+    }
+
+    @Test
+    void testEveryReducedSetIsMappedOnce() {
+        var snapshot = lattice();
+        List<Set<Concept>> walked = new ArrayList<>();
+        var all = Set.of(snapshot.concept(10), snapshot.concept(11), snapshot.concept(20), snapshot.concept(21));
+        walk(all, walked);
+        // Every pair is reached from both of the triples it is part of
+        assertEquals(4 + 2 * 4, walked.size());
+        for (var search : SearchStrategy.values()) {
+            List<Set<Concept>> combined = new ArrayList<>();
+            engine(snapshot, search, combined).map(snapshot.concept(1), snapshot.concept(2), 3);
+            // Expansions replace the concepts by their parents, what is left of the four was reached by removing them
+            var reduced = combined.stream().filter(all::containsAll).filter(c -> !c.equals(all)).toList();
+            assertEquals(Set.copyOf(reduced).size(), reduced.size(), search.name());
+            assertEquals(Set.copyOf(walked), Set.copyOf(reduced), search.name());
+        }
+        assertBestFirstFindsWhatExhaustiveFinds(snapshot);
+    }
+}
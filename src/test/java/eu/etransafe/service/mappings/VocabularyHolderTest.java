@@ -0,0 +1,50 @@
+package eu.etransafe.service.mappings;
+
+import eu.etransafe.service.concepts.ConceptHierarchy;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VocabularyHolderTest {
+
+    private final VocabularyHolder vocabulary = new VocabularyHolder("db");
+    private final LoadedVocabulary first = new LoadedVocabulary(ConceptHierarchy.EMPTY, null, null, null);
+    private final LoadedVocabulary second = new LoadedVocabulary(ConceptHierarchy.builder().build(), null, null, null);
+
+    @Test
+    void testNothingBeforeTheInitialLoad() {
+        assertNull(vocabulary.current());
+        assertFalse(vocabulary.isLoaded());
+        assertSame(ConceptHierarchy.EMPTY, vocabulary.hierarchy());
+        vocabulary.publish(first);
+        assertTrue(vocabulary.isLoaded());
+        assertSame(first, vocabulary.awaitCurrent());
+    }
+
+    @Test
+    void testRequestKeepsTheDataItStartedWith() {
+        vocabulary.publish(first);
+        var seen = vocabulary.pinned(() -> {
+            vocabulary.publish(second);
+            return vocabulary.current();
+        });
+        assertSame(first, seen);
+        assertSame(second, vocabulary.current());
+    }
+
+    @Test
+    void testBranchesOnOtherThreadsUseTheDataOfTheRequest() {
+        vocabulary.publish(first);
+        var seen = vocabulary.pinned(() -> {
+            var branch = vocabulary.pinning(ignored -> vocabulary.current());
+            vocabulary.publish(second);
+            return CompletableFuture.supplyAsync(() -> branch.apply(null)).join();
+        });
+        assertSame(first, seen);
+    }
+}